@@ -0,0 +1,210 @@
+/**
+ * Copyright 2007 Jeff Ward
+ * Portions may be pulled from JmDNS and are therefore
+ * the copyright of the JmDNS team
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.orbus.mahalo;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Timer;
+import java.util.TimerTask;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Wraps a ServiceListener and holds back removals for a grace period.  If a
+ * service that was removed is added again within the grace period, neither
+ * the removal nor the add reaches the wrapped listener, so services that
+ * sleep and wake or sit on a lossy link don't look like they keep leaving.
+ * If the service came back on a different host, address, port or text, the
+ * add is passed on as serviceResolved so the listener sees the new details.
+ * A removal is passed on once the grace period passes without the service
+ * coming back.
+ * 
+ * Calls to the wrapped listener are made one at a time.  Removals confirmed
+ * once the grace period passes are posted through the browser's event
+ * dispatcher when one is given, so they keep their order with the other
+ * events for the service.  Register and remove the wrapper, not the listener
+ * it wraps.
+ *
+ * @author Jeff Ward
+ */
+public class DebouncingServiceListener implements ServiceListener
+{
+	private static final Logger s_Logger = Logger.getLogger(DebouncingServiceListener.class);
+	
+	private static Timer s_Timer;
+	
+	private ServiceListener _Listener;
+	private int _iGracePeriod;
+	private ServiceEventDispatcher _Dispatcher;
+	
+	// Removals waiting out the grace period, keyed by lower case qualified name.
+	private Map<String, PendingRemoval> _PendingRemovals = new HashMap<String, PendingRemoval>();
+	private long _lSuppressed;
+	
+	/**
+	 * @param aListener the listener to pass confirmed events on to.
+	 * @param aiGracePeriod how long, in milliseconds, a service has to come back
+	 *                      before its removal is passed on.
+	 */
+	public DebouncingServiceListener(ServiceListener aListener, int aiGracePeriod) throws IllegalArgumentException {
+		if(aListener == null)
+			throw new IllegalArgumentException("aListener can not be null.");
+		if(aiGracePeriod < 0)
+			throw new IllegalArgumentException("aiGracePeriod can not be negative.");
+		
+		_Listener = aListener;
+		_iGracePeriod = aiGracePeriod;
+	}
+	
+	/**
+	 * @param aDispatcher the dispatcher to deliver confirmed removals on, 
+	 *                    usually Mahalo.getEventDispatcher().
+	 */
+	public DebouncingServiceListener(ServiceListener aListener, int aiGracePeriod, ServiceEventDispatcher aDispatcher) throws IllegalArgumentException {
+		this(aListener, aiGracePeriod);
+		_Dispatcher = aDispatcher;
+	}
+	
+	public ServiceListener getListener() {
+		return _Listener;
+	}
+	
+	public int getGracePeriod() {
+		return _iGracePeriod;
+	}
+	
+	/**
+	 * The number of removal and add pairs that were held back from the
+	 * wrapped listener.
+	 */
+	public synchronized long getSuppressedCount() {
+		return _lSuppressed;
+	}
+	
+	public synchronized void serviceAdded(ServiceEvent aEvent) {
+		PendingRemoval removal = _PendingRemovals.remove(getKey(aEvent));
+		if(removal != null) {
+			// Back before anyone needed to know it was gone.
+			removal.cancel();
+			if(isSameEndpoint(removal._Event, aEvent)) {
+				++_lSuppressed;
+				return;
+			}
+			
+			// The listener never saw it go, so it only needs the new details.
+			_Listener.serviceResolved(aEvent);
+			return;
+		}
+		
+		_Listener.serviceAdded(aEvent);
+	}
+	
+	public synchronized void serviceRemoved(ServiceEvent aEvent) {
+		if(_iGracePeriod == 0) {
+			_Listener.serviceRemoved(aEvent);
+			return;
+		}
+		
+		PendingRemoval removal = new PendingRemoval(getKey(aEvent), aEvent);
+		PendingRemoval oldRemoval = _PendingRemovals.put(removal._sKey, removal);
+		if(oldRemoval != null)
+			oldRemoval.cancel();
+		getTimer().schedule(removal, _iGracePeriod);
+	}
+	
+	public synchronized void serviceResolved(ServiceEvent aEvent) {
+		_Listener.serviceResolved(aEvent);
+	}
+	
+	/**
+	 * Pass on every removal still waiting out its grace period now.
+	 */
+	public synchronized void flush() {
+		for(PendingRemoval removal : _PendingRemovals.values()) {
+			removal.cancel();
+			_Listener.serviceRemoved(removal._Event);
+		}
+		_PendingRemovals.clear();
+	}
+	
+	private synchronized void confirmRemoval(PendingRemoval aRemoval) {
+		// A newer removal, or the service coming back, replaces this one.
+		if(_PendingRemovals.get(aRemoval._sKey) != aRemoval)
+			return;
+		
+		_PendingRemovals.remove(aRemoval._sKey);
+		if(_Dispatcher != null) {
+			_Dispatcher.serviceRemoved(Collections.singletonList(_Listener), aRemoval._Event);
+			return;
+		}
+		
+		// We're on the shared timer thread, which one bad listener must not kill.
+		try {
+			_Listener.serviceRemoved(aRemoval._Event);
+		} catch(RuntimeException e) {
+			s_Logger.error("Listener threw an exception handling " + aRemoval._Event, e);
+		}
+	}
+	
+	/**
+	 * Whether two events for the same service could name the same endpoint. 
+	 * Details that only one of them has, such as the host of a lazily browsed
+	 * service, are not compared.
+	 */
+	private static boolean isSameEndpoint(ServiceEvent aOld, ServiceEvent aNew) {
+		RemoteHostInfo oldHost = aOld.getHostInfo();
+		RemoteHostInfo newHost = aNew.getHostInfo();
+		if(oldHost != null && newHost != null) {
+			if(!oldHost.getName().equalsIgnoreCase(newHost.getName()) || 
+					!oldHost.getAddress().equals(newHost.getAddress()) ||
+					aOld.getSrvInfo().getPort() != aNew.getSrvInfo().getPort())
+				return false;
+		}
+		
+		byte[] oldText = aOld.getSrvInfo().getTextBytes();
+		byte[] newText = aNew.getSrvInfo().getTextBytes();
+		return oldText == null || newText == null || Arrays.equals(oldText, newText);
+	}
+	
+	private static String getKey(ServiceEvent aEvent) {
+		return aEvent.getSrvInfo().getQualifiedName().toLowerCase();
+	}
+	
+	private static synchronized Timer getTimer() {
+		if(s_Timer == null)
+			s_Timer = new Timer("Mahalo debounce", true);
+		return s_Timer;
+	}
+	
+	private class PendingRemoval extends TimerTask {
+		private String _sKey;
+		private ServiceEvent _Event;
+		
+		PendingRemoval(String asKey, ServiceEvent aEvent) {
+			_sKey = asKey;
+			_Event = aEvent;
+		}
+		
+		@Override
+		public void run() {
+			confirmRemoval(this);
+		}
+	}
+}
@@ -0,0 +1,165 @@
+/**
+ * Copyright 2007 Jeff Ward
+ * Portions may be pulled from JmDNS and are therefore
+ * the copyright of the JmDNS team
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.orbus.mahalo;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Picks an endpoint for a service type the way RFC 2782 says SRV records
+ * should be used: only services with the lowest priority number are
+ * considered, and among them each is chosen in proportion to its weight.
+ * Services with a weight of zero are chosen only rarely, unless every
+ * candidate has a weight of zero, in which case they are chosen evenly.
+ * 
+ * The selector keeps a table of running weight totals built from the type's
+ * ServiceDirectory, and only builds a new one when the directory's version
+ * changes.  Picking an endpoint is a binary search of that table and makes
+ * no allocations.
+ *
+ * @see MahaloBrowser#getEndpointSelector(String)
+ * @author Jeff Ward
+ */
+public class EndpointSelector
+{
+	private static final Random s_Random = new Random();
+	
+	private MahaloBrowser _Browser;
+	private String _sType;
+	private volatile Table _Table;
+	
+	EndpointSelector(MahaloBrowser aBrowser, String asType) {
+		_Browser = aBrowser;
+		_sType = asType;
+	}
+	
+	/**
+	 * Create a selector that picks from the directories getDirectory() returns,
+	 * for subclasses that don't get them from a browser.
+	 */
+	protected EndpointSelector(String asType) {
+		this(null, asType);
+	}
+	
+	public String getType() {
+		return _sType;
+	}
+	
+	/**
+	 * Pick an endpoint.
+	 * 
+	 * @return the chosen service, or null if there are no resolved services of the type.
+	 */
+	public ServiceEvent select() {
+		Table table = getTable();
+		if(table._Candidates.length == 0)
+			return null;
+		
+		// A random number from 0 to the total weight, inclusive, per RFC 2782.
+		long lpick = (long)(s_Random.nextDouble() * (table._lTotal + 1));
+		
+		// Find the first candidate whose running total reaches the pick.
+		int ilow = 0;
+		int ihigh = table._Totals.length - 1;
+		while(ilow < ihigh) {
+			int imid = (ilow + ihigh) >>> 1;
+			if(table._Totals[imid] < lpick)
+				ilow = imid + 1;
+			else
+				ihigh = imid;
+		}
+		
+		return table._Candidates[ilow];
+	}
+	
+	/**
+	 * Get the services chosen between, those with the lowest priority number.
+	 */
+	public List<ServiceEvent> getCandidates() {
+		ServiceEvent[] candidates = getTable()._Candidates;
+		List<ServiceEvent> retList = new ArrayList<ServiceEvent>(candidates.length);
+		for(ServiceEvent candidate : candidates)
+			retList.add(candidate);
+		return retList;
+	}
+	
+	/**
+	 * Get the current directory of the type.
+	 */
+	protected ServiceDirectory getDirectory() {
+		return _Browser.getServiceDirectory(_sType);
+	}
+	
+	private Table getTable() {
+		ServiceDirectory directory = getDirectory();
+		Table table = _Table;
+		if(table == null || table._lVersion != directory.getVersion()) {
+			table = new Table(directory);
+			_Table = table;
+		}
+		
+		return table;
+	}
+	
+	/**
+	 * The candidates of one directory version, with zero weight services first
+	 * and the running total of weights at each.
+	 */
+	private static class Table {
+		private long _lVersion;
+		private ServiceEvent[] _Candidates;
+		private long[] _Totals;
+		private long _lTotal;
+		
+		Table(ServiceDirectory aDirectory) {
+			_lVersion = aDirectory.getVersion();
+			
+			int ilowestPriority = Integer.MAX_VALUE;
+			for(ServiceEvent service : aDirectory.getServices())
+				ilowestPriority = Math.min(ilowestPriority, service.getSrvInfo().getPriority());
+			
+			List<ServiceEvent> zeroWeight = new ArrayList<ServiceEvent>();
+			List<ServiceEvent> weighted = new ArrayList<ServiceEvent>();
+			for(ServiceEvent service : aDirectory.getServices()) {
+				if(service.getSrvInfo().getPriority() != ilowestPriority)
+					continue;
+				if(service.getSrvInfo().getWeight() == 0)
+					zeroWeight.add(service);
+				else
+					weighted.add(service);
+			}
+			
+			// With no weights at all, treat every candidate as weighing the same.
+			boolean beven = weighted.isEmpty();
+			zeroWeight.addAll(weighted);
+			_Candidates = zeroWeight.toArray(new ServiceEvent[zeroWeight.size()]);
+			_Totals = new long[_Candidates.length];
+			
+			long ltotal = 0;
+			for(int i = 0; i < _Candidates.length; ++i) {
+				if(beven)
+					ltotal = i;
+				else
+					ltotal += _Candidates[i].getSrvInfo().getWeight();
+				_Totals[i] = ltotal;
+			}
+			_lTotal = ltotal;
+		}
+	}
+}
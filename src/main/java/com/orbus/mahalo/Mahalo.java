@@ -17,16 +17,23 @@
  */
 package com.orbus.mahalo;
 
+import java.io.File;
 import java.io.IOException;
 import java.net.Inet4Address;
 import java.net.InetAddress;
 import java.net.NetworkInterface;
 import java.net.UnknownHostException;
+import java.util.Collection;
 import java.util.Enumeration;
+import java.util.List;
+import java.util.Timer;
+import java.util.concurrent.Executor;
 
 import org.apache.log4j.Logger;
 
 import com.orbus.mahalo.dns.DNSCache;
+import com.orbus.mahalo.dns.DNSCacheSnapshot;
+import com.orbus.mahalo.tasks.CacheSnapshotWriter;
 
 /**
  * mDNS implementation in Java.
@@ -40,7 +47,6 @@ import com.orbus.mahalo.dns.DNSCache;
  * TODO: Need cache reaping to result in ServiceRemoved messages
  * TODO: Need cache reaping to warn about results that are about to expire
  * TODO: Share cache between Broadcaster and Browser
- * TODO: Need to include listening for service types (in JmDNS, but removed in Mahalo)
  * TODO: Need documentation for all classes
  */
 public class Mahalo
@@ -56,7 +62,9 @@ public class Mahalo
     private MahaloSocket _MahaloSocket;
     private MahaloBroadcaster _Broadcaster;
     private MahaloBrowser _Browser;
-    private DNSCache _Cache = new DNSCache(100);  
+    private DNSCache _Cache;
+    private DNSCacheSnapshot _Snapshot;
+    private Timer _Timer;
     
     /**
      * Create an instance of Mahalo mDNS / DNS-SD.
@@ -76,6 +84,32 @@ public class Mahalo
     public Mahalo(InetAddress aAddress, String asName)
     	throws UnknownHostException, IOException
     {
+    	this(aAddress, asName, false);
+    }
+    
+    /**
+     * Create an instance of Mahalo mDNS / DNS-SD that, if abPassive is set,
+     * never transmits.  A passive instance can't register services, and
+     * browses only by listening to what other hosts multicast.
+     * 
+     * @see MahaloBrowser#setPassive(boolean)
+     */
+    public Mahalo(InetAddress aAddress, String asName, boolean abPassive)
+    	throws UnknownHostException, IOException
+    {
+    	this(aAddress, asName, abPassive, null);
+    }
+    
+    /**
+     * Create an instance of Mahalo mDNS / DNS-SD that keeps its records in
+     * the given cache, such as an OffHeapDNSCache.  A null cache gets the
+     * default heap cache.
+     */
+    public Mahalo(InetAddress aAddress, String asName, boolean abPassive, DNSCache aCache)
+    	throws UnknownHostException, IOException
+    {
+    	_Cache = aCache != null ? aCache : new DNSCache(100);
+    	
     	if(aAddress == null) {
     		// Get local host.
     		// TODO: On null, we should bind to ALL interfaces and give each interface its own name.
@@ -120,14 +154,56 @@ public class Mahalo
     	_MahaloSocket = new MahaloSocket(aAddress);
     	_MahaloSocket.startListening();
     	    		
-    	s_Logger.debug("Creating broadcaster and browser with host name " + asName);
-    	_Broadcaster = new MahaloBroadcaster(_MahaloSocket, asName);
-    	_Browser = new MahaloBrowser(_MahaloSocket, _Cache);
+    	if(abPassive) {
+    		s_Logger.debug("Creating passive browser");
+    		_Browser = new MahaloBrowser(_MahaloSocket, _Cache);
+    		_Browser.setPassive(true);
+    	} else {
+    		s_Logger.debug("Creating broadcaster and browser with host name " + asName);
+    		_Broadcaster = new MahaloBroadcaster(_MahaloSocket, asName);
+    		_Browser = new MahaloBrowser(_MahaloSocket, _Cache);
+    	}
     }
     
     public void start() {
-    	s_Logger.info("Starting Mahalo mDNS / DNS-SD");
-    	_Broadcaster.start();
+    	s_Logger.info("Starting Mahalo mDNS / DNS-SD" + (_Broadcaster == null ? " (passive)" : ""));
+    	if(_Broadcaster != null)
+    		_Broadcaster.start();
+    }
+    
+    public boolean isPassive() {
+    	return _Broadcaster == null;
+    }
+    
+    /**
+     * Get what has been learned from the traffic heard so far.
+     *
+     * @see MahaloBrowser#getObservationStats()
+     */
+    public ObservationStats getObservationStats() {
+    	return _Browser.getObservationStats();
+    }
+
+    /**
+     * Keep a snapshot of the cache in the given file.  Anything already in the
+     * file is loaded into the cache immediately, so listeners added afterwards
+     * are told about previously known services right away while their queries
+     * confirm them.  The snapshot is rewritten periodically and on close.
+     *
+     * @param aFile the file to hold the snapshot.
+     */
+    public synchronized void enableCacheSnapshot(File aFile) throws IOException {
+    	if(_Snapshot != null)
+    		throw new IllegalStateException("A cache snapshot is already enabled: " + _Snapshot.getFile());
+    	
+    	_Snapshot = new DNSCacheSnapshot(aFile);
+    	int irestored = _Snapshot.read(_Cache);
+    	s_Logger.info("Restored " + irestored + " cached records from " + aFile);
+    	
+    	if(_Timer == null)
+    		_Timer = new Timer(true);
+    	_Timer.schedule(new CacheSnapshotWriter(_Cache, _Snapshot), CacheSnapshotWriter.INTERVAL,
+    			CacheSnapshotWriter.INTERVAL);
     }
 
     /**
@@ -142,6 +218,79 @@ public class Mahalo
         _Browser.addServiceListener(asType, aListener);
     }
 
+    /**
+     * Deliver events to service listeners on the given executor rather than
+     * Mahalo's own event threads.  Events for any one service are always
+     * delivered in order.
+     */
+    public void setEventExecutor(Executor aExecutor) {
+    	_Browser.setEventExecutor(aExecutor);
+    }
+    
+    /**
+     * Get the dispatcher delivering events to service listeners.  Its queue
+     * depth and listener timings show whether listeners are keeping up.
+     */
+    public ServiceEventDispatcher getEventDispatcher() {
+    	return _Browser.getEventDispatcher();
+    }
+
+    /**
+     * Query for services of a given type without blocking.
+     *
+     * @see MahaloBrowser#queryServices(String, ServiceQueryOptions)
+     */
+    public ServiceQuery queryServices(String asType, ServiceQueryOptions aOptions) {
+    	return _Browser.queryServices(asType, aOptions);
+    }
+
+    /**
+     * Get a publisher for the changes to services of a given type.
+     *
+     * @see MahaloBrowser#getServicePublisher(String)
+     */
+    public ServicePublisher getServicePublisher(String asType) {
+    	return _Browser.getServicePublisher(asType);
+    }
+
+    /**
+     * Get the current snapshot of the resolved services of a given type.
+     *
+     * @see MahaloBrowser#getServiceDirectory(String)
+     */
+    public ServiceDirectory getServiceDirectory(String asType) {
+    	return _Browser.getServiceDirectory(asType);
+    }
+
+    /**
+     * Get the endpoint selector for a given type.
+     *
+     * @see MahaloBrowser#getEndpointSelector(String)
+     */
+    public EndpointSelector getEndpointSelector(String asType) {
+    	return _Browser.getEndpointSelector(asType);
+    }
+
+    /**
+     * Listen for the service types on the link.
+     *
+     * @see MahaloBrowser#addServiceTypeListener(ServiceTypeListener)
+     */
+    public void addServiceTypeListener(ServiceTypeListener aListener) {
+    	_Browser.addServiceTypeListener(aListener);
+    }
+
+    public void removeServiceTypeListener(ServiceTypeListener aListener) {
+    	_Browser.removeServiceTypeListener(aListener);
+    }
+
+    /**
+     * Get the service types heard of so far, without asking the network.
+     */
+    public List<String> getServiceTypes() {
+    	return _Browser.getServiceTypes();
+    }
+
     /**
      * Remove listener for services of a given type.
      *
@@ -149,7 +298,7 @@ public class Mahalo
      */
     public void removeServiceListener(String asType, ServiceListener aListener)
     {
-    	_Browser.addServiceListener(asType, aListener);
+    	_Browser.removeServiceListener(asType, aListener);
     }
 
     /**
@@ -157,21 +306,35 @@ public class Mahalo
      * The name of the service may be changed to make it unique.
      */
     public void registerService(ServiceInfo aInfo) throws IOException {
+    	if(_Broadcaster == null)
+    		throw new IllegalStateException("A passive instance can not register services.");
     	_Broadcaster.registerService(aInfo);
     }
 
+    /**
+     * Register several services at once.  They are probed and announced
+     * together, sharing packets where their records fit.
+     */
+    public void registerServices(Collection<ServiceInfo> aInfos) throws IOException {
+    	if(_Broadcaster == null)
+    		throw new IllegalStateException("A passive instance can not register services.");
+    	_Broadcaster.registerServices(aInfos);
+    }
+
     /**
      * Unregister a service. The service should have been registered.
      */
     public void unregisterService(ServiceInfo aInfo) {
-       _Broadcaster.unregisterService(aInfo);
+       if(_Broadcaster != null)
+    	   _Broadcaster.unregisterService(aInfo);
     }
 
     /**
      * Unregister all services.
      */
     public void unregisterAllServices() {
-        _Broadcaster.unregisterAllServices();
+        if(_Broadcaster != null)
+        	_Broadcaster.unregisterAllServices();
     }
     
     
@@ -181,33 +344,20 @@ public class Mahalo
      */
     public void close() {
     	s_Logger.info("Closing Mahalo mDNS / DNS-DS");
-        _Broadcaster.stop();
+        if(_Broadcaster != null)
+        	_Broadcaster.stop();
+        _Browser.close();
         _MahaloSocket.close();
+        
+        synchronized(this) {
+        	if(_Timer != null) {
+        		_Timer.cancel();
+        		_Timer = null;
+        	}
+        	if(_Snapshot != null) {
+        		// Save one last time so a restart sees the cache as we left it.
+        		new CacheSnapshotWriter(_Cache, _Snapshot).run();
+        	}
+        }
     }
-
-    /**
-     * Register a service type. If this service type was not already known,
-     * all service listeners will be notified of the new service type. Service types
-     * are automatically registered as they are discovered.
-     */
-//    public void registerServiceType(String type)
-//    {
-//        String name = type.toLowerCase();
-//        if (serviceTypes.get(name) == null)
-//        {
-//            if ((type.indexOf("._mdns._udp.") < 0) && !type.endsWith(".in-addr.arpa."))
-//            {
-//                Collection list;
-//                synchronized (this)
-//                {
-//                    serviceTypes.put(name, type);
-//                    list = new LinkedList(typeListeners);
-//                }
-//                for (Iterator iterator = list.iterator(); iterator.hasNext();)
-//                {
-//                    ((ServiceTypeListener) iterator.next()).serviceTypeAdded(new ServiceEvent(this, type, null, null));
-//                }
-//            }
-//        }
-//    }
 }
\ No newline at end of file
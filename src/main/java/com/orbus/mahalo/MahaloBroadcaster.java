@@ -20,11 +20,18 @@ package com.orbus.mahalo;
 import java.io.IOException;
 import java.net.InetAddress;
 import java.net.SocketException;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.Iterator;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
-import java.util.Timer;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
 
 import org.apache.log4j.Logger;
 
@@ -36,17 +43,35 @@ import com.orbus.mahalo.tasks.Canceler;
 import com.orbus.mahalo.tasks.Prober;
 import com.orbus.mahalo.tasks.Responder;
 
+/**
+ * Probes for, announces and answers queries about our local services.
+ * 
+ * Every probe, announcement, cancellation and response runs as a task on a
+ * ScheduledExecutorService.  Unless one is supplied, the broadcaster runs
+ * its own single thread, started when first needed and shut down by stop().
+ * A task that throws is logged and doesn't affect any other task.  Work
+ * the executor turns down, because it has been shut down, is dropped as if
+ * the broadcaster had stopped.
+ *
+ * @author Jeff Ward
+ */
 public class MahaloBroadcaster implements MahaloSocketListener {
 	private final static Logger s_Logger = Logger.getLogger(MahaloBroadcaster.class);
 	
 	private boolean _bOwnsSocket;
 	private MahaloSocket _MahaloSocket;
 	private HostInfo _HostInfo;
-	private Timer _Timer;
+	private ScheduledExecutorService _Executor;
+	private boolean _bOwnsExecutor;
+	private Responder.Pool _Responders;
+	private List<Prober> _Probers = new LinkedList<Prober>();
+	// Truncated queries waiting for the rest of their known answers, keyed by sender.
+	private Map<String, DNSPacket> _TruncatedQueries = new HashMap<String, DNSPacket>();
 	
 	private boolean _bStarted = false;
+	private boolean _bStopped = false;
 	
-	private Map<String, ServiceInfo> _LocalServices = new HashMap<String, ServiceInfo>(20);
+	private ServiceRegistry _LocalServices = new ServiceRegistry();
 	
 	public MahaloBroadcaster(InetAddress aAddress, String asName) throws IOException {
 		this(new MahaloSocket(aAddress), asName);
@@ -56,19 +81,33 @@ public class MahaloBroadcaster implements MahaloSocketListener {
 	}
 	
 	public MahaloBroadcaster(MahaloSocket aSocket, String asName) throws SocketException {
+		this(aSocket, asName, null);
+	}
+	
+	/**
+	 * Create a broadcaster that runs its tasks on the given executor, or on
+	 * its own thread if aExecutor is null.  A supplied executor is never shut
+	 * down by the broadcaster.
+	 */
+	public MahaloBroadcaster(MahaloSocket aSocket, String asName, ScheduledExecutorService aExecutor) throws SocketException {
 		_bOwnsSocket = false;
 		
 		_MahaloSocket = aSocket;
 		_MahaloSocket.addListener(this);
 		
 		_HostInfo = new HostInfo(_MahaloSocket.getBoundAddress(), asName);
-		_Timer = new Timer();
+		_Executor = aExecutor;
+		_bOwnsExecutor = aExecutor == null;
+		_Responders = new Responder.Pool(_MahaloSocket, _HostInfo, _LocalServices);
 	}
 	
 	public void start() {
 		synchronized(_LocalServices) {
-			Prober prober = new Prober(_MahaloSocket, _Timer, _HostInfo, _LocalServices.values());
-	        _Timer.schedule(prober, Prober.GetStartProbeTime(), Prober.INTERVAL);
+			synchronized(this) {
+				_bStopped = false;
+			}
+			_MahaloSocket.addListener(this);
+			startProber(_LocalServices.getServices());
 	        
 	        _bStarted = true;
 		}
@@ -76,14 +115,29 @@ public class MahaloBroadcaster implements MahaloSocketListener {
 	
 	public void stop() {
 		synchronized(_LocalServices) {
-			_Timer.cancel();
-			_Timer = new Timer();
+			for(Prober prober : _Probers)
+				prober.cancel();
+			_Probers.clear();
+			
 			Canceler unregisterCanceler = unregisterAllServices();
 			if(unregisterCanceler!= null) {
 				synchronized (unregisterCanceler) {
 					try {
-						unregisterCanceler.wait();
-					} catch(InterruptedException e) { }
+						while(!unregisterCanceler.isCanceled())
+							unregisterCanceler.wait();
+					} catch(InterruptedException e) {
+						Thread.currentThread().interrupt();
+					}
+				}
+			}
+			
+			// Nothing may schedule work once the executor is gone, or a new one would be made.
+			_MahaloSocket.removeListener(this);
+			synchronized(this) {
+				_bStopped = true;
+				if(_bOwnsExecutor && _Executor != null) {
+					_Executor.shutdown();
+					_Executor = null;
 				}
 			}
 			
@@ -94,56 +148,186 @@ public class MahaloBroadcaster implements MahaloSocketListener {
 		}
 	}
 	
+	/**
+	 * Get the pool of responders answering queries, mostly for its statistics.
+	 */
+	public Responder.Pool getResponderPool() {
+		return _Responders;
+	}
+	
+	/**
+	 * Get the executor to run tasks on, or null once the broadcaster has
+	 * stopped.
+	 */
+	private synchronized ScheduledExecutorService getExecutor() {
+		if(_bStopped)
+			return null;
+		
+		if(_Executor == null) {
+			_Executor = new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+				public Thread newThread(Runnable aRunnable) {
+					Thread thread = new Thread(aRunnable, "Mahalo broadcaster");
+					thread.setDaemon(true);
+					return thread;
+				}
+			});
+		}
+		
+		return _Executor;
+	}
+	
+	/**
+	 * Probe for services, joining the running prober if there is one so the
+	 * whole batch shares its packets.
+	 */
+	private void startProber(Collection<ServiceInfo> aProbeList) {
+		if(!_Probers.isEmpty() && _Probers.get(_Probers.size() - 1).add(aProbeList))
+			return;
+		
+		// Forget probers that have finished, and the announcers they started.
+		for(Iterator<Prober> iter = _Probers.iterator(); iter.hasNext(); ) {
+			if(iter.next().isFinished())
+				iter.remove();
+		}
+		
+		ScheduledExecutorService executor = getExecutor();
+		if(executor == null)
+			return;
+		
+		Prober prober = new Prober(_MahaloSocket, executor, _HostInfo, aProbeList);
+		try {
+			prober.schedule(executor, Prober.GetStartProbeTime(), Prober.INTERVAL);
+		} catch(RejectedExecutionException e) {
+			s_Logger.debug("Executor rejected the prober, not probing.");
+			return;
+		}
+		_Probers.add(prober);
+	}
+	
 	public void registerService(ServiceInfo aInfo) {
+		registerServices(Collections.singletonList(aInfo));
+	}
+	
+	/**
+	 * Register a batch of services.  They are probed and announced together,
+	 * so the packets sent depend on how many the records fill rather than on
+	 * the number of services.
+	 */
+	public void registerServices(Collection<ServiceInfo> aInfos) {
 		//TODO: Check the service name with what's in the cache.
     	//makeServiceNameUnique(info);
     	
         synchronized (_LocalServices)
         {
-            _LocalServices.put(aInfo.getQualifiedName().toLowerCase(), aInfo);
+        	for(ServiceInfo info : aInfos)
+        		_LocalServices.add(info);
             
             if(_bStarted) {
-    	        // We've already started things, so just create a new prober.
-    	        List<ServiceInfo> probeList = new LinkedList<ServiceInfo>();
-    	        probeList.add(aInfo);
-    	        Prober prober = new Prober(_MahaloSocket, _Timer, _HostInfo, probeList);
-    	        _Timer.schedule(prober, Prober.GetStartProbeTime(), Prober.INTERVAL);
+    	        // We've already started things, so hand them to the prober.
+    	        startProber(aInfos);
             }
         }
 	}
 	
 	public void unregisterService(ServiceInfo info)
     {
+        // The last service of a type takes the type out of service type enumeration.
+        List<String> goneTypes = new LinkedList<String>();
         synchronized (_LocalServices)
         {
-            _LocalServices.remove(info.getQualifiedName().toLowerCase());
+            _LocalServices.remove(info.getQualifiedName());
+            if(_LocalServices.getByType(info.getType()).isEmpty())
+            	goneTypes.add(info.getType());
         }
         
+        ScheduledExecutorService executor = getExecutor();
+        if(executor == null)
+        	return;
+        
         List<ServiceInfo> infoList = new LinkedList<ServiceInfo>();
         infoList.add(info);
-        _Timer.schedule(new Canceler(_MahaloSocket, _HostInfo, infoList), 0, Canceler.INTERVAL);
+        try {
+        	new Canceler(_MahaloSocket, _HostInfo, infoList, goneTypes).schedule(executor, 0, Canceler.INTERVAL);
+        } catch(RejectedExecutionException e) {
+        	s_Logger.debug("Executor rejected the canceler, not saying goodbye to " + info.getQualifiedName());
+        }
     }
 	
 	public Canceler unregisterAllServices() { 
-		if (_LocalServices.size() == 0)
+		ScheduledExecutorService executor = getExecutor();
+		if (_LocalServices.isEmpty() || executor == null)
             return null;
         
         List<ServiceInfo> infoList;
+        List<String> goneTypes;
         synchronized (_LocalServices)
         {
-        	infoList = new LinkedList<ServiceInfo>(_LocalServices.values());
-            _LocalServices.clear();
+        	goneTypes = _LocalServices.getTypes();
+        	infoList = _LocalServices.clear();
         }
         
-        Canceler retCanceler = new Canceler(_MahaloSocket, _HostInfo, infoList);
-        _Timer.schedule(retCanceler, 0, Canceler.INTERVAL);
+        Canceler retCanceler = new Canceler(_MahaloSocket, _HostInfo, infoList, goneTypes);
+        try {
+        	retCanceler.schedule(executor, 0, Canceler.INTERVAL);
+        } catch(RejectedExecutionException e) {
+        	// Nobody may wait for a canceler that will never run.
+        	s_Logger.debug("Executor rejected the canceler, not saying goodbye.");
+        	return null;
+        }
         
         return retCanceler;
 	}
 	
 	public void handleQuery(DNSPacket aPacket, InetAddress aAddress, int aiPort) {
 		resolveConflicts(aPacket);
-		Responder responder = new Responder(_MahaloSocket, _HostInfo, _LocalServices, aPacket, aAddress, aiPort);
+		
+		// A truncated query has more known answers coming in the packets that follow it,
+		// so gather them all before answering (see Cheshire draft chapter 7.2).
+		final String ssender = aAddress + ":" + aiPort;
+		synchronized(_TruncatedQueries) {
+			DNSPacket pending = _TruncatedQueries.get(ssender);
+			if(pending != null) {
+				// Every listener has finished with the first packet, so it's safe to add to.
+				pending.getQuestions().addAll(aPacket.getQuestions());
+				pending.getAnswers().addAll(aPacket.getAnswers());
+				return;
+			}
+			
+			if(aPacket.isTruncated()) {
+				ScheduledExecutorService executor = getExecutor();
+				if(executor == null)
+					return;
+				
+				final InetAddress address = aAddress;
+				final int iport = aiPort;
+				try {
+					executor.schedule(new Runnable() {
+						public void run() {
+							DNSPacket query;
+							synchronized(_TruncatedQueries) {
+								query = _TruncatedQueries.remove(ssender);
+							}
+							if(query != null)
+								respond(query, address, iport);
+						}
+					}, Responder.GetTruncatedDelay(), TimeUnit.MILLISECONDS);
+				} catch(RejectedExecutionException e) {
+					return;
+				}
+				_TruncatedQueries.put(ssender, aPacket);
+				return;
+			}
+		}
+		
+		respond(aPacket, aAddress, aiPort);
+	}
+	
+	private void respond(DNSPacket aPacket, InetAddress aAddress, int aiPort) {
+		ScheduledExecutorService executor = getExecutor();
+		if(executor == null)
+			return;
+		
+		Responder responder = _Responders.obtain(aPacket, aAddress, aiPort);
     	
     	// If I can answer every question in this query alone, respond immediately
     	boolean bonlyResponder = true;
@@ -153,14 +337,19 @@ public class MahaloBroadcaster implements MahaloSocketListener {
                     || question.getType() == DNSEntry.EntryType.A
                     || question.getType() == DNSEntry.EntryType.AAAA
                     || _HostInfo.getName().equalsIgnoreCase(question.getName())
-                    || _LocalServices.containsKey(question.getName().toLowerCase()));
+                    || _LocalServices.contains(question.getName()));
     		if(!bonlyResponder)
     			break;
     	}
     	int itimeElapsed = (int)(System.currentTimeMillis() - aPacket.getRecieved());
-    	int idelay = Responder.GetDelay(bonlyResponder, itimeElapsed);
+    	// Only shared answers need a random delay, so other responders don't all answer at once.
+    	int idelay = Responder.GetDelay(!bonlyResponder, itimeElapsed);
     	s_Logger.trace("Scheduling responce in " + idelay + "ms");
-    	_Timer.schedule(responder, idelay);
+    	try {
+    		executor.schedule(responder, idelay, TimeUnit.MILLISECONDS);
+    	} catch(RejectedExecutionException e) {
+    		_Responders.abandon(responder);
+    	}
 	}
 	
 	public void handleResponse(DNSPacket aPacket) {
@@ -171,7 +360,7 @@ public class MahaloBroadcaster implements MahaloSocketListener {
 		// TODO: Conflict resolution
 		for(DNSRecord answer : aPacket.getAnswers()) {
 			// Compare against service:
-			ServiceInfo info = _LocalServices.get(answer.getName().toLowerCase()); 
+			ServiceInfo info = _LocalServices.get(answer.getName()); 
 			if(info != null) {
 				// TODO: Potential service conflict
 			}
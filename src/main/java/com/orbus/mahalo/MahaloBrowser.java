@@ -19,10 +19,17 @@ package com.orbus.mahalo;
 
 import java.io.IOException;
 import java.net.InetAddress;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
+import java.util.Timer;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicLong;
 
 import org.apache.log4j.Logger;
 
@@ -31,14 +38,33 @@ import com.orbus.mahalo.dns.DNSEntry;
 import com.orbus.mahalo.dns.DNSPacket;
 import com.orbus.mahalo.dns.DNSQuestion;
 import com.orbus.mahalo.dns.DNSRecord;
+import com.orbus.mahalo.tasks.BrowseQuerier;
+import com.orbus.mahalo.tasks.QueryScheduler;
+import com.orbus.mahalo.tasks.ServiceResolver;
 
 public class MahaloBrowser implements MahaloSocketListener {
 	private static final Logger s_Logger = Logger.getLogger(MahaloBrowser.class);
 	
 	private boolean _bOwnsSocket;
 	private MahaloSocket _Socket;
-	private Map<String, List<ServiceListener>> _ServiceListeners = new HashMap<String, List<ServiceListener>>();
+	private NameTrie<ServiceListener> _ServiceListeners = new NameTrie<ServiceListener>();
+	private Map<String, BrowseQuerier> _BrowseQueriers = new HashMap<String, BrowseQuerier>();
+	private Timer _Timer = new Timer(true);
+	private ServiceEventDispatcher _Dispatcher = new ServiceEventDispatcher();
 	private DNSCache _Cache;
+	private QueryScheduler _Scheduler;
+	private ServiceResolver _Resolver;
+	private volatile boolean _bLazy;
+	// Resolutions asked for through ServiceEvent.resolve(), keyed by lower case instance name.
+	private Map<String, ServiceResolution> _Resolutions = new HashMap<String, ServiceResolution>();
+	private List<ServicePublisher> _Publishers = new LinkedList<ServicePublisher>();
+	private ConcurrentHashMap<String, DirectoryListener> _Directories = new ConcurrentHashMap<String, DirectoryListener>();
+	private List<ServiceTypeListener> _TypeListeners = new CopyOnWriteArrayList<ServiceTypeListener>();
+	private ConcurrentHashMap<String, EndpointSelector> _Selectors = new ConcurrentHashMap<String, EndpointSelector>();
+	private volatile boolean _bPassive;
+	private AtomicLong _lResponsesHeard = new AtomicLong();
+	private AtomicLong _lRecordsHeard = new AtomicLong();
+	private volatile long _lLastHeard;
 	
 	public MahaloBrowser(InetAddress aAddress) throws IOException {
 		this(new MahaloSocket(aAddress), new DNSCache(100));
@@ -52,61 +78,349 @@ public class MahaloBrowser implements MahaloSocketListener {
 		_Socket = aSocket;
 		_Socket.addListener(this);
 		_Cache = aCache;
+		_Scheduler = new QueryScheduler(_Socket, _Cache, _Timer);
+		_Resolver = new ServiceResolver(_Scheduler, _Cache, _Timer, new ServiceResolver.Listener() {
+			public void serviceFound(String asInstance) {
+				onInstanceFound(asInstance);
+			}
+			public void serviceResolved(String asInstance) {
+				onInstanceResolved(asInstance);
+			}
+			public void serviceLost(String asInstance) {
+				onInstanceLost(asInstance, "No answer from " + asInstance);
+			}
+		});
 	}
 	
 	public void close() {
+		synchronized(_BrowseQueriers) {
+			for(BrowseQuerier querier : _BrowseQueriers.values())
+				querier.cancel();
+			_BrowseQueriers.clear();
+		}
+		_Resolver.cancel();
+		_Scheduler.cancel();
+		synchronized(_Resolutions) {
+			for(ServiceResolution resolution : _Resolutions.values())
+				resolution.complete(null, new IllegalStateException("The browser was closed."));
+			_Resolutions.clear();
+		}
+		List<ServicePublisher> publishers;
+		synchronized(_Publishers) {
+			publishers = new ArrayList<ServicePublisher>(_Publishers);
+			_Publishers.clear();
+		}
+		for(ServicePublisher publisher : publishers)
+			publisher.close();
+		_Timer.cancel();
+		_Dispatcher.shutdown();
+		
 		if(_bOwnsSocket) {
 			_Socket.close();
 		}
 	}
 	
+	/**
+	 * Deliver service events to listeners on the given executor.  Events for any
+	 * one service are still delivered in order.
+	 */
+	public void setEventExecutor(Executor aExecutor) {
+		_Dispatcher.setExecutor(aExecutor);
+	}
+	
+	/**
+	 * In lazy mode, services are reported as soon as a pointer to them is seen,
+	 * with only their name.  Nothing more is asked about a service until
+	 * ServiceEvent.resolve() is called for it.  This saves traffic and cache
+	 * space on networks with many services of a type when only a few are used.
+	 * 
+	 * Services already being resolved when the mode changes are still reported.
+	 */
+	public void setLazyResolution(boolean abLazy) {
+		_bLazy = abLazy;
+	}
+	
+	public boolean isLazyResolution() {
+		return _bLazy;
+	}
+	
+	/**
+	 * In passive mode the browser never transmits.  The cache and service
+	 * events are built only from the responses and announcements other hosts
+	 * multicast, so browsing adds no load to the network, at the cost of
+	 * finding services only as fast as they are announced or asked about by
+	 * someone else.  Use getObservationStats() to see how complete the view is.
+	 */
+	public void setPassive(boolean abPassive) {
+		_bPassive = abPassive;
+		_Scheduler.setPassive(abPassive);
+		_Resolver.setPassive(abPassive);
+	}
+	
+	public boolean isPassive() {
+		return _bPassive;
+	}
+	
+	/**
+	 * Get what the browser has learned from the traffic it has heard.  This
+	 * walks the cache, so it is meant for monitoring rather than tight loops.
+	 */
+	public ObservationStats getObservationStats() {
+		long now = System.currentTimeMillis();
+		int iinstances = 0;
+		int iresolved = 0;
+		for(DNSRecord rec : _Cache.getAllRecords()) {
+			// Service pointers are named for a type, which starts with an underscore.  Subtype
+			// pointers name services their type's pointers already count.
+			if(!(rec instanceof DNSRecord.Pointer) || rec.isExpired(now) || !rec.getName().startsWith("_") ||
+					rec.getName().equalsIgnoreCase(DNSEntry.SERVICE_TYPE_ENUMERATION) ||
+					rec.getName().toLowerCase().indexOf("._sub.") >= 0)
+				continue;
+			
+			++iinstances;
+			DNSRecord.Service srvRec = _Cache.getAssociatedService((DNSRecord.Pointer)rec);
+			if(srvRec != null && _Cache.getAssociatedAddress(srvRec) != null && _Cache.getAssociatedText(srvRec) != null)
+				++iresolved;
+		}
+		
+		return new ObservationStats(now, _lResponsesHeard.get(), _lRecordsHeard.get(), _lLastHeard,
+				iinstances, iresolved, _Cache.getFreshness(now), _Scheduler.getQuestionsSuppressed());
+	}
+	
+	/**
+	 * Get the SRV, TXT and address records for a service instance.  Callers
+	 * resolving the same instance at the same time share one resolution, and
+	 * an instance whose records are all cached resolves straight away.  When
+	 * the browser isn't lazy, an instance it has the SRV and address records
+	 * for has already been reported, so it resolves with what is cached.
+	 * 
+	 * @param asInstance fully qualified instance name, such as <code>foobar._http._tcp.local.</code>.
+	 */
+	public ServiceResolution resolveService(String asInstance) {
+		// Resolving it again would report it as found a second time.
+		if(!_bLazy) {
+			ServiceEvent evt = getEventFromInstance(asInstance);
+			if(evt != null)
+				return ServiceResolution.Completed(evt);
+		}
+		
+		String skey = asInstance.toLowerCase();
+		ServiceResolution resolution;
+		synchronized(_Resolutions) {
+			resolution = _Resolutions.get(skey);
+			if(resolution != null)
+				return resolution;
+			
+			resolution = new ServiceResolution(asInstance);
+			_Resolutions.put(skey, resolution);
+		}
+		
+		_Resolver.resolve(asInstance, true);
+		_Resolver.update();
+		return resolution;
+	}
+	
+	/**
+	 * Get the scheduler sending the browser's queries, mostly for its statistics.
+	 */
+	public QueryScheduler getQueryScheduler() {
+		return _Scheduler;
+	}
+	
+	/**
+	 * Get the dispatcher delivering events to listeners, mostly for its statistics.
+	 */
+	public ServiceEventDispatcher getEventDispatcher() {
+		return _Dispatcher;
+	}
+	
 	public void addServiceListener(String asType, ServiceListener aListener) {
 		asType = asType.toLowerCase();
 		
-		synchronized (_ServiceListeners) {
-            List<ServiceListener> list = _ServiceListeners.get(asType);
-            if (list == null) {
-                list = new LinkedList<ServiceListener>();
-                _ServiceListeners.put(asType, list);
+		synchronized (_BrowseQueriers) {
+            if(_ServiceListeners.add(asType, aListener)) {
+            	// The listener set changed, so start querying from the beginning.
+            	BrowseQuerier querier = _BrowseQueriers.get(asType);
+            	if(querier == null) {
+            		querier = new BrowseQuerier(_Scheduler, _Timer, asType);
+            		_BrowseQueriers.put(asType, querier);
+            	}
+            	querier.reset();
             }
-            
-            if(!list.contains(aListener))
-            	list.add(aListener);
         }
 		
 		// report cached service types
         List<ServiceEvent> events = getCachedServices(asType);
+        List<ServiceListener> listeners = Collections.singletonList(aListener);
         for(ServiceEvent event : events) {
-        	aListener.serviceAdded(event);
+        	_Dispatcher.serviceAdded(listeners, event);
         }
-        
-        // TODO: Set up a timer to repeat this query.
-        DNSPacket packet = new DNSPacket(false);
-        packet.addQuestion(new DNSQuestion(asType, DNSEntry.EntryType.PTR, DNSEntry.EntryClass.IN, false));
-        _Socket.send(packet);
 	}
 	
-	public ServiceEvent[] performSyncServiceQuery(String asType, int aiWait) {
-		final List<ServiceEvent> events = getCachedServices(asType);
+	/**
+	 * Listen for the service types on the link.  The first type listener starts
+	 * browsing for <code>_services._dns-sd._udp.local.</code>, which every
+	 * DNS-SD responder answers with the types it advertises, and the listener
+	 * is told about the types already cached straight away.
+	 */
+	public void addServiceTypeListener(final ServiceTypeListener aListener) {
+		synchronized(_BrowseQueriers) {
+			if(_TypeListeners.contains(aListener))
+				return;
+			
+			_TypeListeners.add(aListener);
+			BrowseQuerier querier = _BrowseQueriers.get(DNSEntry.SERVICE_TYPE_ENUMERATION);
+			if(querier == null) {
+				querier = new BrowseQuerier(_Scheduler, _Timer, DNSEntry.SERVICE_TYPE_ENUMERATION);
+				_BrowseQueriers.put(DNSEntry.SERVICE_TYPE_ENUMERATION, querier);
+			}
+			querier.reset();
+		}
 		
-		ServiceListener listener = new ServiceListener() {
-			public void serviceAdded(ServiceEvent event) {
-				events.add(event);
+		for(final String stype : _Cache.getServiceTypes()) {
+			_Dispatcher.execute(stype, new Runnable() {
+				public void run() {
+					aListener.serviceTypeAdded(stype);
+				}
+			});
+		}
+	}
+	
+	public void removeServiceTypeListener(ServiceTypeListener aListener) {
+		synchronized(_BrowseQueriers) {
+			if(!_TypeListeners.remove(aListener) || !_TypeListeners.isEmpty())
+				return;
+			
+			BrowseQuerier querier = _BrowseQueriers.remove(DNSEntry.SERVICE_TYPE_ENUMERATION);
+			if(querier != null)
+				querier.cancel();
+		}
+	}
+	
+	/**
+	 * Get the service types we have heard of, without asking the network.
+	 */
+	public List<String> getServiceTypes() {
+		return _Cache.getServiceTypes();
+	}
+	
+	/**
+	 * Query for services of a given type without blocking.  The query finishes
+	 * once answers stop arriving, the expected number of services is found or
+	 * the timeout passes, whichever comes first.
+	 * 
+	 * @param asType fully qualified service type, such as <code>_http._tcp.local.</code>.
+	 * @param aOptions when to finish the query, or null for the defaults.
+	 */
+	public ServiceQuery queryServices(String asType, ServiceQueryOptions aOptions) {
+		ServiceQuery query = new ServiceQuery(this, _Timer, asType, aOptions);
+		query.start();
+		return query;
+	}
+	
+	/**
+	 * Get a publisher for the changes to services of a given type.  Unlike a
+	 * ServiceListener, its subscribers control how fast changes are sent to
+	 * them.  The publisher is completed when the browser is closed, or when
+	 * it is closed itself.
+	 * 
+	 * @param asType fully qualified service type, such as <code>_http._tcp.local.</code>.
+	 */
+	public ServicePublisher getServicePublisher(String asType) {
+		ServicePublisher publisher = new ServicePublisher(this, asType);
+		synchronized(_Publishers) {
+			_Publishers.add(publisher);
+		}
+		return publisher;
+	}
+	
+	void removeServicePublisher(ServicePublisher aPublisher) {
+		synchronized(_Publishers) {
+			_Publishers.remove(aPublisher);
+		}
+	}
+	
+	/**
+	 * Get the current snapshot of the resolved services of a given type.  The
+	 * first call for a type starts browsing it and returns an empty directory;
+	 * from then on the browser keeps a directory for the type up to date, and
+	 * getting it takes no locks and doesn't depend on the number of services.
+	 * 
+	 * @param asType fully qualified service type, such as <code>_http._tcp.local.</code>.
+	 * @see #removeServiceDirectory(String)
+	 */
+	public ServiceDirectory getServiceDirectory(String asType) {
+		DirectoryListener listener = _Directories.get(asType);
+		if(listener == null) {
+			String stype = asType.toLowerCase();
+			listener = _Directories.get(stype);
+			if(listener == null) {
+				DirectoryListener newListener = new DirectoryListener(stype);
+				listener = _Directories.putIfAbsent(stype, newListener);
+				if(listener == null) {
+					listener = newListener;
+					addServiceListener(stype, listener);
+				}
 			}
-			public void serviceRemoved(ServiceEvent event) { /* Don't care */ }
-			public void serviceResolved(ServiceEvent event) { /* Don't care */ }
-		};
+		}
 		
-		addServiceListener(asType, listener);
-		DNSPacket packet = new DNSPacket(false);
-        packet.addQuestion(new DNSQuestion(asType, DNSEntry.EntryType.PTR, DNSEntry.EntryClass.IN, false));
-        // TODO: Known answer suppression
-        _Socket.send(packet);
-        
-        try {
-        	Thread.sleep(aiWait);
-        } catch(InterruptedException e) { }
-        removeServiceListener(asType, listener);
+		return listener._Directory;
+	}
+	
+	/**
+	 * Get the resolved services of a given type.
+	 * 
+	 * @see #getServiceDirectory(String)
+	 */
+	public List<ServiceEvent> getServices(String asType) {
+		return getServiceDirectory(asType).getServices();
+	}
+	
+	/**
+	 * Get the endpoint selector for a given type, which picks among the type's
+	 * services by SRV priority and weight.  Like getServiceDirectory, this
+	 * starts browsing the type.
+	 */
+	public EndpointSelector getEndpointSelector(String asType) {
+		String stype = asType.toLowerCase();
+		EndpointSelector selector = _Selectors.get(stype);
+		if(selector == null) {
+			EndpointSelector newSelector = new EndpointSelector(this, stype);
+			selector = _Selectors.putIfAbsent(stype, newSelector);
+			if(selector == null)
+				selector = newSelector;
+		}
+		
+		return selector;
+	}
+	
+	/**
+	 * Stop keeping a directory for a given type.
+	 */
+	public void removeServiceDirectory(String asType) {
+		String stype = asType.toLowerCase();
+		_Selectors.remove(stype);
+		DirectoryListener listener = _Directories.remove(stype);
+		if(listener != null)
+			removeServiceListener(stype, listener);
+	}
+	
+	/**
+	 * Query for services of a given type, waiting at most aiWait milliseconds.
+	 * 
+	 * @deprecated Use queryServices, which doesn't tie up the calling thread.
+	 */
+	@Deprecated
+	public ServiceEvent[] performSyncServiceQuery(String asType, int aiWait) {
+		ServiceQuery query = queryServices(asType, new ServiceQueryOptions(aiWait));
+		List<ServiceEvent> events;
+		try {
+			events = query.get();
+		} catch(InterruptedException e) {
+			query.cancel(false);
+			Thread.currentThread().interrupt();
+			return new ServiceEvent[0];
+		}
         
         ServiceEvent[] eventArray = new ServiceEvent[events.size()];
         events.toArray(eventArray);
@@ -115,22 +429,71 @@ public class MahaloBrowser implements MahaloSocketListener {
 	
 	public void removeServiceListener(String asType, ServiceListener aListener) {
     	asType = asType.toLowerCase();
-    	synchronized(_ServiceListeners) {
-	        List<ServiceListener> list = _ServiceListeners.get(asType);
-	        if (list != null) {
-                list.remove(aListener);
-                if (list.size() == 0)
-                	_ServiceListeners.remove(asType);
+    	synchronized(_BrowseQueriers) {
+	        if (_ServiceListeners.remove(asType, aListener)) {
+	        	BrowseQuerier querier = _BrowseQueriers.get(asType);
+                if (_ServiceListeners.get(asType).isEmpty()) {
+                	_BrowseQueriers.remove(asType);
+                	if(querier != null)
+                		querier.cancel();
+                }
+                else if(querier != null)
+                	querier.reset();
 	        }
     	}
     }
 	
 	public void handleQuery(DNSPacket aPacket, InetAddress aAddress, int aiPort) {
-		// Do nothing.  Browsers don't care about queries
+		// Our own queries come back to us through multicast loopback.  Truncated queries have
+		// more known answers on the way, so we can't tell if they'd suppress answers we need.
+		if(aPacket.isTruncated() || _Socket.getBoundAddress().equals(aAddress))
+			return;
+		
+		for(DNSQuestion question : aPacket.getQuestions()) {
+			// Answers to QU questions go only to the asker, so we wouldn't see them.
+			if(question.getType() != DNSEntry.EntryType.PTR || question.wantsUnicastResponce())
+				continue;
+			
+			BrowseQuerier querier;
+			synchronized(_BrowseQueriers) {
+				querier = _BrowseQueriers.get(question.getName().toLowerCase());
+			}
+			
+			if(querier != null && knowsAllAnswers(question, aPacket.getAnswers()))
+				querier.duplicateQuestionSeen();
+		}
+	}
+	
+	/**
+	 * True if every known answer another host gave for a question is one we would
+	 * have given ourselves.  If it isn't, responders will hold back answers we
+	 * don't have.
+	 */
+	private boolean knowsAllAnswers(DNSQuestion aQuestion, List<DNSRecord> aKnownAnswers) {
+		List<DNSRecord> ourAnswers = _Cache.getKnownAnswers(aQuestion.getName(), aQuestion.getType(), aQuestion.getDNSClass());
+		for(DNSRecord knownAnswer : aKnownAnswers) {
+			if(!(knownAnswer instanceof DNSRecord.Pointer) || !knownAnswer.getName().equalsIgnoreCase(aQuestion.getName()))
+				continue;
+			
+			boolean bfound = false;
+			for(DNSRecord ourAnswer : ourAnswers) {
+				if(((DNSRecord.Pointer)ourAnswer).getAlias().equalsIgnoreCase(((DNSRecord.Pointer)knownAnswer).getAlias())) {
+					bfound = true;
+					break;
+				}
+			}
+			if(!bfound)
+				return false;
+		}
+		
+		return true;
 	}
 	
 	public void handleResponse(DNSPacket aPacket) {
 		long now = System.currentTimeMillis();
+		_lResponsesHeard.incrementAndGet();
+		_lRecordsHeard.addAndGet(aPacket.getAnswers().size());
+		_lLastHeard = now;
 		
 		// This is a bit of a short cut.  Loop through looking for all address records
 		// and add them to the cache.  This prevents us from mistakenly trying to resolve
@@ -142,7 +505,14 @@ public class MahaloBrowser implements MahaloSocketListener {
 			DNSRecord oldRecord = _Cache.handleRecord(rec);
 			boolean bisExpired = rec.isExpired(now);
 			
-			if(oldRecord != null && rec instanceof DNSRecord.Pointer && bisExpired) {
+			if(rec instanceof DNSRecord.Pointer && rec.getName().equalsIgnoreCase(DNSEntry.SERVICE_TYPE_ENUMERATION)) {
+				// Service type enumeration names types, not services, so there is nothing to resolve.
+				if(oldRecord == null && !bisExpired)
+					onServiceTypeChanged(((DNSRecord.Pointer)rec).getAlias(), true);
+				else if(oldRecord != null && bisExpired)
+					onServiceTypeChanged(((DNSRecord.Pointer)rec).getAlias(), false);
+			}
+			else if(oldRecord != null && rec instanceof DNSRecord.Pointer && bisExpired) {
 				// If the cache had a record and it's a pointer that's expired, 
 				// Inform listeners of the service removal
 				
@@ -150,8 +520,8 @@ public class MahaloBrowser implements MahaloSocketListener {
 				
 				// Find the matching SRV record in the cache
 				DNSRecord.Service srvRecord = _Cache.getAssociatedService(ptrRecord);
-				if(srvRecord != null) {
-					ServiceEvent evt = getEventFromRecord((DNSRecord.Service)srvRecord);
+				if(srvRecord != null || _bLazy) {
+					ServiceEvent evt = getEventFromPointer(ptrRecord);
 					if(evt != null)
 						onServiceRemoved(evt);
 					else if(s_Logger.isTraceEnabled())
@@ -159,6 +529,9 @@ public class MahaloBrowser implements MahaloSocketListener {
 				} else if(s_Logger.isTraceEnabled()) {
 					s_Logger.trace("Could not find sevice associated with dying pointer record: " + ptrRecord);
 				}
+				
+				_Resolver.forget(ptrRecord.getAlias());
+				onInstanceLost(ptrRecord.getAlias(), ptrRecord.getAlias() + " has gone away");
 			}
 			else if(oldRecord == null && !bisExpired && 
 					(rec instanceof DNSRecord.Pointer || rec instanceof DNSRecord.Service)) {
@@ -167,28 +540,20 @@ public class MahaloBrowser implements MahaloSocketListener {
 			}
 		}
 		
-		// Second pass.  Only report services which have address information.  If we got a new
-		// pointer and we don't have information on the service, resolve it.
-		// TODO: Attempt to resolve the address first.  Have a callback system to resolve what we need.
+		// Second pass.  Hand new services to the resolver, which reports them once
+		// they have address information and asks for whatever is still missing.
+		// Lazily, only the name is reported, and only for new pointers.
 		for(DNSRecord record : postProcess) {
-			if(record instanceof DNSRecord.Service) {
-				ServiceEvent evt = getEventFromRecord((DNSRecord.Service)record);
-				if(evt != null)
-					onServiceAdded(evt);
-			}
-			else if(record instanceof DNSRecord.Pointer) {
-				// Check to see if we can resolve the service
-				DNSRecord.Pointer ptrRecord = (DNSRecord.Pointer)record;
-				DNSRecord.Service srvRecord = _Cache.getAssociatedService(ptrRecord);
-				if(srvRecord == null) {
-					// Query for the service information
-					// TODO: Add a query task for this:
-					DNSPacket packet = new DNSPacket(false);
-			        packet.addQuestion(new DNSQuestion(ptrRecord.getAlias(), DNSEntry.EntryType.ANY, DNSEntry.EntryClass.IN, false));
-			        _Socket.send(packet);
-				}
+			if(_bLazy) {
+				if(record instanceof DNSRecord.Pointer)
+					onServiceAdded(getEventFromPointer((DNSRecord.Pointer)record));
 			}
+			else if(record instanceof DNSRecord.Service)
+				_Resolver.resolve(record.getName(), _bPassive);
+			else if(record instanceof DNSRecord.Pointer)
+				_Resolver.resolve(((DNSRecord.Pointer)record).getAlias(), _bPassive);
 		}
+		_Resolver.update();
 	}
 	
 	private List<ServiceEvent> getCachedServices(String asType) {
@@ -198,14 +563,37 @@ public class MahaloBrowser implements MahaloSocketListener {
         	for(DNSRecord rec : ptrList) {
         		DNSRecord.Pointer ptrRec = (DNSRecord.Pointer)rec;
         		// Find a matching SRV record if we have one
-        		DNSRecord.Service srvRec = _Cache.getAssociatedService(ptrRec);
-        		events.add(getEventFromRecord(srvRec));
+        		ServiceEvent event = getEventFromPointer(ptrRec);
+        		if(event != null)
+        			events.add(event);
         	}
         }
         
         return events;
 	}
 	
+	/**
+	 * Get the event for the service a pointer names.  Without its records, the
+	 * event only has the service's name in lazy mode, and is null otherwise.
+	 */
+	private ServiceEvent getEventFromPointer(DNSRecord.Pointer aPtrRecord) {
+		DNSRecord.Service srvRec = _Cache.getAssociatedService(aPtrRecord);
+		ServiceEvent retEvent = srvRec != null ? getEventFromRecord(srvRec) : null;
+		
+		if(retEvent == null && _bLazy) {
+			String salias = aPtrRecord.getAlias();
+			String stype = aPtrRecord.getName();
+			String sname;
+			if(salias.length() > stype.length() && salias.toLowerCase().endsWith("." + stype.toLowerCase()))
+				sname = salias.substring(0, salias.length() - stype.length() - 1);
+			else
+				sname = salias.substring(0, salias.indexOf('.'));
+			retEvent = new ServiceEvent(this, new ServiceInfo(stype, sname, 0, 0, 0, (byte[])null), null);
+		}
+		
+		return retEvent;
+	}
+	
 	private ServiceEvent getEventFromRecord(DNSRecord.Service aSrvRecord) {
 		ServiceEvent retEvent = null;
 		
@@ -225,38 +613,115 @@ public class MahaloBrowser implements MahaloSocketListener {
 		return retEvent;
 	}
 	
+	private void onInstanceFound(String asInstance) {
+		// Lazy services were reported when their pointer turned up.
+		if(_bLazy)
+			return;
+		
+		ServiceEvent evt = getEventFromInstance(asInstance);
+		if(evt != null)
+			onServiceAdded(evt);
+	}
+	
+	private void onInstanceResolved(String asInstance) {
+		ServiceEvent evt = getEventFromInstance(asInstance);
+		ServiceResolution resolution;
+		synchronized(_Resolutions) {
+			resolution = _Resolutions.remove(asInstance.toLowerCase());
+		}
+		if(resolution != null) {
+			if(evt != null)
+				resolution.complete(evt, null);
+			else
+				resolution.complete(null, new IllegalStateException("The records for " + asInstance + " have expired."));
+		}
+		if(evt == null)
+			return;
+		
+		List<ServiceListener> listeners = _ServiceListeners.match(evt.getSrvInfo().getQualifiedName());
+		if(listeners.size() > 0)
+			s_Logger.debug("Reporting resolved service (" + asInstance + ") to " + listeners.size() + " listners.");
+		_Dispatcher.serviceResolved(listeners, evt);
+	}
+	
+	private void onInstanceLost(String asInstance, String asReason) {
+		ServiceResolution resolution;
+		synchronized(_Resolutions) {
+			resolution = _Resolutions.remove(asInstance.toLowerCase());
+		}
+		if(resolution != null)
+			resolution.complete(null, new IOException(asReason));
+	}
+	
+	private ServiceEvent getEventFromInstance(String asInstance) {
+		List<DNSRecord> list = _Cache.get(asInstance, DNSEntry.EntryType.SRV, DNSEntry.EntryClass.IN);
+		if(list == null || list.isEmpty())
+			return null;
+		return getEventFromRecord((DNSRecord.Service)list.get(0));
+	}
+	
+	private void onServiceTypeChanged(final String asType, final boolean abAdded) {
+		s_Logger.debug("Reporting service type " + (abAdded ? "added" : "removed") + " (" + asType + ") to " + 
+				_TypeListeners.size() + " listeners.");
+		for(final ServiceTypeListener listener : _TypeListeners) {
+			_Dispatcher.execute(asType, new Runnable() {
+				public void run() {
+					if(abAdded)
+						listener.serviceTypeAdded(asType);
+					else
+						listener.serviceTypeRemoved(asType);
+				}
+			});
+		}
+	}
+	
 	private void onServiceAdded(ServiceEvent aEvent)
     {
-    	// Must search each key since you can search for services on many different levels,
-		// inluding checking for all local services with "local."
+    	// Listeners can be registered at many different levels, including listening for
+		// all local services with "local.", so this finds every level the name falls under.
 		ServiceInfo srvInfo = aEvent.getSrvInfo();
 		RemoteHostInfo hostInfo = aEvent.getHostInfo();
-    	synchronized(_ServiceListeners) {
-	    	for(String key : _ServiceListeners.keySet()) {
-				if(srvInfo.getQualifiedName().endsWith(key)) {
-					s_Logger.debug("Reporting new service (" + srvInfo.getQualifiedName() + "@" + hostInfo.getAddress() + ") to " + key + " listners.");
-					List<ServiceListener> listeners = _ServiceListeners.get(key);
-					for(ServiceListener listener : listeners) {
-	    				listener.serviceAdded(aEvent);
-	    			}
-				}
-			}
-    	}
+		List<ServiceListener> listeners = _ServiceListeners.match(srvInfo.getQualifiedName());
+		if(listeners.size() > 0)
+			s_Logger.debug("Reporting new service (" + srvInfo.getQualifiedName() + "@" + 
+					(hostInfo != null ? hostInfo.getAddress() : "unresolved") + ") to " + listeners.size() + " listners.");
+		_Dispatcher.serviceAdded(listeners, aEvent);
     }
 	    
     private void onServiceRemoved(ServiceEvent aEvent) 
     {
     	ServiceInfo srvInfo = aEvent.getSrvInfo();
-    	synchronized(_ServiceListeners) {
-    		for(String key : _ServiceListeners.keySet()) {
-				if(srvInfo.getQualifiedName().endsWith(key)) {
-					s_Logger.debug("Reporting service removal (" + srvInfo.getQualifiedName() + ") to " + key +  " listners.");
-					List<ServiceListener> listeners = _ServiceListeners.get(key);
-					for(ServiceListener listener : listeners) {
-	    				listener.serviceRemoved(aEvent);
-	    			}
-				}
-    		}
+    	List<ServiceListener> listeners = _ServiceListeners.match(srvInfo.getQualifiedName());
+    	if(listeners.size() > 0)
+    		s_Logger.debug("Reporting service removal (" + srvInfo.getQualifiedName() + ") to " + listeners.size() +  " listners.");
+    	_Dispatcher.serviceRemoved(listeners, aEvent);
+    }
+    
+    /**
+     * Keeps the directory for one type up to date.  Events for any one service
+     * arrive in order, but events for different services can arrive at once,
+     * so each new directory is made while holding the listener.
+     */
+    private static class DirectoryListener implements ServiceListener {
+    	private volatile ServiceDirectory _Directory;
+    	
+    	DirectoryListener(String asType) {
+    		_Directory = new ServiceDirectory(asType);
+    	}
+    	
+    	public synchronized void serviceAdded(ServiceEvent aEvent) {
+    		// Lazily browsed services only go in once they are resolved.
+    		if(aEvent.isResolved())
+    			_Directory = _Directory.withService(aEvent);
+    	}
+    	
+    	public synchronized void serviceRemoved(ServiceEvent aEvent) {
+    		_Directory = _Directory.withoutService(aEvent.getSrvInfo().getQualifiedName());
+    	}
+    	
+    	public synchronized void serviceResolved(ServiceEvent aEvent) {
+    		if(aEvent.isResolved())
+    			_Directory = _Directory.withService(aEvent);
     	}
     }
 }
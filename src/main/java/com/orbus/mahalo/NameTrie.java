@@ -0,0 +1,167 @@
+/**
+ * Copyright 2007 Jeff Ward
+ * Portions may be pulled from JmDNS and are therefore
+ * the copyright of the JmDNS team
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.orbus.mahalo;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Maps DNS names to values, stored by label from the root down, so that all
+ * the values registered for a name and every domain above it can be found in
+ * one walk down the trie.  For example, a value registered for
+ * <code>_http._tcp.local.</code> and one registered for <code>local.</code>
+ * both match <code>foo._http._tcp.local.</code>.
+ *
+ * Names are compared without case.  The trie is copied on write, so reads
+ * never lock and always see a consistent trie.
+ *
+ * @author Jeff Ward
+ */
+public class NameTrie<V>
+{
+	private volatile Node<V> _Root = new Node<V>();
+
+	/**
+	 * Add a value for a name.
+	 *
+	 * @return false if the value was already registered for the name.
+	 */
+	public synchronized boolean add(String asName, V aValue) {
+		String[] labels = split(asName);
+		if(find(labels).contains(aValue))
+			return false;
+
+		_Root = copyWith(_Root, labels, 0, aValue, true);
+		return true;
+	}
+
+	/**
+	 * Remove a value for a name.
+	 *
+	 * @return false if the value was not registered for the name.
+	 */
+	public synchronized boolean remove(String asName, V aValue) {
+		String[] labels = split(asName);
+		if(!find(labels).contains(aValue))
+			return false;
+
+		Node<V> root = copyWith(_Root, labels, 0, aValue, false);
+		_Root = root != null ? root : new Node<V>();
+		return true;
+	}
+
+	/**
+	 * Get the values registered for exactly this name.
+	 */
+	public List<V> get(String asName) {
+		return find(split(asName));
+	}
+
+	/**
+	 * Get the values registered for this name and for every domain above it,
+	 * starting at the root.
+	 */
+	public List<V> match(String asName) {
+		String[] labels = split(asName);
+		Node<V> node = _Root;
+		List<V> retList = null;
+
+		for(int i = labels.length - 1; i >= 0 && node != null; --i) {
+			node = node._Children.get(labels[i]);
+			if(node != null && node._Values.size() > 0) {
+				if(retList == null)
+					retList = new ArrayList<V>(node._Values);
+				else
+					retList.addAll(node._Values);
+			}
+		}
+
+		if(retList == null)
+			return Collections.emptyList();
+		return retList;
+	}
+
+	private List<V> find(String[] aLabels) {
+		Node<V> node = _Root;
+		for(int i = aLabels.length - 1; i >= 0 && node != null; --i)
+			node = node._Children.get(aLabels[i]);
+
+		if(node == null)
+			return Collections.emptyList();
+		return node._Values;
+	}
+
+	/**
+	 * Copy the path to a name, adding or removing a value at its end.  Nodes
+	 * left with no values and no children are dropped.
+	 */
+	private Node<V> copyWith(Node<V> aNode, String[] aLabels, int aiDepth, V aValue, boolean abAdd) {
+		Node<V> copy = aNode != null ? new Node<V>(aNode) : new Node<V>();
+
+		if(aiDepth == aLabels.length) {
+			List<V> values = new ArrayList<V>(copy._Values);
+			if(abAdd)
+				values.add(aValue);
+			else
+				values.remove(aValue);
+			copy._Values = Collections.unmodifiableList(values);
+		}
+		else {
+			String slabel = aLabels[aLabels.length - 1 - aiDepth];
+			Node<V> child = copyWith(aNode != null ? aNode._Children.get(slabel) : null,
+					aLabels, aiDepth + 1, aValue, abAdd);
+			Map<String, Node<V>> children = new HashMap<String, Node<V>>(copy._Children);
+			if(child != null)
+				children.put(slabel, child);
+			else
+				children.remove(slabel);
+			copy._Children = children;
+		}
+
+		if(copy._Values.isEmpty() && copy._Children.isEmpty())
+			return null;
+		return copy;
+	}
+
+	private static String[] split(String asName) {
+		String sname = asName.toLowerCase();
+		if(sname.endsWith("."))
+			sname = sname.substring(0, sname.length() - 1);
+		if(sname.length() == 0)
+			return new String[0];
+		return sname.split("\\.");
+	}
+
+	private static class Node<V> {
+		private Map<String, Node<V>> _Children;
+		private List<V> _Values;
+
+		Node() {
+			_Children = Collections.emptyMap();
+			_Values = Collections.emptyList();
+		}
+
+		Node(Node<V> aOther) {
+			_Children = aOther._Children;
+			_Values = aOther._Values;
+		}
+	}
+}
@@ -0,0 +1,123 @@
+/**
+ * Copyright 2007 Jeff Ward
+ * Portions may be pulled from JmDNS and are therefore
+ * the copyright of the JmDNS team
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.orbus.mahalo;
+
+/**
+ * What a browser has learned from the traffic it has heard, taken at one
+ * moment.  Mostly of interest in passive mode, where overheard traffic is
+ * the only source of records, to see how current and complete the view of
+ * the network is.
+ *
+ * @see MahaloBrowser#getObservationStats()
+ * @author Jeff Ward
+ */
+public class ObservationStats
+{
+	private long _lTime;
+	private long _lResponsesHeard;
+	private long _lRecordsHeard;
+	private long _lLastHeard;
+	private int _iInstanceCount;
+	private int _iResolvedCount;
+	private float _fFreshness;
+	private long _lQuestionsSuppressed;
+
+	ObservationStats(long alTime, long alResponsesHeard, long alRecordsHeard, long alLastHeard,
+			int aiInstanceCount, int aiResolvedCount, float afFreshness, long alQuestionsSuppressed) {
+		_lTime = alTime;
+		_lResponsesHeard = alResponsesHeard;
+		_lRecordsHeard = alRecordsHeard;
+		_lLastHeard = alLastHeard;
+		_iInstanceCount = aiInstanceCount;
+		_iResolvedCount = aiResolvedCount;
+		_fFreshness = afFreshness;
+		_lQuestionsSuppressed = alQuestionsSuppressed;
+	}
+
+	/**
+	 * The time the statistics were taken.
+	 */
+	public long getTime() {
+		return _lTime;
+	}
+
+	/**
+	 * The number of responses and announcements heard.
+	 */
+	public long getResponsesHeard() {
+		return _lResponsesHeard;
+	}
+
+	/**
+	 * The number of records in the responses heard, including repeats.
+	 */
+	public long getRecordsHeard() {
+		return _lRecordsHeard;
+	}
+
+	/**
+	 * The time the last response was heard, or zero if none has been.
+	 */
+	public long getLastHeardTime() {
+		return _lLastHeard;
+	}
+
+	/**
+	 * The number of service instances in the cache.
+	 */
+	public int getInstanceCount() {
+		return _iInstanceCount;
+	}
+
+	/**
+	 * The number of service instances with their SRV, TXT and address records
+	 * all in the cache.
+	 */
+	public int getResolvedCount() {
+		return _iResolvedCount;
+	}
+
+	/**
+	 * The fraction of service instances that are resolved, or zero if there are
+	 * none.
+	 */
+	public float getCoverage() {
+		return _iInstanceCount > 0 ? (float)_iResolvedCount / _iInstanceCount : 0;
+	}
+
+	/**
+	 * The fraction of their TTL the cached records have left, on average.
+	 *
+	 * @see com.orbus.mahalo.dns.DNSCache#getFreshness(long)
+	 */
+	public float getFreshness() {
+		return _fFreshness;
+	}
+
+	/**
+	 * The number of questions passive mode kept us from sending.
+	 */
+	public long getQuestionsSuppressed() {
+		return _lQuestionsSuppressed;
+	}
+
+	public String toString() {
+		return "heard " + _lResponsesHeard + " responses (" + _lRecordsHeard + " records), " + 
+			_iResolvedCount + "/" + _iInstanceCount + " services resolved, freshness " + _fFreshness;
+	}
+}
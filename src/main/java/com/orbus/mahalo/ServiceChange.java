@@ -0,0 +1,48 @@
+/**
+ * Copyright 2007 Jeff Ward
+ * Portions may be pulled from JmDNS and are therefore
+ * the copyright of the JmDNS team
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.orbus.mahalo;
+
+/**
+ * A change to a browsed service, as published by ServicePublisher.
+ *
+ * @author Jeff Ward
+ */
+public class ServiceChange
+{
+	public enum Type { ADDED, REMOVED, RESOLVED }
+
+	private Type _eType;
+	private ServiceEvent _Event;
+
+	public ServiceChange(Type aeType, ServiceEvent aEvent) {
+		_eType = aeType;
+		_Event = aEvent;
+	}
+
+	public Type getType() {
+		return _eType;
+	}
+
+	public ServiceEvent getEvent() {
+		return _Event;
+	}
+
+	public String toString() {
+		return _eType + " " + _Event;
+	}
+}
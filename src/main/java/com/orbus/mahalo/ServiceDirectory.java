@@ -0,0 +1,114 @@
+/**
+ * Copyright 2007 Jeff Ward
+ * Portions may be pulled from JmDNS and are therefore
+ * the copyright of the JmDNS team
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.orbus.mahalo;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A snapshot of the resolved services of one type.  A directory never
+ * changes; the browser replaces it with a new one, with a higher version,
+ * each time a service of the type comes, goes or changes.  Comparing
+ * versions is enough to tell if anything changed between two snapshots.
+ *
+ * @see MahaloBrowser#getServiceDirectory(String)
+ * @author Jeff Ward
+ */
+public class ServiceDirectory
+{
+	private String _sType;
+	private long _lVersion;
+	// Keyed by lower case qualified name, in the order services were found.
+	private Map<String, ServiceEvent> _Services;
+	private List<ServiceEvent> _ServiceList;
+	
+	/**
+	 * Create an empty directory.  Browsers build their own; this is for
+	 * building one by hand, such as to feed an EndpointSelector in a test.
+	 */
+	public ServiceDirectory(String asType) {
+		this(asType, 0, new LinkedHashMap<String, ServiceEvent>());
+	}
+	
+	private ServiceDirectory(String asType, long alVersion, Map<String, ServiceEvent> aServices) {
+		_sType = asType;
+		_lVersion = alVersion;
+		_Services = aServices;
+		_ServiceList = Collections.unmodifiableList(new ArrayList<ServiceEvent>(aServices.values()));
+	}
+	
+	public String getType() {
+		return _sType;
+	}
+	
+	public long getVersion() {
+		return _lVersion;
+	}
+	
+	/**
+	 * Get the services, in the order they were found.  The list can't be changed.
+	 */
+	public List<ServiceEvent> getServices() {
+		return _ServiceList;
+	}
+	
+	/**
+	 * Get a service by its fully qualified name, or null if it isn't in the directory.
+	 */
+	public ServiceEvent getService(String asQualifiedName) {
+		return _Services.get(asQualifiedName.toLowerCase());
+	}
+	
+	public int size() {
+		return _ServiceList.size();
+	}
+	
+	public boolean isEmpty() {
+		return _ServiceList.isEmpty();
+	}
+	
+	/**
+	 * Get the directory with a service added or updated.
+	 */
+	public ServiceDirectory withService(ServiceEvent aEvent) {
+		Map<String, ServiceEvent> services = new LinkedHashMap<String, ServiceEvent>(_Services);
+		services.put(aEvent.getSrvInfo().getQualifiedName().toLowerCase(), aEvent);
+		return new ServiceDirectory(_sType, _lVersion + 1, services);
+	}
+	
+	/**
+	 * Get the directory without a service, or this directory if it didn't
+	 * have the service.
+	 */
+	public ServiceDirectory withoutService(String asQualifiedName) {
+		String skey = asQualifiedName.toLowerCase();
+		if(!_Services.containsKey(skey))
+			return this;
+		
+		Map<String, ServiceEvent> services = new LinkedHashMap<String, ServiceEvent>(_Services);
+		services.remove(skey);
+		return new ServiceDirectory(_sType, _lVersion + 1, services);
+	}
+	
+	public String toString() {
+		return "directory[" + _sType + ",Version:" + _lVersion + ",Services:" + _ServiceList.size() + "]";
+	}
+}
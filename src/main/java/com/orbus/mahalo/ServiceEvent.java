@@ -47,6 +47,28 @@ public class ServiceEvent extends EventObject
         return _HostInfo;
     }
 
+    /**
+     * False if this event only names the service, as when a browser is
+     * resolving lazily.  Use resolve() to get the rest.
+     */
+    public boolean isResolved() {
+        return _HostInfo != null;
+    }
+
+    /**
+     * Get the full details of the service.  If this event already has them,
+     * the resolution is finished before it is returned.
+     *
+     * @see MahaloBrowser#setLazyResolution(boolean)
+     */
+    public ServiceResolution resolve() throws IllegalStateException {
+        if(isResolved())
+            return ServiceResolution.Completed(this);
+        if(!(getSource() instanceof MahaloBrowser))
+            throw new IllegalStateException("Only events from a MahaloBrowser can be resolved.");
+        return ((MahaloBrowser)getSource()).resolveService(_SrvInfo.getQualifiedName());
+    }
+
     public String toString()
     {
         StringBuffer buf = new StringBuffer();
@@ -0,0 +1,281 @@
+/**
+ * Copyright 2007 Jeff Ward
+ * Portions may be pulled from JmDNS and are therefore
+ * the copyright of the JmDNS team
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.orbus.mahalo;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Delivers service events to listeners on an executor instead of the
+ * socket thread, so a slow listener can't hold up discovery.
+ *
+ * Events for the same service are delivered one at a time in the order
+ * they happened.  Events for different services may be delivered at the
+ * same time on different threads.
+ *
+ * @author Jeff Ward
+ */
+public class ServiceEventDispatcher
+{
+	private static final Logger s_Logger = Logger.getLogger(ServiceEventDispatcher.class);
+
+	public static final int DEFAULT_THREADS = 4;
+
+	private volatile Executor _Executor;
+	private ExecutorService _OwnedExecutor;
+
+	// Deliveries waiting for each service, keyed by lower case qualified name.
+	private Map<String, LinkedList<Delivery>> _Queues = new HashMap<String, LinkedList<Delivery>>();
+
+	private AtomicInteger _iQueueDepth = new AtomicInteger();
+	private AtomicLong _lDelivered = new AtomicLong();
+	private AtomicLong _lListenerNanos = new AtomicLong();
+	private AtomicLong _lMaxListenerNanos = new AtomicLong();
+
+	/**
+	 * Create a dispatcher with its own pool of DEFAULT_THREADS daemon threads.
+	 */
+	public ServiceEventDispatcher() {
+		_OwnedExecutor = Executors.newFixedThreadPool(DEFAULT_THREADS, new ThreadFactory() {
+			private AtomicInteger _iCount = new AtomicInteger();
+
+			public Thread newThread(Runnable aRunnable) {
+				Thread thread = new Thread(aRunnable, "Mahalo event dispatch " + _iCount.incrementAndGet());
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+		_Executor = _OwnedExecutor;
+	}
+
+	/**
+	 * Create a dispatcher that delivers events on the given executor.
+	 */
+	public ServiceEventDispatcher(Executor aExecutor) {
+		setExecutor(aExecutor);
+	}
+
+	/**
+	 * Deliver events on a different executor from now on.  If the dispatcher
+	 * created its own threads, they are shut down once they finish.
+	 */
+	public void setExecutor(Executor aExecutor) throws IllegalArgumentException {
+		if(aExecutor == null)
+			throw new IllegalArgumentException("aExecutor can not be null.");
+
+		_Executor = aExecutor;
+		if(_OwnedExecutor != null) {
+			_OwnedExecutor.shutdown();
+			_OwnedExecutor = null;
+		}
+	}
+
+	public void shutdown() {
+		if(_OwnedExecutor != null)
+			_OwnedExecutor.shutdown();
+	}
+
+	public void serviceAdded(List<ServiceListener> aListeners, ServiceEvent aEvent) {
+		dispatch(aListeners, aEvent, Kind.ADDED);
+	}
+
+	public void serviceRemoved(List<ServiceListener> aListeners, ServiceEvent aEvent) {
+		dispatch(aListeners, aEvent, Kind.REMOVED);
+	}
+
+	public void serviceResolved(List<ServiceListener> aListeners, ServiceEvent aEvent) {
+		dispatch(aListeners, aEvent, Kind.RESOLVED);
+	}
+
+	/**
+	 * Make some other call on the event threads, in order with every other
+	 * call made under the same key.
+	 */
+	void execute(String asKey, Runnable aCall) {
+		enqueue(asKey.toLowerCase(), Collections.singletonList(new Delivery(aCall)));
+	}
+
+	/**
+	 * The number of listener calls waiting to be made.
+	 */
+	public int getQueueDepth() {
+		return _iQueueDepth.get();
+	}
+
+	/**
+	 * The number of listener calls made so far.
+	 */
+	public long getDeliveredCount() {
+		return _lDelivered.get();
+	}
+
+	/**
+	 * The total time spent inside listeners, in nanoseconds.
+	 */
+	public long getTotalListenerNanos() {
+		return _lListenerNanos.get();
+	}
+
+	/**
+	 * The longest time a single listener call has taken, in nanoseconds.
+	 */
+	public long getMaxListenerNanos() {
+		return _lMaxListenerNanos.get();
+	}
+
+	private void dispatch(List<ServiceListener> aListeners, ServiceEvent aEvent, Kind aeKind) {
+		if(aListeners.isEmpty())
+			return;
+
+		List<Delivery> deliveries = new ArrayList<Delivery>(aListeners.size());
+		for(ServiceListener listener : aListeners)
+			deliveries.add(new Delivery(listener, aEvent, aeKind));
+		enqueue(aEvent.getSrvInfo().getQualifiedName().toLowerCase(), deliveries);
+	}
+
+	private void enqueue(final String asKey, List<Delivery> aDeliveries) {
+		boolean bstartDrain = false;
+		synchronized(_Queues) {
+			LinkedList<Delivery> queue = _Queues.get(asKey);
+			if(queue == null) {
+				// No drain is running for this key, so we need to start one.
+				queue = new LinkedList<Delivery>();
+				_Queues.put(asKey, queue);
+				bstartDrain = true;
+			}
+			queue.addAll(aDeliveries);
+			_iQueueDepth.addAndGet(aDeliveries.size());
+		}
+
+		if(bstartDrain)
+			startDrain(asKey);
+	}
+
+	/**
+	 * Hand the drain for a key to the executor.  If the executor won't take
+	 * it, the waiting calls are dropped so the next event for the key starts
+	 * a fresh drain rather than queueing forever behind one that never runs.
+	 */
+	private void startDrain(final String asKey) {
+		try {
+			_Executor.execute(new Runnable() {
+				public void run() {
+					drain(asKey);
+				}
+			});
+		} catch(RuntimeException e) {
+			int idropped;
+			synchronized(_Queues) {
+				LinkedList<Delivery> queue = _Queues.remove(asKey);
+				idropped = queue != null ? queue.size() : 0;
+				_iQueueDepth.addAndGet(-idropped);
+			}
+			s_Logger.error("Executor refused event delivery, dropped " + idropped + " calls for " + asKey, e);
+		}
+	}
+
+	/**
+	 * Make every call queued for a service, in order, until its queue is empty.
+	 */
+	private void drain(String asKey) {
+		boolean bdrained = false;
+		try {
+			while(true) {
+				Delivery delivery;
+				synchronized(_Queues) {
+					LinkedList<Delivery> queue = _Queues.get(asKey);
+					if(queue.isEmpty()) {
+						_Queues.remove(asKey);
+						bdrained = true;
+						return;
+					}
+					delivery = queue.removeFirst();
+				}
+
+				_iQueueDepth.decrementAndGet();
+				long start = System.nanoTime();
+				try {
+					delivery.deliver();
+				} catch(RuntimeException e) {
+					s_Logger.error("Listener threw an exception handling " + (delivery._Event != null ? delivery._Event : "a call"), e);
+				}
+				long elapsed = System.nanoTime() - start;
+
+				_lDelivered.incrementAndGet();
+				_lListenerNanos.addAndGet(elapsed);
+				long max = _lMaxListenerNanos.get();
+				while(elapsed > max && !_lMaxListenerNanos.compareAndSet(max, elapsed))
+					max = _lMaxListenerNanos.get();
+			}
+		} finally {
+			// An Error escaped a listener, so carry on with the rest on a new drain.
+			if(!bdrained)
+				startDrain(asKey);
+		}
+	}
+
+	private enum Kind { ADDED, REMOVED, RESOLVED }
+
+	private static class Delivery {
+		private ServiceListener _Listener;
+		private ServiceEvent _Event;
+		private Kind _eKind;
+		private Runnable _Call;
+
+		Delivery(ServiceListener aListener, ServiceEvent aEvent, Kind aeKind) {
+			_Listener = aListener;
+			_Event = aEvent;
+			_eKind = aeKind;
+		}
+
+		Delivery(Runnable aCall) {
+			_Call = aCall;
+		}
+
+		void deliver() {
+			if(_Call != null) {
+				_Call.run();
+				return;
+			}
+
+			switch(_eKind) {
+			case ADDED:
+				_Listener.serviceAdded(_Event);
+				break;
+			case REMOVED:
+				_Listener.serviceRemoved(_Event);
+				break;
+			case RESOLVED:
+				_Listener.serviceResolved(_Event);
+				break;
+			}
+		}
+	}
+}
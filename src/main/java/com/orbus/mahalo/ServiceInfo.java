@@ -17,8 +17,10 @@
  */
 package com.orbus.mahalo;
 
-import java.nio.ByteBuffer;
-import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
 
 import com.orbus.mahalo.dns.DNSRecord;
 
@@ -30,8 +32,6 @@ import com.orbus.mahalo.dns.DNSRecord;
  */
 public class ServiceInfo
 {
-	private static final Charset s_Charset = Charset.forName("UTF-8");
-	
 	private String _sServiceType;
     private String _sName;
     //private String _sServer;
@@ -39,7 +39,10 @@ public class ServiceInfo
     private int _iWeight;
     private int _iPriority;
     private byte[] _Text;
+    private ServiceText _TextModel;
+    private String _sTextString;
     private ServiceState _eState = ServiceState.PROBING_1;
+    private List<String> _Subtypes = Collections.emptyList();
     
     public ServiceInfo(String asType, String asName, int aiPort, String asText)
     	throws IllegalArgumentException
@@ -50,8 +53,7 @@ public class ServiceInfo
     public ServiceInfo(String asType, String asName, int aiPort, int aiWeight, int aiPriority, String asText)
     	throws IllegalArgumentException
     {
-        this(asType, asName, aiPort, aiWeight, aiPriority, (byte[]) null);
-        _Text = s_Charset.encode(asText).array();        
+        this(asType, asName, aiPort, aiWeight, aiPriority, ServiceText.encode(asText));
     }
 
     public ServiceInfo(String asType, String asName, int aiPort, int aiWeight, int aiPriority, byte[] aText) 
@@ -72,6 +74,7 @@ public class ServiceInfo
     public ServiceInfo(ServiceInfo aInfo) throws IllegalArgumentException
     {
         this(aInfo._sServiceType, aInfo._sName, aInfo._iPort, aInfo._iWeight, aInfo._iPriority, aInfo._Text);
+        _Subtypes = aInfo._Subtypes;
     }
     
     public ServiceInfo(DNSRecord.Service aServiceRecord) {
@@ -101,6 +104,36 @@ public class ServiceInfo
         return _sServiceType;
     }
 
+    /**
+     * Subtypes the service can also be browsed by, such as <code>_printer</code> .
+     */
+    public List<String> getSubtypes()
+    {
+    	return _Subtypes;
+    }
+    
+    /**
+     * Set the subtypes of the service.  Subtypes are indexed when the service
+     * is registered, so set them before then.
+     */
+    public void setSubtypes(Collection<String> aSubtypes) throws IllegalArgumentException
+    {
+    	for(String ssubtype : aSubtypes) {
+    		if(ssubtype.length() == 0 || ssubtype.indexOf('.') >= 0)
+    			throw new IllegalArgumentException("Subtypes are a single label, such as _printer: " + ssubtype + " is invalid.");
+    	}
+    	_Subtypes = Collections.unmodifiableList(new ArrayList<String>(aSubtypes));
+    }
+    
+    /**
+     * The name browsed for a subtype of this service, such as
+     * <code>_printer._sub._http._tcp.local.</code> .
+     */
+    public String getSubtypeName(String asSubtype)
+    {
+    	return asSubtype + "._sub." + _sServiceType;
+    }
+
     /**
      * Unqualified service instance name, such as <code>foobar</code> .
      */
@@ -142,7 +175,7 @@ public class ServiceInfo
     }
 
     /**
-     * Get the text for the serivce as raw bytes.
+     * Get the text for the serivce as raw bytes, as they appear in the TXT record.
      */
     public byte[] getTextBytes()
     {
@@ -150,24 +183,47 @@ public class ServiceInfo
     }
 
     /**
-     * Get the text for the service. This will interpret the text bytes
-     * as a UTF8 encoded string. Will return null if the bytes are not
-     * a valid UTF8 encoded string.
+     * Get the text for the service.  The strings in the TXT record are decoded
+     * as UTF8 and joined together, which gives back the text the service was
+     * created with.  Use getText() to read key/value attributes.
      */
-    public String getTextString()
+    public synchronized String getTextString()
     {
-    	if(_Text != null)
-    		return s_Charset.decode(ByteBuffer.wrap(_Text)).toString();
-    	else
+    	if(_Text == null)
     		return null;
+    	
+    	if(_sTextString == null) {
+    		StringBuffer buf = new StringBuffer();
+    		for(String string : getText().getStrings())
+    			buf.append(string);
+    		_sTextString = buf.toString();
+    	}
+    	return _sTextString;
+    }
+    
+    /**
+     * Get the key/value attributes in the service's TXT record.
+     */
+    public synchronized ServiceText getText() {
+    	if(_TextModel == null)
+    		_TextModel = new ServiceText(_Text);
+    	return _TextModel;
+    }
+    
+    public synchronized void setText(ServiceText aText) {
+    	_Text = aText.getBytes();
+    	_TextModel = aText;
+    	_sTextString = null;
     }
     
-    public void setTextBytes(byte[] aBytes) {
+    public synchronized void setTextBytes(byte[] aBytes) {
     	_Text = aBytes;
+    	_TextModel = null;
+    	_sTextString = null;
     }
     
     public void setTextString(String asText) {
-    	_Text = s_Charset.encode(asText).array();
+    	setTextBytes(ServiceText.encode(asText));
     }
 
     @Override
@@ -21,6 +21,10 @@ import java.util.EventListener;
 
 /**
  * Listener for service updates.
+ * 
+ * Listeners are called on Mahalo's event threads (see ServiceEventDispatcher),
+ * never on the thread reading the socket.  Events for one service arrive in
+ * order, but events for different services may arrive at the same time.
  *
  * @version %I%, %G%
  * @author	Arthur van Hoff, Werner Randelshofer
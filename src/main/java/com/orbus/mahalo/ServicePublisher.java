@@ -0,0 +1,296 @@
+/**
+ * Copyright 2007 Jeff Ward
+ * Portions may be pulled from JmDNS and are therefore
+ * the copyright of the JmDNS team
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.orbus.mahalo;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Publishes the changes to the services of one type as a stream with flow
+ * control.  Each subscriber says how many changes it is ready for, and
+ * nothing more is sent until it asks again.
+ * 
+ * Changes waiting for a subscriber are kept one per service.  If a service
+ * changes again before the subscriber has taken the last change, the new
+ * change replaces the old one, so a slow subscriber sees the latest state of
+ * each service rather than every step along the way.  A service that comes
+ * and goes before the subscriber takes its add is not sent at all.  What a
+ * subscriber can fall behind by is limited to the number of services of the
+ * type, however many announcements arrive.
+ * 
+ * Subscribers are told about the services already in the cache first, in
+ * the same way ServiceListeners are.
+ *
+ * @author Jeff Ward
+ */
+public class ServicePublisher
+{
+	private static final Logger s_Logger = Logger.getLogger(ServicePublisher.class);
+
+	private MahaloBrowser _Browser;
+	private String _sType;
+	private List<Subscription> _Subscriptions = new LinkedList<Subscription>();
+	private boolean _bClosed;
+	private AtomicLong _lConflated = new AtomicLong();
+
+	ServicePublisher(MahaloBrowser aBrowser, String asType) {
+		_Browser = aBrowser;
+		_sType = asType.toLowerCase();
+	}
+
+	/**
+	 * Create a publisher that gets its changes through listen(), for
+	 * subclasses that don't get them from a browser.
+	 */
+	protected ServicePublisher(String asType) {
+		this(null, asType);
+	}
+
+	public String getType() {
+		return _sType;
+	}
+
+	public void subscribe(ServiceSubscriber aSubscriber) throws IllegalArgumentException {
+		if(aSubscriber == null)
+			throw new IllegalArgumentException("aSubscriber can not be null.");
+
+		Subscription subscription = new Subscription(aSubscriber);
+		boolean bclosed;
+		synchronized(_Subscriptions) {
+			bclosed = _bClosed;
+			if(!bclosed)
+				_Subscriptions.add(subscription);
+		}
+
+		aSubscriber.onSubscribe(subscription);
+		if(bclosed)
+			subscription.complete();
+		else
+			listen(subscription);
+	}
+
+	/**
+	 * Complete every subscription and let the browser forget the publisher.
+	 * Changes not yet sent are dropped.
+	 */
+	public void close() {
+		List<Subscription> subscriptions;
+		synchronized(_Subscriptions) {
+			_bClosed = true;
+			subscriptions = new LinkedList<Subscription>(_Subscriptions);
+		}
+		if(_Browser != null)
+			_Browser.removeServicePublisher(this);
+
+		for(Subscription subscription : subscriptions)
+			subscription.complete();
+	}
+
+	/**
+	 * The number of subscribers still subscribed.
+	 */
+	public int getSubscriberCount() {
+		synchronized(_Subscriptions) {
+			return _Subscriptions.size();
+		}
+	}
+
+	/**
+	 * The number of changes replaced by a newer change for the same service
+	 * before a subscriber took them.  A removal that cancels out an add the
+	 * subscriber never took counts for both.
+	 */
+	public long getConflatedCount() {
+		return _lConflated.get();
+	}
+
+	private void unsubscribe(Subscription aSubscription) {
+		synchronized(_Subscriptions) {
+			_Subscriptions.remove(aSubscription);
+		}
+		stopListening(aSubscription);
+	}
+
+	/**
+	 * Start passing the changes to services of the type to a subscription.
+	 */
+	protected void listen(ServiceListener aListener) {
+		_Browser.addServiceListener(_sType, aListener);
+	}
+
+	protected void stopListening(ServiceListener aListener) {
+		_Browser.removeServiceListener(_sType, aListener);
+	}
+
+	private class Subscription implements ServiceSubscription, ServiceListener {
+		private ServiceSubscriber _Subscriber;
+
+		// Changes waiting to be sent, keyed by lower case qualified name.
+		private Map<String, ServiceChange> _Pending = new LinkedHashMap<String, ServiceChange>();
+		private long _lDemand;
+		private boolean _bDraining;
+		private boolean _bCanceled;
+		private Throwable _Error;
+		private boolean _bComplete;
+
+		Subscription(ServiceSubscriber aSubscriber) {
+			_Subscriber = aSubscriber;
+		}
+
+		public void request(long alCount) {
+			synchronized(this) {
+				if(_bCanceled)
+					return;
+
+				if(alCount <= 0)
+					_Error = new IllegalArgumentException("Subscribers must request a positive number of changes.");
+				else if(Long.MAX_VALUE - _lDemand < alCount)
+					_lDemand = Long.MAX_VALUE;
+				else
+					_lDemand += alCount;
+			}
+
+			drain();
+		}
+
+		public void cancel() {
+			synchronized(this) {
+				if(_bCanceled)
+					return;
+				_bCanceled = true;
+				_Pending.clear();
+			}
+
+			unsubscribe(this);
+		}
+
+		public void serviceAdded(ServiceEvent aEvent) {
+			offer(new ServiceChange(ServiceChange.Type.ADDED, aEvent));
+		}
+
+		public void serviceRemoved(ServiceEvent aEvent) {
+			offer(new ServiceChange(ServiceChange.Type.REMOVED, aEvent));
+		}
+
+		public void serviceResolved(ServiceEvent aEvent) {
+			offer(new ServiceChange(ServiceChange.Type.RESOLVED, aEvent));
+		}
+
+		void complete() {
+			synchronized(this) {
+				if(_bCanceled)
+					return;
+				_bComplete = true;
+			}
+
+			drain();
+		}
+
+		private void offer(ServiceChange aChange) {
+			String skey = aChange.getEvent().getSrvInfo().getQualifiedName().toLowerCase();
+			synchronized(this) {
+				if(_bCanceled)
+					return;
+				
+				ServiceChange oldChange = _Pending.get(skey);
+				if(oldChange != null && oldChange.getType() == ServiceChange.Type.ADDED) {
+					if(aChange.getType() == ServiceChange.Type.REMOVED) {
+						// The subscriber never heard of it, so it needn't hear it left.
+						_Pending.remove(skey);
+						_lConflated.addAndGet(2);
+						return;
+					}
+					
+					// Still news to the subscriber, now with the latest details.
+					aChange = new ServiceChange(ServiceChange.Type.ADDED, aChange.getEvent());
+				}
+				
+				// Replacing the value of an existing key keeps its place in line.
+				if(_Pending.put(skey, aChange) != null)
+					_lConflated.incrementAndGet();
+			}
+
+			drain();
+		}
+
+		/**
+		 * Send what the subscriber has asked for.  Only one thread sends at a
+		 * time; any other thread arriving just leaves its change for it.
+		 */
+		private void drain() {
+			synchronized(this) {
+				if(_bDraining)
+					return;
+				_bDraining = true;
+			}
+
+			while(true) {
+				ServiceChange change;
+				Throwable error = null;
+				boolean bcomplete = false;
+				synchronized(this) {
+					if(_bCanceled) {
+						_bDraining = false;
+						return;
+					}
+					
+					if(_Error != null || _bComplete) {
+						error = _Error;
+						bcomplete = _Error == null;
+						_bCanceled = true;
+						_Pending.clear();
+						change = null;
+					}
+					else if(_lDemand == 0 || _Pending.isEmpty()) {
+						_bDraining = false;
+						return;
+					}
+					else {
+						Iterator<ServiceChange> iter = _Pending.values().iterator();
+						change = iter.next();
+						iter.remove();
+						if(_lDemand != Long.MAX_VALUE)
+							--_lDemand;
+					}
+				}
+
+				if(change == null) {
+					unsubscribe(this);
+					if(bcomplete)
+						_Subscriber.onComplete();
+					else
+						_Subscriber.onError(error);
+					return;
+				}
+
+				try {
+					_Subscriber.onNext(change);
+				} catch(RuntimeException e) {
+					s_Logger.error("Subscriber to " + _sType + " threw an exception, canceling its subscription", e);
+					cancel();
+				}
+			}
+		}
+	}
+}
@@ -0,0 +1,222 @@
+/**
+ * Copyright 2007 Jeff Ward
+ * Portions may be pulled from JmDNS and are therefore
+ * the copyright of the JmDNS team
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.orbus.mahalo;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import org.apache.log4j.Logger;
+
+/**
+ * A query for the services of one type that runs in the background.  The
+ * result is the list of services found, complete with address information.
+ * Use get() to wait for it, or addCompletionListener() to be told when it is
+ * ready without holding a thread.
+ *
+ * @see ServiceQueryOptions for when the query finishes.
+ * @author Jeff Ward
+ */
+public class ServiceQuery implements Future<List<ServiceEvent>>
+{
+	private static final Logger s_Logger = Logger.getLogger(ServiceQuery.class);
+
+	private MahaloBrowser _Browser;
+	private Timer _Timer;
+	private String _sType;
+	private ServiceQueryOptions _Options;
+
+	private Map<String, ServiceEvent> _Found = new LinkedHashMap<String, ServiceEvent>();
+	private List<Runnable> _CompletionListeners = new LinkedList<Runnable>();
+	private CountDownLatch _Done = new CountDownLatch(1);
+	private boolean _bDone;
+	private boolean _bCanceled;
+	private List<ServiceEvent> _Result;
+
+	private TimerTask _TimeoutTask;
+	private TimerTask _QuietTask;
+
+	private ServiceListener _Listener = new ServiceListener() {
+		public void serviceAdded(ServiceEvent aEvent) {
+			onServiceAdded(aEvent);
+		}
+		public void serviceRemoved(ServiceEvent aEvent) {
+			onServiceRemoved(aEvent);
+		}
+		public void serviceResolved(ServiceEvent aEvent) { /* Don't care */ }
+	};
+
+	ServiceQuery(MahaloBrowser aBrowser, Timer aTimer, String asType, ServiceQueryOptions aOptions) {
+		_Browser = aBrowser;
+		_Timer = aTimer;
+		_sType = asType;
+		_Options = aOptions != null ? aOptions : new ServiceQueryOptions();
+	}
+
+	/**
+	 * Start listening.  Cached services are reported straight away and
+	 * adding the listener sets off the network queries.
+	 */
+	void start() {
+		synchronized(this) {
+			_TimeoutTask = new TimerTask() {
+				@Override
+				public void run() {
+					complete(false);
+				}
+			};
+			_Timer.schedule(_TimeoutTask, _Options.getTimeout());
+		}
+
+		_Browser.addServiceListener(_sType, _Listener);
+		
+		// A very short timeout could have finished us before we started listening.
+		if(isDone())
+			_Browser.removeServiceListener(_sType, _Listener);
+	}
+
+	public String getType() {
+		return _sType;
+	}
+
+	/**
+	 * Run the listener once the query is finished, on whichever thread
+	 * finishes it.  If the query is already finished it runs right away.
+	 */
+	public void addCompletionListener(Runnable aListener) {
+		synchronized(this) {
+			if(!_bDone) {
+				_CompletionListeners.add(aListener);
+				return;
+			}
+		}
+
+		aListener.run();
+	}
+
+	public boolean cancel(boolean abMayInterruptIfRunning) {
+		synchronized(this) {
+			if(_bDone)
+				return false;
+		}
+
+		return complete(true);
+	}
+
+	public synchronized boolean isCancelled() {
+		return _bCanceled;
+	}
+
+	public synchronized boolean isDone() {
+		return _bDone;
+	}
+
+	public List<ServiceEvent> get() throws InterruptedException {
+		_Done.await();
+		return getResult();
+	}
+
+	public List<ServiceEvent> get(long alTimeout, TimeUnit aUnit) throws InterruptedException, TimeoutException {
+		if(!_Done.await(alTimeout, aUnit))
+			throw new TimeoutException("Query for " + _sType + " is still running.");
+		return getResult();
+	}
+
+	private synchronized List<ServiceEvent> getResult() {
+		if(_bCanceled)
+			throw new CancellationException("Query for " + _sType + " was canceled.");
+		return _Result;
+	}
+
+	private void onServiceAdded(ServiceEvent aEvent) {
+		boolean bcomplete = false;
+		synchronized(this) {
+			if(_bDone)
+				return;
+
+			_Found.put(aEvent.getSrvInfo().getQualifiedName().toLowerCase(), aEvent);
+			if(_Options.getExpectedCount() > 0 && _Found.size() >= _Options.getExpectedCount())
+				bcomplete = true;
+			else if(_Options.getQuietPeriod() > 0)
+				restartQuietPeriod();
+		}
+
+		if(bcomplete)
+			complete(false);
+	}
+
+	private synchronized void onServiceRemoved(ServiceEvent aEvent) {
+		if(!_bDone)
+			_Found.remove(aEvent.getSrvInfo().getQualifiedName().toLowerCase());
+	}
+
+	private void restartQuietPeriod() {
+		if(_QuietTask != null)
+			_QuietTask.cancel();
+
+		_QuietTask = new TimerTask() {
+			@Override
+			public void run() {
+				complete(false);
+			}
+		};
+		_Timer.schedule(_QuietTask, _Options.getQuietPeriod());
+	}
+
+	private boolean complete(boolean abCanceled) {
+		List<Runnable> listeners;
+		synchronized(this) {
+			if(_bDone)
+				return false;
+
+			_bDone = true;
+			_bCanceled = abCanceled;
+			_Result = new ArrayList<ServiceEvent>(_Found.values());
+			if(_TimeoutTask != null)
+				_TimeoutTask.cancel();
+			if(_QuietTask != null)
+				_QuietTask.cancel();
+
+			listeners = _CompletionListeners;
+			_CompletionListeners = null;
+		}
+
+		_Browser.removeServiceListener(_sType, _Listener);
+		_Done.countDown();
+
+		s_Logger.debug("Query for " + _sType + (abCanceled ? " canceled" : " finished") + " with " + _Result.size() + " services.");
+		for(Runnable listener : listeners) {
+			try {
+				listener.run();
+			} catch(RuntimeException e) {
+				s_Logger.error("Query completion listener threw an exception", e);
+			}
+		}
+
+		return true;
+	}
+}
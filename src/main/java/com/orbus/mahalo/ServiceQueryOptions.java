@@ -0,0 +1,84 @@
+/**
+ * Copyright 2007 Jeff Ward
+ * Portions may be pulled from JmDNS and are therefore
+ * the copyright of the JmDNS team
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.orbus.mahalo;
+
+/**
+ * Controls when a ServiceQuery stops waiting for answers.  A query finishes
+ * at the first of: the timeout passing, the quiet period passing with no new
+ * answers, or the expected number of services being found.
+ *
+ * @author Jeff Ward
+ */
+public class ServiceQueryOptions
+{
+	public static final int DEFAULT_TIMEOUT = 3000;
+	public static final int DEFAULT_QUIET_PERIOD = 1000;
+
+	private int _iTimeout = DEFAULT_TIMEOUT;
+	private int _iQuietPeriod = DEFAULT_QUIET_PERIOD;
+	private int _iExpectedCount = 0;
+
+	public ServiceQueryOptions() {
+
+	}
+
+	public ServiceQueryOptions(int aiTimeout) {
+		setTimeout(aiTimeout);
+	}
+
+	/**
+	 * The longest the query will wait, in milliseconds.
+	 */
+	public int getTimeout() {
+		return _iTimeout;
+	}
+
+	public void setTimeout(int aiTimeout) throws IllegalArgumentException {
+		if(aiTimeout <= 0)
+			throw new IllegalArgumentException("aiTimeout must be positive.");
+		_iTimeout = aiTimeout;
+	}
+
+	/**
+	 * How long, in milliseconds, the query waits after the last answer before
+	 * deciding no more are coming.  Zero waits for the full timeout.
+	 */
+	public int getQuietPeriod() {
+		return _iQuietPeriod;
+	}
+
+	public void setQuietPeriod(int aiQuietPeriod) throws IllegalArgumentException {
+		if(aiQuietPeriod < 0)
+			throw new IllegalArgumentException("aiQuietPeriod can not be negative.");
+		_iQuietPeriod = aiQuietPeriod;
+	}
+
+	/**
+	 * The number of services that, once found, completes the query.  Zero
+	 * means the number is not known.
+	 */
+	public int getExpectedCount() {
+		return _iExpectedCount;
+	}
+
+	public void setExpectedCount(int aiExpectedCount) throws IllegalArgumentException {
+		if(aiExpectedCount < 0)
+			throw new IllegalArgumentException("aiExpectedCount can not be negative.");
+		_iExpectedCount = aiExpectedCount;
+	}
+}
@@ -0,0 +1,186 @@
+/**
+ * Copyright 2007 Jeff Ward
+ * Portions may be pulled from JmDNS and are therefore
+ * the copyright of the JmDNS team
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.orbus.mahalo;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * The services registered on this host, indexed by qualified name, by type
+ * and by subtype so a question can be answered without looking at services
+ * it doesn't match.
+ *
+ * Changes are made one at a time, but reads take no locks.  The lists
+ * returned are snapshots that registrations made afterwards don't change,
+ * so they can be iterated while services come and go.  Names are compared
+ * without case.
+ *
+ * @author Jeff Ward
+ */
+public class ServiceRegistry
+{
+	private Map<String, ServiceInfo> _ByName = new ConcurrentHashMap<String, ServiceInfo>();
+	// The lists in these are never changed, only replaced.
+	private Map<String, List<ServiceInfo>> _ByType = new ConcurrentHashMap<String, List<ServiceInfo>>();
+	private Map<String, List<ServiceInfo>> _BySubtype = new ConcurrentHashMap<String, List<ServiceInfo>>();
+
+	/**
+	 * Add a service, replacing any with the same qualified name.
+	 *
+	 * @return the service replaced, or null if there wasn't one.
+	 */
+	public synchronized ServiceInfo add(ServiceInfo aInfo) {
+		ServiceInfo old = _ByName.put(aInfo.getQualifiedName().toLowerCase(), aInfo);
+		if(old != null)
+			unindex(old);
+
+		index(_ByType, aInfo.getType(), aInfo, true);
+		for(String ssubtype : aInfo.getSubtypes())
+			index(_BySubtype, aInfo.getSubtypeName(ssubtype), aInfo, true);
+		return old;
+	}
+
+	/**
+	 * Remove the service with a qualified name.
+	 *
+	 * @return the service removed, or null if there wasn't one.
+	 */
+	public synchronized ServiceInfo remove(String asQualifiedName) {
+		ServiceInfo old = _ByName.remove(asQualifiedName.toLowerCase());
+		if(old != null)
+			unindex(old);
+		return old;
+	}
+
+	/**
+	 * Remove every service.
+	 *
+	 * @return the services removed.
+	 */
+	public synchronized List<ServiceInfo> clear() {
+		List<ServiceInfo> retList = new ArrayList<ServiceInfo>(_ByName.values());
+		_ByName.clear();
+		_ByType.clear();
+		_BySubtype.clear();
+		return retList;
+	}
+
+	public ServiceInfo get(String asQualifiedName) {
+		return _ByName.get(asQualifiedName.toLowerCase());
+	}
+
+	public boolean contains(String asQualifiedName) {
+		return _ByName.containsKey(asQualifiedName.toLowerCase());
+	}
+
+	public int size() {
+		return _ByName.size();
+	}
+
+	public boolean isEmpty() {
+		return _ByName.isEmpty();
+	}
+
+	/**
+	 * Get a snapshot of every service.
+	 */
+	public List<ServiceInfo> getServices() {
+		return new ArrayList<ServiceInfo>(_ByName.values());
+	}
+
+	/**
+	 * Get the services of exactly this type.
+	 */
+	public List<ServiceInfo> getByType(String asType) {
+		List<ServiceInfo> list = _ByType.get(asType.toLowerCase());
+		if(list == null)
+			return Collections.emptyList();
+		return list;
+	}
+
+	/**
+	 * Get the services with a subtype, given the name browsed for it, such as
+	 * <code>_printer._sub._http._tcp.local.</code> .
+	 */
+	public List<ServiceInfo> getBySubtype(String asSubtypeName) {
+		List<ServiceInfo> list = _BySubtype.get(asSubtypeName.toLowerCase());
+		if(list == null)
+			return Collections.emptyList();
+		return list;
+	}
+
+	/**
+	 * Get the services whose type is a name or falls under it, so
+	 * <code>_tcp.local.</code> matches every TCP service.  Exact types are
+	 * looked up directly; anything else only looks at the types registered.
+	 */
+	public List<ServiceInfo> match(String asName) {
+		String sname = asName.toLowerCase();
+		List<ServiceInfo> list = _ByType.get(sname);
+		if(list != null)
+			return list;
+
+		List<ServiceInfo> retList = null;
+		String ssuffix = "." + sname;
+		for(Map.Entry<String, List<ServiceInfo>> entry : _ByType.entrySet()) {
+			if(entry.getKey().endsWith(ssuffix)) {
+				if(retList == null)
+					retList = new ArrayList<ServiceInfo>();
+				retList.addAll(entry.getValue());
+			}
+		}
+
+		if(retList == null)
+			return Collections.emptyList();
+		return retList;
+	}
+
+	/**
+	 * Get the types of the services registered.
+	 */
+	public List<String> getTypes() {
+		List<String> retList = new ArrayList<String>(_ByType.size());
+		for(List<ServiceInfo> list : _ByType.values())
+			retList.add(list.get(0).getType());
+		return retList;
+	}
+
+	private void unindex(ServiceInfo aInfo) {
+		index(_ByType, aInfo.getType(), aInfo, false);
+		for(String ssubtype : aInfo.getSubtypes())
+			index(_BySubtype, aInfo.getSubtypeName(ssubtype), aInfo, false);
+	}
+
+	private static void index(Map<String, List<ServiceInfo>> aIndex, String asKey, ServiceInfo aInfo, boolean abAdd) {
+		String skey = asKey.toLowerCase();
+		List<ServiceInfo> list = aIndex.get(skey);
+		List<ServiceInfo> newList = list != null ? new ArrayList<ServiceInfo>(list) : new ArrayList<ServiceInfo>(1);
+		if(abAdd)
+			newList.add(aInfo);
+		else
+			newList.remove(aInfo);
+
+		if(newList.isEmpty())
+			aIndex.remove(skey);
+		else
+			aIndex.put(skey, Collections.unmodifiableList(newList));
+	}
+}
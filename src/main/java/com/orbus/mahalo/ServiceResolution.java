@@ -0,0 +1,141 @@
+/**
+ * Copyright 2007 Jeff Ward
+ * Portions may be pulled from JmDNS and are therefore
+ * the copyright of the JmDNS team
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.orbus.mahalo;
+
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import org.apache.log4j.Logger;
+
+/**
+ * The pending result of resolving one service instance: its SRV, TXT and
+ * address records, delivered as a complete ServiceEvent.  Everyone resolving
+ * the same instance at the same time shares one resolution, so it can't be
+ * canceled by any one of them.
+ *
+ * @see ServiceEvent#resolve()
+ * @author Jeff Ward
+ */
+public class ServiceResolution implements Future<ServiceEvent>
+{
+	private static final Logger s_Logger = Logger.getLogger(ServiceResolution.class);
+
+	private String _sInstance;
+	private List<Runnable> _CompletionListeners = new LinkedList<Runnable>();
+	private CountDownLatch _Done = new CountDownLatch(1);
+	private boolean _bDone;
+	private ServiceEvent _Result;
+	private Throwable _Error;
+
+	ServiceResolution(String asInstance) {
+		_sInstance = asInstance;
+	}
+
+	/**
+	 * Create a resolution that has already finished.
+	 */
+	static ServiceResolution Completed(ServiceEvent aEvent) {
+		ServiceResolution retResolution = new ServiceResolution(aEvent.getSrvInfo().getQualifiedName());
+		retResolution.complete(aEvent, null);
+		return retResolution;
+	}
+
+	public String getInstance() {
+		return _sInstance;
+	}
+
+	/**
+	 * Run the listener once the resolution is finished, on whichever thread
+	 * finishes it.  If it is already finished it runs right away.
+	 */
+	public void addCompletionListener(Runnable aListener) {
+		synchronized(this) {
+			if(!_bDone) {
+				_CompletionListeners.add(aListener);
+				return;
+			}
+		}
+
+		aListener.run();
+	}
+
+	/**
+	 * Resolutions are shared, so they can't be canceled.
+	 * 
+	 * @return false
+	 */
+	public boolean cancel(boolean abMayInterruptIfRunning) {
+		return false;
+	}
+
+	public boolean isCancelled() {
+		return false;
+	}
+
+	public synchronized boolean isDone() {
+		return _bDone;
+	}
+
+	public ServiceEvent get() throws InterruptedException, ExecutionException {
+		_Done.await();
+		return getResult();
+	}
+
+	public ServiceEvent get(long alTimeout, TimeUnit aUnit) throws InterruptedException, ExecutionException, TimeoutException {
+		if(!_Done.await(alTimeout, aUnit))
+			throw new TimeoutException("Still resolving " + _sInstance);
+		return getResult();
+	}
+
+	private synchronized ServiceEvent getResult() throws ExecutionException {
+		if(_Error != null)
+			throw new ExecutionException(_Error);
+		return _Result;
+	}
+
+	/**
+	 * Finish with either a result or an error.
+	 */
+	void complete(ServiceEvent aEvent, Throwable aError) {
+		List<Runnable> listeners;
+		synchronized(this) {
+			if(_bDone)
+				return;
+
+			_bDone = true;
+			_Result = aEvent;
+			_Error = aError;
+			listeners = _CompletionListeners;
+			_CompletionListeners = null;
+		}
+
+		_Done.countDown();
+		for(Runnable listener : listeners) {
+			try {
+				listener.run();
+			} catch(RuntimeException e) {
+				s_Logger.error("Resolution completion listener threw an exception", e);
+			}
+		}
+	}
+}
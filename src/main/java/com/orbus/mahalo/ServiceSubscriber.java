@@ -0,0 +1,46 @@
+/**
+ * Copyright 2007 Jeff Ward
+ * Portions may be pulled from JmDNS and are therefore
+ * the copyright of the JmDNS team
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.orbus.mahalo;
+
+/**
+ * Receives service changes from a ServicePublisher, at most as many as it has
+ * asked for through its ServiceSubscription.  Calls for one subscriber are
+ * never made at the same time.
+ *
+ * @author Jeff Ward
+ */
+public interface ServiceSubscriber
+{
+	/**
+	 * Called once, before any other call.  Nothing is sent until request() is
+	 * called on the subscription.
+	 */
+	void onSubscribe(ServiceSubscription aSubscription);
+
+	void onNext(ServiceChange aChange);
+
+	/**
+	 * The subscription failed, and no more calls will be made.
+	 */
+	void onError(Throwable aError);
+
+	/**
+	 * The publisher was closed, and no more calls will be made.
+	 */
+	void onComplete();
+}
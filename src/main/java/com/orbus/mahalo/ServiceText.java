@@ -0,0 +1,232 @@
+/**
+ * Copyright 2007 Jeff Ward
+ * Portions may be pulled from JmDNS and are therefore
+ * the copyright of the JmDNS team
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.orbus.mahalo;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * The key/value attributes of a service's TXT record, as described in
+ * Cheshire draft chapter 6 (DNS-SD).  The record is a series of strings,
+ * each preceded by its length, and each string is either "key=value" or
+ * just "key" for a boolean attribute.  Keys are compared without case and
+ * only the first of a repeated key counts.
+ * 
+ * The wire bytes are kept as they are, so writing the record again costs
+ * nothing.  The keys are indexed the first time an attribute is asked for,
+ * and each value is only decoded when it is asked for.
+ *
+ * @author Jeff Ward
+ */
+public class ServiceText
+{
+	private static final Charset s_Charset = Charset.forName("UTF-8");
+	private static final int MAX_STRING_LENGTH = 255;
+	
+	private byte[] _Bytes;
+	private volatile Map<String, Attribute> _Attributes;
+	
+	/**
+	 * @param aBytes the TXT record data, as it appears on the wire.
+	 */
+	public ServiceText(byte[] aBytes) {
+		_Bytes = aBytes != null ? aBytes : new byte[] { 0 };
+	}
+	
+	/**
+	 * Encode attributes.  A null value makes a boolean attribute with no "=".
+	 */
+	public static ServiceText create(Map<String, String> aAttributes) throws IllegalArgumentException {
+		List<byte[]> strings = new ArrayList<byte[]>();
+		for(Map.Entry<String, String> entry : aAttributes.entrySet()) {
+			if(entry.getKey().length() == 0 || entry.getKey().indexOf('=') >= 0)
+				throw new IllegalArgumentException("Invalid TXT attribute key: '" + entry.getKey() + "'");
+			
+			String sattribute = entry.getValue() != null ? entry.getKey() + "=" + entry.getValue() : entry.getKey();
+			byte[] attribute = toBytes(sattribute);
+			if(attribute.length > MAX_STRING_LENGTH)
+				throw new IllegalArgumentException("TXT attribute " + entry.getKey() + " is longer than " + MAX_STRING_LENGTH + " bytes.");
+			strings.add(attribute);
+		}
+		
+		return new ServiceText(join(strings));
+	}
+	
+	/**
+	 * Encode free form text, split into as many strings as it takes.  Strings
+	 * are only split between characters, so each decodes on its own.
+	 */
+	public static byte[] encode(String asText) {
+		byte[] text = toBytes(asText);
+		List<byte[]> strings = new ArrayList<byte[]>();
+		for(int i = 0; i < text.length; ) {
+			int iend = Math.min(i + MAX_STRING_LENGTH, text.length);
+			// Step back over UTF-8 continuation bytes (10xxxxxx) to a character start.
+			while(iend < text.length && iend > i && (text[iend] & 0xC0) == 0x80)
+				--iend;
+			
+			byte[] string = new byte[iend - i];
+			System.arraycopy(text, i, string, 0, string.length);
+			strings.add(string);
+			i = iend;
+		}
+		
+		return join(strings);
+	}
+	
+	/**
+	 * Get the TXT record data, as it appears on the wire.
+	 */
+	public byte[] getBytes() {
+		return _Bytes;
+	}
+	
+	public boolean containsKey(String asKey) {
+		return getAttributes().containsKey(asKey.toLowerCase());
+	}
+	
+	/**
+	 * Get the value of an attribute.
+	 * 
+	 * @return the value, or null if the attribute is missing or has no value.
+	 */
+	public String getValue(String asKey) {
+		Attribute attribute = getAttributes().get(asKey.toLowerCase());
+		if(attribute == null || attribute._iLength < 0)
+			return null;
+		
+		String svalue = attribute._sValue;
+		if(svalue == null) {
+			svalue = s_Charset.decode(ByteBuffer.wrap(_Bytes, attribute._iOffset, attribute._iLength)).toString();
+			attribute._sValue = svalue;
+		}
+		return svalue;
+	}
+	
+	/**
+	 * Get the raw bytes of an attribute's value, for values that aren't text.
+	 * 
+	 * @return the value, or null if the attribute is missing or has no value.
+	 */
+	public byte[] getValueBytes(String asKey) {
+		Attribute attribute = getAttributes().get(asKey.toLowerCase());
+		if(attribute == null || attribute._iLength < 0)
+			return null;
+		
+		byte[] retValue = new byte[attribute._iLength];
+		System.arraycopy(_Bytes, attribute._iOffset, retValue, 0, attribute._iLength);
+		return retValue;
+	}
+	
+	/**
+	 * Get the keys, in lower case, in the order they appear.
+	 */
+	public Set<String> getKeys() {
+		return Collections.unmodifiableSet(getAttributes().keySet());
+	}
+	
+	/**
+	 * Decode every string in the record.
+	 */
+	public List<String> getStrings() {
+		List<String> retList = new ArrayList<String>();
+		for(int i = 0; i < _Bytes.length; ) {
+			int ilength = Math.min(_Bytes[i] & 0xFF, _Bytes.length - i - 1);
+			if(ilength > 0)
+				retList.add(s_Charset.decode(ByteBuffer.wrap(_Bytes, i + 1, ilength)).toString());
+			i += ilength + 1;
+		}
+		return retList;
+	}
+	
+	public String toString() {
+		return "text" + getStrings();
+	}
+	
+	private Map<String, Attribute> getAttributes() {
+		Map<String, Attribute> attributes = _Attributes;
+		if(attributes == null) {
+			attributes = index();
+			_Attributes = attributes;
+		}
+		return attributes;
+	}
+	
+	/**
+	 * Find where each key and value is without decoding the values.
+	 */
+	private Map<String, Attribute> index() {
+		Map<String, Attribute> retMap = new LinkedHashMap<String, Attribute>();
+		for(int i = 0; i < _Bytes.length; ) {
+			int istart = i + 1;
+			int ilength = Math.min(_Bytes[i] & 0xFF, _Bytes.length - istart);
+			i = istart + ilength;
+			
+			int iequals = istart;
+			while(iequals < i && _Bytes[iequals] != '=')
+				++iequals;
+			if(iequals == istart)
+				continue;	// No key, which the draft says to ignore.
+			
+			String skey = s_Charset.decode(ByteBuffer.wrap(_Bytes, istart, iequals - istart)).toString().toLowerCase();
+			if(!retMap.containsKey(skey))
+				retMap.put(skey, iequals < i ? new Attribute(iequals + 1, i - iequals - 1) : new Attribute(0, -1));
+		}
+		
+		return Collections.unmodifiableMap(retMap);
+	}
+	
+	private static byte[] toBytes(String asText) {
+		ByteBuffer buffer = s_Charset.encode(asText);
+		byte[] retBytes = new byte[buffer.remaining()];
+		buffer.get(retBytes);
+		return retBytes;
+	}
+	
+	private static byte[] join(List<byte[]> aStrings) {
+		// An empty TXT record still holds one empty string.
+		if(aStrings.isEmpty())
+			return new byte[] { 0 };
+		
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		for(byte[] string : aStrings) {
+			out.write(string.length);
+			out.write(string, 0, string.length);
+		}
+		return out.toByteArray();
+	}
+	
+	private static class Attribute {
+		private int _iOffset;
+		// -1 for a key with no "=".
+		private int _iLength;
+		private volatile String _sValue;
+		
+		Attribute(int aiOffset, int aiLength) {
+			_iOffset = aiOffset;
+			_iLength = aiLength;
+		}
+	}
+}
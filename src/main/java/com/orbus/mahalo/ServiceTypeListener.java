@@ -0,0 +1,46 @@
+/**
+ * Copyright 2007 Jeff Ward
+ * Portions may be pulled from JmDNS and are therefore
+ * the copyright of the JmDNS team
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.orbus.mahalo;
+
+import java.util.EventListener;
+
+/**
+ * Listener for the service types found on the link through service type
+ * enumeration.  Like ServiceListeners, these are called on Mahalo's event
+ * threads.
+ *
+ * @see MahaloBrowser#addServiceTypeListener(ServiceTypeListener)
+ * @author Jeff Ward
+ */
+public interface ServiceTypeListener extends EventListener
+{
+	/**
+	 * A service type has been found.
+	 *
+	 * @param asType fully qualified service type, such as <code>_http._tcp.local.</code>.
+	 */
+	void serviceTypeAdded(String asType);
+	
+	/**
+	 * No host is advertising a service type any more.  This is only reported
+	 * when a goodbye for the type is heard (see Cheshire draft chapter 10.1);
+	 * a type that just stops being refreshed is not reported, since the
+	 * browser does not reap its cache.
+	 */
+	void serviceTypeRemoved(String asType);
+}
@@ -28,6 +28,8 @@ public class DNSCache
 {
 	private static final Logger s_Logger = Logger.getLogger(DNSCache.class);
 	private Map<String, List<DNSRecord>> _Cache; 
+	// Service type enumeration pointers, keyed by lower case type.
+	private Map<String, DNSRecord.Pointer> _ServiceTypes = new HashMap<String, DNSRecord.Pointer>();
 
     /**
      * Create a table with a given initial size.
@@ -43,6 +45,7 @@ public class DNSCache
     public synchronized void clear()
     {
     	_Cache.clear();
+    	_ServiceTypes.clear();
     }
     
     public synchronized DNSRecord handleRecord(DNSRecord aRecord)
@@ -56,8 +59,10 @@ public class DNSCache
 			if(bisExpired) {
 				remove(aRecord);
 			}
-			else
+			else {
 				cacheRecord.resetTTL(aRecord);
+				indexServiceType(aRecord, true);
+			}
 		}
 		else if(!bisExpired)
 		{
@@ -94,6 +99,8 @@ public class DNSCache
     		s_Logger.debug("Removing expired key: " + key);
     		_Cache.remove(key);
     	}
+    	
+    	reapServiceTypes(now);
     }
 
     /**
@@ -106,6 +113,7 @@ public class DNSCache
     		list = new LinkedList<DNSRecord>();
     		list.add(aRecord);
     		_Cache.put(aRecord.getName(), list);
+    		indexServiceType(aRecord, true);
     	}
     	else {
     		boolean baddRecord = true;
@@ -120,6 +128,7 @@ public class DNSCache
     		if(baddRecord) {
     			s_Logger.debug("Adding record " + aRecord + " to DNS cache.");
     			list.add(aRecord);
+    			indexServiceType(aRecord, true);
     		}
     			
     	}
@@ -142,6 +151,7 @@ public class DNSCache
             		list.remove(rec);
             		if(list.size() == 0)
             			_Cache.remove(aRecord.getName());
+            		indexServiceType(aRecord, false);
             		return true;
             	}
             }
@@ -149,6 +159,18 @@ public class DNSCache
         return false;
     }
 
+    /**
+     * Get every record currently held by the cache.
+     */
+    public synchronized List<DNSRecord> getAllRecords()
+    {
+    	List<DNSRecord> retList = new LinkedList<DNSRecord>();
+    	for(List<DNSRecord> list : _Cache.values())
+    		retList.addAll(list);
+    	
+    	return retList;
+    }
+
     /**
      * Get a matching DNS entry from the table (using equals).
      * Returns the entry that was found.
@@ -186,6 +208,94 @@ public class DNSCache
     	return retList;
     }
     
+    /**
+     * Get the records matching a question that are worth listing as known answers,
+     * that is the ones with more than half of their TTL remaining. See Draft
+     * Cheshire chapter 7.1.
+     */
+    public synchronized List<DNSRecord> getKnownAnswers(String asName, DNSEntry.EntryType aeType, DNSEntry.EntryClass aeClass)
+    {
+    	long now = System.currentTimeMillis();
+    	List<DNSRecord> retList = new LinkedList<DNSRecord>();
+    	List<DNSRecord> list = get(asName, aeType, aeClass);
+    	if(list != null) {
+    		for(DNSRecord rec : list) {
+    			if(!rec.isStale(now))
+    				retList.add(rec);
+    		}
+    	}
+    	
+    	return retList;
+    }
+    
+    /**
+     * Get every service type on the link we have heard of through service type
+     * enumeration (see DNSEntry.SERVICE_TYPE_ENUMERATION), without searching
+     * the rest of the cache.  Types whose pointer has expired are left out,
+     * even before the reaper gets to them.
+     */
+    public synchronized List<String> getServiceTypes() {
+    	long now = System.currentTimeMillis();
+    	List<String> retList = new LinkedList<String>();
+    	for(DNSRecord.Pointer ptrRec : _ServiceTypes.values()) {
+    		if(!ptrRec.isExpired(now))
+    			retList.add(ptrRec.getAlias());
+    	}
+    	
+    	return retList;
+    }
+    
+    /**
+     * Get how much of their TTL the cached records have left, on average.  One
+     * means every record was just heard; it falls towards zero as records age
+     * without being refreshed.  An empty cache has a freshness of zero.
+     */
+    public float getFreshness(long alNow) {
+    	List<DNSRecord> records = getAllRecords();
+    	double dtotal = 0;
+    	int icount = 0;
+    	for(DNSRecord rec : records) {
+    		if(rec.getTTL() <= 0)
+    			continue;
+    		
+    		long lleft = Math.max(0, rec.getExpirationTime(100) - alNow);
+    		dtotal += Math.min(1.0, lleft / (rec.getTTL() * 1000.0));
+    		++icount;
+    	}
+    	
+    	return icount > 0 ? (float)(dtotal / icount) : 0;
+    }
+    
+    /**
+     * Keep the service type index in step with the cache.  Caches that store
+     * records differently call this whenever they add, refresh or remove one.
+     */
+    protected synchronized void indexServiceType(DNSRecord aRecord, boolean abPresent) {
+    	if(!(aRecord instanceof DNSRecord.Pointer) || 
+    			!aRecord.getName().equalsIgnoreCase(DNSEntry.SERVICE_TYPE_ENUMERATION))
+    		return;
+    	
+    	DNSRecord.Pointer ptrRec = (DNSRecord.Pointer)aRecord;
+    	if(abPresent)
+    		_ServiceTypes.put(ptrRec.getAlias().toLowerCase(), ptrRec);
+    	else
+    		_ServiceTypes.remove(ptrRec.getAlias().toLowerCase());
+    }
+    
+    protected synchronized void clearServiceTypes() {
+    	_ServiceTypes.clear();
+    }
+    
+    protected synchronized void reapServiceTypes(long alNow) {
+    	List<String> removalList = new LinkedList<String>();
+    	for(Map.Entry<String, DNSRecord.Pointer> entry : _ServiceTypes.entrySet()) {
+    		if(entry.getValue().isExpired(alNow))
+    			removalList.add(entry.getKey());
+    	}
+    	for(String key : removalList)
+    		_ServiceTypes.remove(key);
+    }
+    
     public synchronized DNSRecord.Service getAssociatedService(DNSRecord.Pointer aPtrRecord) {
     	DNSRecord.Service retService = null;
     	List<DNSRecord> list = get(aPtrRecord.getAlias(), DNSEntry.EntryType.SRV, DNSEntry.EntryClass.IN);
@@ -197,10 +307,15 @@ public class DNSCache
     	return retService;
     }
     
+    /**
+     * Get the address of the host a service is on, preferring its IPv4 address
+     * to its IPv6 one.
+     */
     public synchronized DNSRecord.Address getAssociatedAddress(DNSRecord.Service aSrvRecord) {
-    	// TODO: get IPv6 entries as well
     	DNSRecord.Address retAddress = null;
     	List<DNSRecord> list = get(aSrvRecord.getServer(), DNSEntry.EntryType.A, DNSEntry.EntryClass.IN);
+    	if(list == null)
+    		list = get(aSrvRecord.getServer(), DNSEntry.EntryType.AAAA, DNSEntry.EntryClass.IN);
     	if(list != null) {
     		assert(list.size() == 1);
     		retAddress = (DNSRecord.Address)list.get(0);
@@ -0,0 +1,176 @@
+/**
+ * Copyright 2007 Jeff Ward
+ * Portions may be pulled from JmDNS and are therefore
+ * the copyright of the JmDNS team
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.orbus.mahalo.dns;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.BufferOverflowException;
+import java.nio.BufferUnderflowException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Persists the contents of a DNSCache to a memory mapped file so that a
+ * restarted process can answer from the cache before its first queries
+ * have been answered.
+ *
+ * The file is a small header followed by the records in DNS wire format.
+ * Each record's TTL is the remaining TTL at the time the snapshot was
+ * written, so on load the records are rebased to the saved timestamp and
+ * anything that has expired since is dropped.
+ *
+ * @author Jeff Ward
+ */
+public class DNSCacheSnapshot
+{
+	private static final Logger s_Logger = Logger.getLogger(DNSCacheSnapshot.class);
+
+	public static final int DEFAULT_MAX_SIZE = 1024 * 1024;
+
+	private static final int MAGIC = 0x4D444E53;	// "MDNS"
+	private static final short VERSION = 1;
+
+	// magic (4), version (2), count (4), saved time (8)
+	private static final int HEADER_SIZE = 18;
+	private static final int OFFSET_VERSION = 4;
+	private static final int OFFSET_COUNT = 6;
+	private static final int OFFSET_SAVED = 10;
+
+	private File _File;
+	private int _iMaxSize;
+
+	public DNSCacheSnapshot(File aFile) {
+		this(aFile, DEFAULT_MAX_SIZE);
+	}
+
+	public DNSCacheSnapshot(File aFile, int aiMaxSize) throws IllegalArgumentException {
+		if(aFile == null)
+			throw new IllegalArgumentException("aFile can not be null.");
+		if(aiMaxSize <= HEADER_SIZE)
+			throw new IllegalArgumentException("aiMaxSize must be larger than the snapshot header.");
+
+		_File = aFile;
+		_iMaxSize = aiMaxSize;
+	}
+
+	public File getFile() {
+		return _File;
+	}
+
+	/**
+	 * Write every live record in the cache to the snapshot file.  Records
+	 * that do not fit in the maximum size of the file are skipped.
+	 *
+	 * @return The number of records written.
+	 */
+	public synchronized int write(DNSCache aCache) throws IOException {
+		long now = System.currentTimeMillis();
+		int icount = 0;
+
+		RandomAccessFile file = new RandomAccessFile(_File, "rw");
+		try {
+			FileChannel channel = file.getChannel();
+			MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, _iMaxSize);
+
+			// Invalidate the old contents first so a partial write is never mistaken for a good one.
+			buffer.putInt(0, MAGIC);
+			buffer.putShort(OFFSET_VERSION, VERSION);
+			buffer.putInt(OFFSET_COUNT, 0);
+			buffer.putLong(OFFSET_SAVED, now);
+			buffer.position(HEADER_SIZE);
+
+			for(DNSRecord rec : aCache.getAllRecords()) {
+				if(rec.isExpired(now))
+					continue;
+
+				int imark = buffer.position();
+				try {
+					rec.write(buffer);
+					icount++;
+				} catch(BufferOverflowException e) {
+					buffer.position(imark);
+					s_Logger.warn("Cache snapshot " + _File + " is full.  Remaining records will not be saved.");
+					break;
+				}
+			}
+
+			buffer.putInt(OFFSET_COUNT, icount);
+			buffer.force();
+		} finally {
+			file.close();
+		}
+
+		s_Logger.debug("Wrote " + icount + " records to cache snapshot " + _File);
+		return icount;
+	}
+
+	/**
+	 * Read the snapshot file into the cache.  Records keep the TTL they had
+	 * when the snapshot was saved and are only added if they have not
+	 * expired in the meantime.
+	 *
+	 * @return The number of records restored to the cache.
+	 */
+	public synchronized int read(DNSCache aCache) throws IOException {
+		if(!_File.exists() || _File.length() < HEADER_SIZE)
+			return 0;
+
+		long now = System.currentTimeMillis();
+		int irestored = 0;
+
+		RandomAccessFile file = new RandomAccessFile(_File, "r");
+		try {
+			FileChannel channel = file.getChannel();
+			MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0,
+					Math.min(channel.size(), (long)_iMaxSize));
+
+			if(buffer.getInt(0) != MAGIC || buffer.getShort(OFFSET_VERSION) != VERSION) {
+				s_Logger.warn("Ignoring unrecognized cache snapshot " + _File);
+				return 0;
+			}
+
+			int icount = buffer.getInt(OFFSET_COUNT);
+			long saved = buffer.getLong(OFFSET_SAVED);
+			buffer.position(HEADER_SIZE);
+
+			try {
+				for(int i = 0; i < icount; ++i) {
+					DNSRecord rec = DNSRecord.Parse(buffer);
+					if(rec == null)
+						continue;
+
+					rec.setCreated(saved);
+					if(!rec.isExpired(now)) {
+						aCache.handleRecord(rec);
+						irestored++;
+					}
+				}
+			} catch(BufferUnderflowException e) {
+				s_Logger.warn("Cache snapshot " + _File + " is truncated.  Restored " + irestored + " records.");
+			}
+		} finally {
+			file.close();
+		}
+
+		s_Logger.debug("Restored " + irestored + " records from cache snapshot " + _File);
+		return irestored;
+	}
+}
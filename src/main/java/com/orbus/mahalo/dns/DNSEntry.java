@@ -125,6 +125,8 @@ public class DNSEntry
 	
 	// TODO: This is incorrect.  See draft-cheshire-dnsext-multicastdns.txt Chapter 11.
 	public static final int TTL = 60 * 60;	// default one hour TTL 
+	// Browsing this name finds every service type on the link.  See Draft Cheshire (DNS-SD) chapter 9.
+	public static final String SERVICE_TYPE_ENUMERATION = "_services._dns-sd._udp.local.";
 	
 	private static final Charset s_Charset = Charset.forName("UTF-8");
 	private static final int CLASS_MASK = 0x7FFF;
@@ -26,8 +26,12 @@ import java.util.List;
 
 public class DNSPacket {
 	public static final int MAX_MSG_ABSOLUTE = 8972;
+	// The most that fits in one Ethernet frame without IP fragmentation.
+	public static final int MAX_MSG_TYPICAL = 1460;
 	public static final String MDNS_GROUP = "224.0.0.251";
 	public static final int MDNS_PORT = 5353;
+	
+	private final static int MESSAGE_HEADER_SIZE = 12;
 		
 	private final static int FLAGS_QR_MASK = 0x8000;	// Query response mask
 	private final static int FLAGS_QR_QUERY = 0x0000;	// Query
@@ -43,6 +47,8 @@ public class DNSPacket {
 	private int _iFlags;
 	private List<DNSQuestion> _Questions;
 	private List<DNSRecord> _Answers;
+	private List<DNSRecord> _Additionals;
+	private int _iMaxMessageSize = MAX_MSG_ABSOLUTE;
 	
 	public long getRecieved() {
 		return _iTimeRecieved;
@@ -87,6 +93,30 @@ public class DNSPacket {
     public List<DNSQuestion> getQuestions() {
     	return _Questions;
     }
+    
+    /**
+     * Records sent along with the answers because the asker will probably
+     * want them next (see RFC 6763 chapter 12).  Parsed packets put these in
+     * with the answers, so this is only filled in for packets we send.
+     */
+    public List<DNSRecord> getAdditionals() {
+    	return _Additionals;
+    }
+    
+    public int getMaxMessageSize() {
+    	return _iMaxMessageSize;
+    }
+    
+    /**
+     * Set the largest message write() will produce.  Anything that doesn't fit
+     * spills into follow up messages.
+     */
+    public void setMaxMessageSize(int aiSize) throws IllegalArgumentException {
+    	if(aiSize <= MESSAGE_HEADER_SIZE || aiSize > MAX_MSG_ABSOLUTE)
+    		throw new IllegalArgumentException("Message size must be between " + MESSAGE_HEADER_SIZE + 
+    				" and " + MAX_MSG_ABSOLUTE + ": " + aiSize);
+    	_iMaxMessageSize = aiSize;
+    }
    
 	public DNSPacket(boolean abResponce) {
 		_iTimeRecieved = System.currentTimeMillis();
@@ -96,12 +126,17 @@ public class DNSPacket {
 		
 		_Questions = new ArrayList<DNSQuestion>();
 		_Answers = new ArrayList<DNSRecord>();
+		_Additionals = new ArrayList<DNSRecord>();
 	}
 	
 	public void addAnswer(DNSRecord rec) {
 		_Answers.add(rec);
 	}
 	
+	public void addAdditional(DNSRecord rec) {
+		_Additionals.add(rec);
+	}
+	
 	public void addQuestion(DNSQuestion rec) {
 		_Questions.add(rec);
 	}
@@ -116,54 +151,94 @@ public class DNSPacket {
 		return responce;
 	}
 	
+	/**
+	 * Write the packet out as one or more messages.  When everything doesn't fit
+	 * in a single message, the remaining questions and answers spill into
+	 * follow up messages and every message but the last has the truncated bit
+	 * set.  For queries this is how known answers that don't fit are sent
+	 * (see Draft Cheshire chapter 7.2).  Additional records only go in the
+	 * space left in the last message; any that don't fit are left out, since
+	 * the asker can always ask for them.
+	 */
 	public ByteBuffer[] write() {
 		List<ByteBuffer> bufferList = new LinkedList<ByteBuffer>();
-		ByteBuffer currentBuffer = ByteBuffer.allocate(MAX_MSG_ABSOLUTE); 
+		ByteBuffer currentBuffer = allocateMessage(); 
 		bufferList.add(currentBuffer);
 		
-		// This moves the relative offset past the header so we can write what we need.
-		currentBuffer.put(new byte[12]);
-		int iquestionsRead = 0;
 		int iquestionsWritten = 0;
-		int ianswersRead = 0;
 		int ianswersWritten = 0;
-		while(iquestionsRead < _Questions.size())
+		for(DNSQuestion question : _Questions)
 		{
+			int imark = currentBuffer.position();
 			try {
-				DNSQuestion question = _Questions.get(iquestionsRead);
 				question.write(currentBuffer);
-				iquestionsRead++;
 				iquestionsWritten++;
 			} catch(BufferOverflowException e) {
-				iquestionsWritten = 0;
-				writeMessageHeader(currentBuffer, true, iquestionsWritten, ianswersWritten);
-				currentBuffer = ByteBuffer.allocate(MAX_MSG_ABSOLUTE);
+				// Drop the partial question and carry it over to a new message.
+				currentBuffer.position(imark);
+				writeMessageHeader(currentBuffer, true, iquestionsWritten, ianswersWritten, 0);
+				currentBuffer = allocateMessage();
 				bufferList.add(currentBuffer);
+				iquestionsWritten = 0;
+				
+				question.write(currentBuffer);
+				iquestionsWritten++;
 			}
 		}
 		
-		while(ianswersRead < _Answers.size())
+		for(DNSRecord record : _Answers)
 		{
+			int imark = currentBuffer.position();
 			try {
-				DNSRecord record = _Answers.get(ianswersRead);
 				record.write(currentBuffer);
-				ianswersRead++;
 				ianswersWritten++;
 			} catch(BufferOverflowException e) {
-				ianswersWritten = 0;
-				writeMessageHeader(currentBuffer, true, iquestionsWritten, ianswersWritten);
-				currentBuffer = ByteBuffer.allocate(MAX_MSG_ABSOLUTE);
+				currentBuffer.position(imark);
+				if(iquestionsWritten == 0 && ianswersWritten == 0)
+					continue;	// This record can never fit in a message, so skip it.
+				
+				writeMessageHeader(currentBuffer, true, iquestionsWritten, ianswersWritten, 0);
+				currentBuffer = allocateMessage();
 				bufferList.add(currentBuffer);
+				iquestionsWritten = 0;
+				ianswersWritten = 0;
+				
+				try {
+					record.write(currentBuffer);
+					ianswersWritten++;
+				} catch(BufferOverflowException tooLarge) {
+					currentBuffer.position(MESSAGE_HEADER_SIZE);
+				}
+			}
+		}
+		
+		int iadditionalsWritten = 0;
+		for(DNSRecord record : _Additionals)
+		{
+			int imark = currentBuffer.position();
+			try {
+				record.write(currentBuffer);
+				iadditionalsWritten++;
+			} catch(BufferOverflowException e) {
+				currentBuffer.position(imark);
+				break;
 			}
 		}
 		
-		writeMessageHeader(currentBuffer, false, iquestionsWritten, ianswersWritten);
+		writeMessageHeader(currentBuffer, false, iquestionsWritten, ianswersWritten, iadditionalsWritten);
 		
 		ByteBuffer[] retBuffers = new ByteBuffer[bufferList.size()];
 		return (ByteBuffer[])bufferList.toArray(retBuffers);
 	}
 	
-	private void writeMessageHeader(ByteBuffer aBuffer, boolean abTruncated, int aiQuestions, int aiAnswers) {
+	private ByteBuffer allocateMessage() {
+		ByteBuffer buffer = ByteBuffer.allocate(_iMaxMessageSize);
+		// This moves the relative offset past the header so we can write what we need.
+		buffer.position(MESSAGE_HEADER_SIZE);
+		return buffer;
+	}
+	
+	private void writeMessageHeader(ByteBuffer aBuffer, boolean abTruncated, int aiQuestions, int aiAnswers, int aiAdditionals) {
 		aBuffer.putShort(0, (short)_iMessageId);
 		if(abTruncated)
 			aBuffer.putShort(2, (short)(_iFlags | FLAGS_TC));
@@ -173,10 +248,9 @@ public class DNSPacket {
 		aBuffer.putShort(4, (short)aiQuestions);
 		aBuffer.putShort(6, (short)aiAnswers);
 		 
-		// mDNS doesn't care about additional or authoritative answers.  All answers are equal in its mind,
-		// so we only use the answers field ever.
+		// mDNS doesn't use the authority section outside of probes, which we don't send it in.
 		aBuffer.putShort(8, (short)0);
-		aBuffer.putShort(10, (short)0);
+		aBuffer.putShort(10, (short)aiAdditionals);
 	}
 	
 	public String toString()
@@ -190,6 +264,8 @@ public class DNSPacket {
 			buf.append(" Truncated");
 		buf.append(" Q:" + _Questions.size());
 		buf.append(" A:" + _Answers.size());
+		if(_Additionals.size() > 0)
+			buf.append(" AR:" + _Additionals.size());
 		buf.append("]\n");
 		if(_Questions.size() > 0) {
 			buf.append("---- Questions ----\n");
@@ -201,6 +277,11 @@ public class DNSPacket {
 			for(DNSRecord rec : _Answers)
 				buf.append(rec + "\n");
 		}
+		if(_Additionals.size() > 0) {
+			buf.append("---- Additionals ----\n");
+			for(DNSRecord rec : _Additionals)
+				buf.append(rec + "\n");
+		}
 		
 		return buf.toString();
 	}
@@ -75,6 +75,26 @@ public abstract class DNSRecord
     public boolean equals(Object other) {
         return (other instanceof DNSRecord) && sameAs((DNSRecord) other);
     }
+    
+    /**
+     * True if this record, given as a known answer, means the asker doesn't
+     * need aAnswer from us: it is the same record, with names compared without
+     * case, and has at least half of aAnswer's TTL left (see Draft Cheshire
+     * chapter 7.1).
+     */
+    public boolean suppresses(DNSRecord aAnswer)
+    {
+        return getType() == aAnswer.getType() && getDNSClass() == aAnswer.getDNSClass() 
+        	&& getName().equalsIgnoreCase(aAnswer.getName()) && sameValue(aAnswer) 
+        	&& getTTL() >= aAnswer.getTTL() / 2.0;
+    }
+    
+    /**
+     * Records that are the same have the same entry, so hash by that.
+     */
+    public int hashCode() {
+        return _Entry.hashCode();
+    }
 
     /**
      * True if this record is the same as some other record.
@@ -121,6 +141,24 @@ public abstract class DNSRecord
         return getExpirationTime(50) <= now;
     }
 
+    /**
+     * Get the time this record was created or last refreshed.
+     */
+    long getCreated()
+    {
+        return _iCreated;
+    }
+
+    /**
+     * Move the creation time of this record.  Used when records are
+     * restored from persistent storage so their TTL counts from the
+     * time they were saved rather than the time they were read.
+     */
+    void setCreated(long aiCreated)
+    {
+        _iCreated = aiCreated;
+    }
+
     /**
      * Reset the TTL of a record. This avoids having to
      * update the entire record in the cache.
@@ -355,7 +393,7 @@ public abstract class DNSRecord
 
         boolean sameValue(DNSRecord other)
         {
-            return _sAlias.equals(((Pointer) other)._sAlias);
+            return _sAlias.equalsIgnoreCase(((Pointer) other)._sAlias);
         }
 
         public String getAlias()
@@ -526,7 +564,7 @@ public abstract class DNSRecord
         public boolean sameValue(DNSRecord other)
         {
             Service s = (Service) other;
-            return (_iPriority == s._iPriority) && (_iWeight == s._iWeight) && (_iPort == s._iPort) && _sServer.equals(s._sServer);
+            return (_iPriority == s._iPriority) && (_iWeight == s._iWeight) && (_iPort == s._iPort) && _sServer.equalsIgnoreCase(s._sServer);
         }
         
         public void parseInstance(ByteBuffer aBuffer, int aiLength) throws IOException {
@@ -0,0 +1,440 @@
+/**
+ * Copyright 2007 Jeff Ward
+ * Portions may be pulled from JmDNS and are therefore
+ * the copyright of the JmDNS team
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.orbus.mahalo.dns;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedList;
+import java.util.List;
+
+import org.apache.log4j.Logger;
+
+/**
+ * A DNSCache that keeps its records outside of the Java heap.
+ *
+ * Records are stored in DNS wire format in direct buffer slabs and are only
+ * turned back into DNSRecord objects when a caller asks for them.  Records
+ * are found through an open addressing index keyed by the hash of their
+ * (lower case) name, so the heap cost of a record is one int and one long
+ * in the index no matter how large the record is.
+ *
+ * Removed records leave holes in the slabs.  Once more than half of the
+ * stored bytes are dead the slabs are compacted.
+ *
+ * @author Jeff Ward
+ */
+public class OffHeapDNSCache extends DNSCache
+{
+	private static final Logger s_Logger = Logger.getLogger(OffHeapDNSCache.class);
+
+	public static final int DEFAULT_SLAB_SIZE = 1024 * 1024;
+
+	private static final long EMPTY = -1;
+	private static final long DELETED = -2;
+
+	// slot length (4), created (8), ttl (4)
+	private static final int SLOT_HEADER = 16;
+	private static final int OFFSET_CREATED = 4;
+	private static final int OFFSET_TTL = 12;
+
+	private final int _iSlabSize;
+	private List<ByteBuffer> _Slabs = new ArrayList<ByteBuffer>();
+	private long _lLiveBytes;
+	private long _lDeadBytes;
+
+	private int[] _Hashes;
+	private long[] _Refs;
+	private int _iCount;
+	private int _iUsed;	// live and deleted index slots
+
+	private ByteBuffer _Scratch = ByteBuffer.allocate(DNSPacket.MAX_MSG_ABSOLUTE);
+
+	public OffHeapDNSCache(int aiSize) {
+		this(aiSize, DEFAULT_SLAB_SIZE);
+	}
+
+	/**
+	 * Create a cache expecting roughly aiSize records, allocating off heap
+	 * memory aiSlabSize bytes at a time.
+	 */
+	public OffHeapDNSCache(int aiSize, int aiSlabSize) throws IllegalArgumentException {
+		super(0);
+		if(aiSlabSize < DNSPacket.MAX_MSG_ABSOLUTE + SLOT_HEADER)
+			throw new IllegalArgumentException("aiSlabSize must be able to hold at least one full DNS message.");
+
+		_iSlabSize = aiSlabSize;
+		initIndex(indexCapacityFor(aiSize));
+	}
+
+	/**
+	 * The number of records in the cache.
+	 */
+	public synchronized int size() {
+		return _iCount;
+	}
+
+	/**
+	 * The number of bytes of off heap memory allocated for records.
+	 */
+	public synchronized long getAllocatedBytes() {
+		return (long)_Slabs.size() * _iSlabSize;
+	}
+
+	@Override
+	public synchronized void clear() {
+		_Slabs.clear();
+		_lLiveBytes = 0;
+		_lDeadBytes = 0;
+		initIndex(_Hashes.length);
+		clearServiceTypes();
+	}
+
+	@Override
+	public synchronized DNSRecord handleRecord(DNSRecord aRecord) {
+		long now = System.currentTimeMillis();
+		int islot = find(aRecord);
+		DNSRecord cacheRecord = null;
+
+		if(islot >= 0) {
+			cacheRecord = materialize(_Refs[islot]);
+			if(aRecord.isExpired(now)) {
+				delete(islot);
+				indexServiceType(aRecord, false);
+			}
+			else {
+				ByteBuffer slab = slabOf(_Refs[islot]);
+				int ioffset = offsetOf(_Refs[islot]);
+				slab.putLong(ioffset + OFFSET_CREATED, aRecord.getCreated());
+				slab.putInt(ioffset + OFFSET_TTL, aRecord.getTTL());
+				cacheRecord.resetTTL(aRecord);
+				indexServiceType(aRecord, true);
+			}
+		}
+		else if(!aRecord.isExpired(now)) {
+			store(aRecord);
+			indexServiceType(aRecord, true);
+		}
+
+		return cacheRecord;
+	}
+
+	@Override
+	public synchronized void reap() {
+		s_Logger.trace("Running the reaper.");
+		long now = System.currentTimeMillis();
+
+		for(int i = 0; i < _Refs.length; ++i) {
+			if(_Refs[i] < 0)
+				continue;
+
+			ByteBuffer slab = slabOf(_Refs[i]);
+			int ioffset = offsetOf(_Refs[i]);
+			long created = slab.getLong(ioffset + OFFSET_CREATED);
+			int ittl = slab.getInt(ioffset + OFFSET_TTL);
+			if(created + ittl * 1000L <= now)
+				delete(i);
+		}
+
+		reapServiceTypes(now);
+		compactIfNeeded();
+	}
+
+	@Override
+	public synchronized void add(DNSRecord aRecord) {
+		if(find(aRecord) >= 0) {
+			s_Logger.warn("Attempt to add non-autoritative duplicate DNSRecord:" + aRecord);
+			return;
+		}
+
+		s_Logger.debug("Adding record " + aRecord + " to DNS cache.");
+		store(aRecord);
+		indexServiceType(aRecord, true);
+	}
+
+	@Override
+	public synchronized boolean remove(DNSRecord aRecord) {
+		int islot = find(aRecord);
+		if(islot < 0)
+			return false;
+
+		s_Logger.debug("Removing record " + aRecord + " from DNS cache.");
+		delete(islot);
+		indexServiceType(aRecord, false);
+		compactIfNeeded();
+		return true;
+	}
+
+	@Override
+	public synchronized DNSRecord get(DNSRecord aRecord) {
+		int islot = find(aRecord);
+		return islot >= 0 ? materialize(_Refs[islot]) : null;
+	}
+
+	@Override
+	public synchronized List<DNSRecord> get(String asName, DNSEntry.EntryType aeType, DNSEntry.EntryClass aeClass) {
+		List<DNSRecord> retList = null;
+		int ihash = hash(asName);
+		int imask = _Hashes.length - 1;
+
+		for(int i = ihash & imask; _Refs[i] != EMPTY; i = (i + 1) & imask) {
+			if(_Refs[i] == DELETED || _Hashes[i] != ihash)
+				continue;
+
+			DNSRecord rec = materialize(_Refs[i]);
+			if(rec != null && rec.getType() == aeType && rec.getDNSClass() == aeClass
+					&& rec.getName().equalsIgnoreCase(asName)) {
+				if(retList == null)
+					retList = new LinkedList<DNSRecord>();
+				retList.add(rec);
+			}
+		}
+
+		return retList;
+	}
+
+	@Override
+	public synchronized List<DNSRecord> getAllRecords() {
+		List<DNSRecord> retList = new LinkedList<DNSRecord>();
+		for(long ref : _Refs) {
+			if(ref >= 0) {
+				DNSRecord rec = materialize(ref);
+				if(rec != null)
+					retList.add(rec);
+			}
+		}
+
+		return retList;
+	}
+
+	/**
+	 * Find the index slot of the record matching aRecord, or -1.  Candidates
+	 * are compared in wire format so nothing is materialized.  On return the
+	 * scratch buffer holds aRecord in wire format.
+	 */
+	private int find(DNSRecord aRecord) {
+		_Scratch.clear();
+		aRecord.write(_Scratch);
+		_Scratch.flip();
+
+		int ihash = hash(aRecord.getName());
+		int imask = _Hashes.length - 1;
+
+		for(int i = ihash & imask; _Refs[i] != EMPTY; i = (i + 1) & imask) {
+			if(_Refs[i] != DELETED && _Hashes[i] == ihash && sameWire(_Refs[i], _Scratch))
+				return i;
+		}
+
+		return -1;
+	}
+
+	/**
+	 * True if the stored record is the same record as the one in aWire.  The
+	 * name is compared without case, the unique bit and the TTL are ignored
+	 * and the rest of the record must match exactly.
+	 */
+	private boolean sameWire(long alRef, ByteBuffer aWire) {
+		ByteBuffer slab = slabOf(alRef);
+		int ioffset = offsetOf(alRef);
+		int ilength = aWire.remaining();
+		if(slab.getInt(ioffset) - SLOT_HEADER != ilength)
+			return false;
+
+		int istored = ioffset + SLOT_HEADER;
+		int iwire = aWire.position();
+
+		// Name labels
+		int i = 0;
+		while(i < ilength && aWire.get(iwire + i) != 0) {
+			int ilabel = aWire.get(iwire + i) & 0xFF;
+			if((slab.get(istored + i) & 0xFF) != ilabel)
+				return false;
+			for(int j = i + 1; j <= i + ilabel; ++j) {
+				if(toLower(slab.get(istored + j)) != toLower(aWire.get(iwire + j)))
+					return false;
+			}
+			i += ilabel + 1;
+		}
+		if(i + 9 > ilength || slab.get(istored + i) != 0)
+			return false;
+		i++;
+
+		// Type, then class without the unique bit, then skip the TTL.
+		if(slab.getShort(istored + i) != aWire.getShort(iwire + i)
+				|| (slab.getShort(istored + i + 2) & 0x7FFF) != (aWire.getShort(iwire + i + 2) & 0x7FFF))
+			return false;
+		i += 8;
+
+		for(; i < ilength; ++i) {
+			if(slab.get(istored + i) != aWire.get(iwire + i))
+				return false;
+		}
+
+		return true;
+	}
+
+	/**
+	 * Append aRecord to the slabs.  Expects the scratch buffer to hold the
+	 * record in wire format, as left by find().
+	 */
+	private void store(DNSRecord aRecord) {
+		int islotLength = SLOT_HEADER + _Scratch.remaining();
+		ByteBuffer slab = _Slabs.isEmpty() ? null : _Slabs.get(_Slabs.size() - 1);
+		if(slab == null || slab.remaining() < islotLength) {
+			slab = ByteBuffer.allocateDirect(_iSlabSize);
+			_Slabs.add(slab);
+		}
+
+		int ioffset = slab.position();
+		slab.putInt(islotLength);
+		slab.putLong(aRecord.getCreated());
+		slab.putInt(aRecord.getTTL());
+		slab.put(_Scratch);
+		_lLiveBytes += islotLength;
+
+		insert(hash(aRecord.getName()), ((long)(_Slabs.size() - 1) << 32) | ioffset);
+	}
+
+	private void insert(int aiHash, long alRef) {
+		if((_iUsed + 1) * 2 > _Hashes.length)
+			rehash(_iCount * 4 > _Hashes.length ? _Hashes.length * 2 : _Hashes.length);
+
+		int imask = _Hashes.length - 1;
+		int i = aiHash & imask;
+		while(_Refs[i] >= 0)
+			i = (i + 1) & imask;
+
+		if(_Refs[i] == EMPTY)
+			_iUsed++;
+		_Hashes[i] = aiHash;
+		_Refs[i] = alRef;
+		_iCount++;
+	}
+
+	private void delete(int aiSlot) {
+		int ilength = slabOf(_Refs[aiSlot]).getInt(offsetOf(_Refs[aiSlot]));
+		_lLiveBytes -= ilength;
+		_lDeadBytes += ilength;
+		_Refs[aiSlot] = DELETED;
+		_iCount--;
+	}
+
+	private void rehash(int aiCapacity) {
+		int[] oldHashes = _Hashes;
+		long[] oldRefs = _Refs;
+		initIndex(aiCapacity);
+
+		for(int i = 0; i < oldRefs.length; ++i) {
+			if(oldRefs[i] >= 0)
+				insert(oldHashes[i], oldRefs[i]);
+		}
+	}
+
+	/**
+	 * Copy every live record into fresh slabs once more than half of the
+	 * stored bytes belong to removed records.
+	 */
+	private void compactIfNeeded() {
+		if(_lDeadBytes == 0 || _lDeadBytes < _lLiveBytes)
+			return;
+
+		s_Logger.debug("Compacting off heap cache: " + _lLiveBytes + " live bytes, " + _lDeadBytes + " dead bytes.");
+		List<ByteBuffer> oldSlabs = _Slabs;
+		int[] oldHashes = _Hashes;
+		long[] oldRefs = _Refs;
+
+		_Slabs = new ArrayList<ByteBuffer>();
+		_lLiveBytes = 0;
+		_lDeadBytes = 0;
+		initIndex(oldHashes.length);
+
+		ByteBuffer target = null;
+		for(int i = 0; i < oldRefs.length; ++i) {
+			if(oldRefs[i] < 0)
+				continue;
+
+			ByteBuffer source = oldSlabs.get((int)(oldRefs[i] >>> 32)).duplicate();
+			int ioffset = offsetOf(oldRefs[i]);
+			int ilength = source.getInt(ioffset);
+			source.limit(ioffset + ilength);
+			source.position(ioffset);
+
+			if(target == null || target.remaining() < ilength) {
+				target = ByteBuffer.allocateDirect(_iSlabSize);
+				_Slabs.add(target);
+			}
+
+			int inewOffset = target.position();
+			target.put(source);
+			_lLiveBytes += ilength;
+			insert(oldHashes[i], ((long)(_Slabs.size() - 1) << 32) | inewOffset);
+		}
+	}
+
+	private DNSRecord materialize(long alRef) {
+		ByteBuffer buffer = slabOf(alRef).duplicate();
+		int ioffset = offsetOf(alRef);
+		buffer.position(ioffset + SLOT_HEADER);
+
+		try {
+			DNSRecord rec = DNSRecord.Parse(buffer);
+			if(rec != null) {
+				rec.setCreated(buffer.getLong(ioffset + OFFSET_CREATED));
+				rec._iTTL = buffer.getInt(ioffset + OFFSET_TTL);
+			}
+			return rec;
+		} catch(IOException e) {
+			s_Logger.error("Corrupt record in off heap cache", e);
+			return null;
+		}
+	}
+
+	private ByteBuffer slabOf(long alRef) {
+		return _Slabs.get((int)(alRef >>> 32));
+	}
+
+	private void initIndex(int aiCapacity) {
+		_Hashes = new int[aiCapacity];
+		_Refs = new long[aiCapacity];
+		Arrays.fill(_Refs, EMPTY);
+		_iCount = 0;
+		_iUsed = 0;
+	}
+
+	private static byte toLower(byte ab) {
+		return (ab >= 'A' && ab <= 'Z') ? (byte)(ab + ('a' - 'A')) : ab;
+	}
+
+	private static int offsetOf(long alRef) {
+		return (int)alRef;
+	}
+
+	private static int indexCapacityFor(int aiSize) {
+		int icapacity = 16;
+		while(icapacity < aiSize * 2)
+			icapacity <<= 1;
+		return icapacity;
+	}
+
+	private static int hash(String asName) {
+		int h = asName.toLowerCase().hashCode();
+		// Spread the high bits down since the index only looks at the low ones.
+		return h ^ (h >>> 16);
+	}
+}
@@ -17,91 +17,127 @@
  */
 package com.orbus.mahalo.tasks;
 
+import java.util.HashSet;
 import java.util.LinkedList;
 import java.util.List;
-import java.util.TimerTask;
+import java.util.Set;
 
 import com.orbus.mahalo.HostInfo;
 import com.orbus.mahalo.MahaloSocket;
 import com.orbus.mahalo.ServiceInfo;
 import com.orbus.mahalo.dns.DNSEntry;
 import com.orbus.mahalo.dns.DNSPacket;
+import com.orbus.mahalo.dns.DNSQuestion;
 import com.orbus.mahalo.dns.DNSRecord;
 
-public class Announcer extends TimerTask {
+/**
+ * Announces the host and services that have finished probing (see Cheshire
+ * draft chapter 8.3).  Services that finish probing while an announcer is
+ * running join it, and each tick packs every service's records into as few
+ * packets as they fit in.
+ *
+ * @author Jeff Ward
+ */
+public class Announcer extends ScheduledTask {
 	public static final int INTERVAL = 1000;
 	
 	private MahaloSocket _Socket;
 	private HostInfo _LocalInfo;
-	private List<ServiceInfo> _AnnounceList;
+	private List<ServiceInfo> _AnnounceList = new LinkedList<ServiceInfo>();
 	
 	public Announcer(MahaloSocket aSocket, HostInfo aLocalInfo, List<ServiceInfo> aAnnounceList) {
 		_Socket = aSocket;
 		_LocalInfo = aLocalInfo;
-		_AnnounceList = aAnnounceList;
+		if(aAnnounceList != null)
+			_AnnounceList.addAll(aAnnounceList);
 	}
 	
-	@Override
-	public void run() {
-		DNSPacket dnsMessage = new DNSPacket(true);
-		dnsMessage.setAuthoritativeAnswer(true);
-
-		List<ServiceInfo> removalList = new LinkedList<ServiceInfo>();
+	/**
+	 * Announce more services, starting from their first announcement.
+	 * 
+	 * @return false if the announcer has finished, so a new one is needed.
+	 */
+	public synchronized boolean add(List<ServiceInfo> aAnnounceList) {
+		if(isCanceled())
+			return false;
 		
-		boolean bannouncedLocalInfo = false;
+		_AnnounceList.addAll(aAnnounceList);
+		return true;
+	}
+	
+	@Override
+	protected void runTask() {
+		PacketPacker packer = new PacketPacker(true);
 		
-		if(_LocalInfo.getState().isAnnouncing())
-		{
-			synchronized(_LocalInfo) {
-				addLocalInfoRecord(dnsMessage);
+		synchronized(this) {
+			List<DNSRecord> localRecords = new LinkedList<DNSRecord>();
+			if(_LocalInfo.getState().isAnnouncing() || _AnnounceList.size() > 0) {
+				// Services depend on the local address, so it goes out with them.
+				synchronized(_LocalInfo) {
+					addLocalInfoRecords(localRecords);
+				}
 			}
 			
-			bannouncedLocalInfo = true;
+			Set<String> types = new HashSet<String>();
+			List<ServiceInfo> removalList = new LinkedList<ServiceInfo>();
+			for(ServiceInfo info : _AnnounceList) {
+				List<DNSRecord> records = new LinkedList<DNSRecord>(localRecords);
+				localRecords.clear();
+				
+				synchronized(info) {
+					records.add(new DNSRecord.Pointer(info.getType(), DNSEntry.EntryType.PTR, 
+						DNSEntry.EntryClass.IN, DNSEntry.TTL, info.getQualifiedName()));
+					if(types.add(info.getType().toLowerCase())) {
+						records.add(new DNSRecord.Pointer(DNSEntry.SERVICE_TYPE_ENUMERATION, DNSEntry.EntryType.PTR, 
+							DNSEntry.EntryClass.IN, DNSEntry.TTL, info.getType()));
+					}
+					for(String ssubtype : info.getSubtypes()) {
+						records.add(new DNSRecord.Pointer(info.getSubtypeName(ssubtype), DNSEntry.EntryType.PTR, 
+							DNSEntry.EntryClass.IN, DNSEntry.TTL, info.getQualifiedName()));
+					}
+					records.add(new DNSRecord.Service(info.getQualifiedName(), 
+						DNSEntry.EntryClass.IN, true, DNSEntry.TTL, info.getPriority(), info.getWeight(), 
+						info.getPort(),_LocalInfo.getName()));
+					if(info.getTextBytes() != null) {
+						records.add(new DNSRecord.Text(info.getQualifiedName(),
+							DNSEntry.EntryClass.IN, true, DNSEntry.TTL, info.getTextBytes()));
+					}
+					info.advanceState();
+					if(info.getState().isAnnounced())
+						removalList.add(info);
+				}
+				
+				packer.add((DNSQuestion)null, records);
+			}
+			
+			if(localRecords.size() > 0)
+				packer.add((DNSQuestion)null, localRecords);
+			
+			_AnnounceList.removeAll(removalList);
+			
+			if(packer.getPackets().isEmpty())
+				cancel();
 		}
-            
-        if(_AnnounceList != null && _AnnounceList.size() > 0) {
-	        for (ServiceInfo info : _AnnounceList)
-	        {
-	        	synchronized(info) {
-		            dnsMessage.addAnswer(new DNSRecord.Pointer(info.getType(), DNSEntry.EntryType.PTR, 
-		            	DNSEntry.EntryClass.IN, DNSEntry.TTL, info.getQualifiedName()));
-//		            dnsMessage.addAnswer(new DNSRecord.Pointer("_services._dns-sd._udp.local.", DNSEntry.EntryType.PTR, 
-//			            	DNSEntry.EntryClass.IN, false, DNSConstants.DNS_TTL, info.getType()));
-		            dnsMessage.addAnswer(new DNSRecord.Service(info.getQualifiedName(), 
-		            	DNSEntry.EntryClass.IN, true, DNSEntry.TTL, info.getPriority(), info.getWeight(), 
-		            	info.getPort(),_LocalInfo.getName()));
-		            if(info.getTextBytes() != null) {
-			            dnsMessage.addAnswer(new DNSRecord.Text(info.getQualifiedName(),
-			            	DNSEntry.EntryClass.IN, true, DNSEntry.TTL, info.getTextBytes()));
-		            }
-		            info.advanceState();
-		            if(info.getState().isAnnounced())
-		            	removalList.add(info);
-	        	}
-	        }
-	        
-	        // If we haven't announced local information, announce it now, since some service depends on it.
-	        if(!bannouncedLocalInfo)
-	        	addLocalInfoRecord(dnsMessage);
-        }
-        
-        for(ServiceInfo info : removalList)
-        	_AnnounceList.remove(info);        	
-        
-        if(dnsMessage.getAnswers().size() > 0)
-        	_Socket.send(dnsMessage);
-        else
-        	cancel();
+		
+		for(DNSPacket packet : packer.getPackets())
+			send(packet);
 	}
 	
-	private void addLocalInfoRecord(DNSPacket aMessage) {
+	protected void send(DNSPacket aPacket) {
+		_Socket.send(aPacket);
+	}
+	
+	private void addLocalInfoRecords(List<DNSRecord> aRecords) {
 		DNSRecord answer = _LocalInfo.getDNSAddressRecord(DNSEntry.EntryType.A);
-        if(answer != null)
-        	aMessage.addAnswer(answer);
-        answer = _LocalInfo.getDNSAddressRecord(DNSEntry.EntryType.AAAA);
-        if(answer != null)
-        	aMessage.addAnswer(answer);
-        _LocalInfo.advanceState();
+		if(answer != null)
+			aRecords.add(answer);
+		answer = _LocalInfo.getDNSAddressRecord(DNSEntry.EntryType.AAAA);
+		if(answer != null)
+			aRecords.add(answer);
+		
+		// Once the host is announced its records only go out for the services.
+		if(_LocalInfo.getState().isAnnouncing())
+			_LocalInfo.advanceState();
 	}
 
 }
@@ -0,0 +1,143 @@
+/**
+ * Copyright 2007 Jeff Ward
+ * Portions may be pulled from JmDNS and are therefore
+ * the copyright of the JmDNS team
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.orbus.mahalo.tasks;
+
+import java.util.Timer;
+import java.util.TimerTask;
+
+import org.apache.log4j.Logger;
+
+import com.orbus.mahalo.dns.DNSEntry;
+import com.orbus.mahalo.dns.DNSQuestion;
+
+/**
+ * Repeats the PTR query for a browsed service type.  The first query goes
+ * out after a short random delay, the next one a second later and every
+ * query after that doubles the interval until it reaches an hour.  A small
+ * random amount is added to each interval so browsers that started together
+ * drift apart.  See Cheshire draft chapter 5.2.
+ * 
+ * Queries are handed to the QueryScheduler along with that random amount as
+ * the window they may be sent in, so queries for other types due around the
+ * same time can share a packet.  The scheduler lists the cached answers that
+ * still have more than half their TTL left so responders only answer with
+ * what we don't already know.
+ * 
+ * When another host asks the same question first we treat our own query
+ * as sent (see Cheshire draft chapter 7.3).
+ *
+ * @author Jeff Ward
+ */
+public class BrowseQuerier {
+	public static final int INTERVAL_MIN = 1000;
+	public static final int INTERVAL_MAX = 60 * 60 * 1000;
+
+	private static final int START_DELAY_MIN = 20;
+	private static final int START_DELAY_MAX = 120;
+	private static final int JITTER_PERCENT = 2;
+
+	private static final Logger s_Logger = Logger.getLogger(BrowseQuerier.class);
+
+	private QueryScheduler _Scheduler;
+	private Timer _Timer;
+	private String _sType;
+	private DNSQuestion _Question;
+
+	private int _iInterval;
+	private int _iWindow;
+	private TimerTask _Task;
+	private boolean _bCanceled;
+
+	public BrowseQuerier(QueryScheduler aScheduler, Timer aTimer, String asType) {
+		_Scheduler = aScheduler;
+		_Timer = aTimer;
+		_sType = asType;
+		_Question = new DNSQuestion(_sType, DNSEntry.EntryType.PTR, DNSEntry.EntryClass.IN, false);
+	}
+
+	public String getType() {
+		return _sType;
+	}
+
+	/**
+	 * Start querying again from the shortest interval.
+	 */
+	public synchronized void reset() {
+		if(_Task != null)
+			_Task.cancel();
+
+		_bCanceled = false;
+		_iInterval = INTERVAL_MIN;
+		_iWindow = START_DELAY_MAX - START_DELAY_MIN;
+		schedule(START_DELAY_MIN);
+	}
+
+	/**
+	 * Stop querying.
+	 */
+	public synchronized void cancel() {
+		_bCanceled = true;
+		_Scheduler.cancel(_Question);
+		if(_Task != null) {
+			_Task.cancel();
+			_Task = null;
+		}
+	}
+
+	/**
+	 * Another host has asked our question with no known answers we wouldn't
+	 * have given, so the responses to it will tell us everything our next
+	 * query would have.  Treat that query as sent.
+	 */
+	public synchronized void duplicateQuestionSeen() {
+		if(_bCanceled || _Task == null)
+			return;
+
+		s_Logger.trace("Duplicate question for " + _sType + " seen, next query in " + _iInterval + "ms");
+		_Scheduler.cancel(_Question);
+		_Task.cancel();
+		scheduleNext();
+	}
+
+	private void schedule(long alDelay) {
+		_Task = new TimerTask() {
+			@Override
+			public void run() {
+				onTimer(this);
+			}
+		};
+		_Timer.schedule(_Task, alDelay);
+	}
+
+	private synchronized void onTimer(TimerTask aTask) {
+		// A task replaced while it waited for us must not start a second chain.
+		if(_bCanceled || aTask != _Task)
+			return;
+
+		_Scheduler.schedule(_Question, 0, _iWindow);
+
+		s_Logger.trace("Next query for " + _sType + " in " + _iInterval + "ms");
+		scheduleNext();
+	}
+
+	private void scheduleNext() {
+		_iWindow = _iInterval * JITTER_PERCENT / 100;
+		schedule(_iInterval);
+		_iInterval = Math.min(_iInterval * 2, INTERVAL_MAX);
+	}
+}
@@ -0,0 +1,49 @@
+/**
+ * Copyright 2007 Jeff Ward
+ * Portions may be pulled from JmDNS and are therefore
+ * the copyright of the JmDNS team
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.orbus.mahalo.tasks;
+
+import java.io.IOException;
+import java.util.TimerTask;
+
+import org.apache.log4j.Logger;
+
+import com.orbus.mahalo.dns.DNSCache;
+import com.orbus.mahalo.dns.DNSCacheSnapshot;
+
+public class CacheSnapshotWriter extends TimerTask {
+	public static final int INTERVAL = 30000;
+
+	private static final Logger s_Logger = Logger.getLogger(CacheSnapshotWriter.class);
+
+	private DNSCache _Cache;
+	private DNSCacheSnapshot _Snapshot;
+
+	public CacheSnapshotWriter(DNSCache aCache, DNSCacheSnapshot aSnapshot) {
+		_Cache = aCache;
+		_Snapshot = aSnapshot;
+	}
+
+	@Override
+	public void run() {
+		try {
+			_Snapshot.write(_Cache);
+		} catch(IOException e) {
+			s_Logger.warn("Error writing cache snapshot to " + _Snapshot.getFile() + ": " + e.getMessage());
+		}
+	}
+}
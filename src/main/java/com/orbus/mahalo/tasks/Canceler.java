@@ -17,9 +17,10 @@
  */
 package com.orbus.mahalo.tasks;
 
+import java.util.Collection;
+import java.util.Collections;
 import java.util.LinkedList;
 import java.util.List;
-import java.util.TimerTask;
 
 import com.orbus.mahalo.MahaloSocket;
 import com.orbus.mahalo.HostInfo;
@@ -28,22 +29,32 @@ import com.orbus.mahalo.dns.DNSEntry;
 import com.orbus.mahalo.dns.DNSPacket;
 import com.orbus.mahalo.dns.DNSRecord;
 
-public class Canceler extends TimerTask {
+public class Canceler extends ScheduledTask {
 	public static final int INTERVAL = 1000;
 	
 	private MahaloSocket _Socket;
 	private HostInfo _LocalInfo;
 	private int _iCount = 0;
 	private List<ServiceInfo> _LocalServices;
+	private List<String> _GoneTypes;
 	
 	public Canceler(MahaloSocket aSocket, HostInfo aLocalInfo, List<ServiceInfo> aServices) {
+		this(aSocket, aLocalInfo, aServices, Collections.<String>emptyList());
+	}
+	
+	/**
+	 * @param aGoneTypes the types we no longer advertise any service of, 
+	 *                   which are withdrawn from service type enumeration.
+	 */
+	public Canceler(MahaloSocket aSocket, HostInfo aLocalInfo, List<ServiceInfo> aServices, Collection<String> aGoneTypes) {
 		_Socket = aSocket;
 		_LocalInfo = aLocalInfo;
 		_LocalServices = new LinkedList<ServiceInfo>(aServices);
+		_GoneTypes = new LinkedList<String>(aGoneTypes);
 	}
 	
 	@Override
-	public void run() {
+	protected void runTask() {
 		_iCount++;
 		
 		DNSPacket outPacket = new DNSPacket(true);
@@ -53,11 +64,20 @@ public class Canceler extends TimerTask {
         {
             outPacket.addAnswer(new DNSRecord.Pointer(info.getType(), DNSEntry.EntryType.PTR, 
             		DNSEntry.EntryClass.IN, 0, info.getQualifiedName()));
+            for(String ssubtype : info.getSubtypes()) {
+            	outPacket.addAnswer(new DNSRecord.Pointer(info.getSubtypeName(ssubtype), DNSEntry.EntryType.PTR, 
+            			DNSEntry.EntryClass.IN, 0, info.getQualifiedName()));
+            }
             outPacket.addAnswer(new DNSRecord.Service(info.getQualifiedName(), DNSEntry.EntryClass.IN,
             		true, 0, info.getPriority(), info.getWeight(), info.getPort(), _LocalInfo.getName()));
             outPacket.addAnswer(new DNSRecord.Text(info.getQualifiedName(), DNSEntry.EntryClass.IN, 
             		true, 0, info.getTextBytes()));
         }
+        for (String stype : _GoneTypes)
+        {
+        	outPacket.addAnswer(new DNSRecord.Pointer(DNSEntry.SERVICE_TYPE_ENUMERATION, DNSEntry.EntryType.PTR, 
+        			DNSEntry.EntryClass.IN, 0, stype));
+        }
         
         _Socket.send(outPacket);
         
@@ -0,0 +1,133 @@
+/**
+ * Copyright 2007 Jeff Ward
+ * Portions may be pulled from JmDNS and are therefore
+ * the copyright of the JmDNS team
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.orbus.mahalo.tasks;
+
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.util.Collections;
+import java.util.LinkedList;
+import java.util.List;
+
+import org.apache.log4j.Logger;
+
+import com.orbus.mahalo.dns.DNSPacket;
+import com.orbus.mahalo.dns.DNSQuestion;
+import com.orbus.mahalo.dns.DNSRecord;
+
+/**
+ * Packs questions and records into as few packets of MAX_PACKET_SIZE as
+ * they fit in.  Whatever is added in one call stays in one packet when it
+ * can, so a probe's question and the records it proposes are never split
+ * up.  A group too big for any one packet is split record by record, and a
+ * single record too big for MAX_PACKET_SIZE gets a packet of its own sized
+ * to fit it, up to the largest message mDNS allows.  Packets are filled
+ * whole rather than spilled, so none are truncated.
+ *
+ * @author Jeff Ward
+ */
+public class PacketPacker {
+	public static final int MAX_PACKET_SIZE = DNSPacket.MAX_MSG_TYPICAL;
+	
+	private static final int HEADER_SIZE = 12;
+	private static final Logger s_Logger = Logger.getLogger(PacketPacker.class);
+	
+	private boolean _bResponse;
+	private ByteBuffer _Scratch = ByteBuffer.allocate(DNSPacket.MAX_MSG_ABSOLUTE);
+	private List<DNSPacket> _Packets = new LinkedList<DNSPacket>();
+	private DNSPacket _Packet;
+	private int _iSize;
+	
+	public PacketPacker(boolean abResponse) {
+		_bResponse = abResponse;
+	}
+	
+	public void add(DNSQuestion aQuestion, List<DNSRecord> aRecords) {
+		List<DNSQuestion> questions;
+		if(aQuestion != null)
+			questions = Collections.singletonList(aQuestion);
+		else
+			questions = Collections.emptyList();
+		add(questions, aRecords);
+	}
+	
+	public void add(List<DNSQuestion> aQuestions, List<DNSRecord> aRecords) {
+		int iquestionSize = 0;
+		for(DNSQuestion question : aQuestions)
+			iquestionSize += sizeOf(question);
+		int[] recordSizes = new int[aRecords.size()];
+		int isize = iquestionSize;
+		for(int i = 0; i < recordSizes.length; ++i) {
+			recordSizes[i] = sizeOf(aRecords.get(i));
+			isize += recordSizes[i];
+		}
+		
+		if(HEADER_SIZE + isize <= MAX_PACKET_SIZE || aRecords.size() <= 1) {
+			place(aQuestions, aRecords, isize);
+			return;
+		}
+		
+		// Too big for one packet, so the questions go with the first record.
+		List<DNSQuestion> questions = aQuestions;
+		for(int i = 0; i < recordSizes.length; ++i) {
+			place(questions, Collections.singletonList(aRecords.get(i)), iquestionSize + recordSizes[i]);
+			questions = Collections.emptyList();
+			iquestionSize = 0;
+		}
+	}
+	
+	public List<DNSPacket> getPackets() {
+		return _Packets;
+	}
+	
+	private void place(List<DNSQuestion> aQuestions, List<DNSRecord> aRecords, int aiSize) {
+		if(HEADER_SIZE + aiSize > DNSPacket.MAX_MSG_ABSOLUTE) {
+			s_Logger.warn("Dropping records too large for any message: " + aRecords);
+			return;
+		}
+		
+		if(_Packet == null || _iSize + aiSize > MAX_PACKET_SIZE) {
+			_Packet = new DNSPacket(_bResponse);
+			_Packet.setAuthoritativeAnswer(_bResponse);
+			_Packet.setMaxMessageSize(Math.max(MAX_PACKET_SIZE, HEADER_SIZE + aiSize));
+			_Packets.add(_Packet);
+			_iSize = HEADER_SIZE;
+		}
+		
+		for(DNSQuestion question : aQuestions)
+			_Packet.addQuestion(question);
+		for(DNSRecord record : aRecords)
+			_Packet.addAnswer(record);
+		_iSize += aiSize;
+	}
+	
+	private int sizeOf(DNSQuestion aQuestion) {
+		_Scratch.clear();
+		aQuestion.write(_Scratch);
+		return _Scratch.position();
+	}
+	
+	private int sizeOf(DNSRecord aRecord) {
+		_Scratch.clear();
+		try {
+			aRecord.write(_Scratch);
+		} catch(BufferOverflowException e) {
+			return DNSPacket.MAX_MSG_ABSOLUTE;
+		}
+		return _Scratch.position();
+	}
+}
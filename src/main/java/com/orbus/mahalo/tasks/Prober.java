@@ -19,11 +19,12 @@ package com.orbus.mahalo.tasks;
 
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
+import java.util.Iterator;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Random;
-import java.util.Timer;
-import java.util.TimerTask;
+import java.util.concurrent.ScheduledExecutorService;
 
 import com.orbus.mahalo.HostInfo;
 import com.orbus.mahalo.MahaloSocket;
@@ -34,48 +35,71 @@ import com.orbus.mahalo.dns.DNSPacket;
 import com.orbus.mahalo.dns.DNSQuestion;
 import com.orbus.mahalo.dns.DNSRecord;
 
-public class Prober extends TimerTask {
+/**
+ * Probes for the host name and for services before they are announced (see
+ * Cheshire draft chapter 8.1).  A broadcaster keeps one prober running while
+ * there is anything to probe, and services registered meanwhile join it, so
+ * probing a batch of services costs as many packets as their probes fill
+ * rather than one per service.  Services that finish probing are handed to
+ * the prober's announcer in the same way.
+ *
+ * @author Jeff Ward
+ */
+public class Prober extends ScheduledTask {
 	public static final int INTERVAL = 250;
 
 	private static final Random s_Random = new Random();
 
 	private MahaloSocket _Socket;
-	private Timer _Timer;
+	private ScheduledExecutorService _Executor;
 	private HostInfo _HostInfo;	
 
-	private List<ServiceInfo> _ProbeList;
+	private List<ServiceInfo> _ProbeList = new LinkedList<ServiceInfo>();
+	private List<Announcer> _Announcers = new LinkedList<Announcer>();
 
-	public Prober(MahaloSocket aSocket, Timer aTimer, HostInfo aHostInfo, Collection<ServiceInfo> aProbeList) {
+	public Prober(MahaloSocket aSocket, ScheduledExecutorService aExecutor, HostInfo aHostInfo, Collection<ServiceInfo> aProbeList) {
 		_Socket = aSocket;
-		_Timer = aTimer;
+		_Executor = aExecutor;
 		_HostInfo = aHostInfo;
 		if (aProbeList != null)
-			_ProbeList = new ArrayList<ServiceInfo>(aProbeList);
-		else
-			_ProbeList = null;
+			_ProbeList.addAll(aProbeList);
+	}
+
+	/**
+	 * Probe for more services, starting from their first probe.
+	 * 
+	 * @return false if the prober has finished, so a new one is needed.
+	 */
+	public synchronized boolean add(Collection<ServiceInfo> aProbeList) {
+		if (isCanceled())
+			return false;
+		
+		_ProbeList.addAll(aProbeList);
+		return true;
 	}
 
 	@Override
-	public void run() {
+	protected void runTask() {
 		List<ServiceInfo> announceList = new LinkedList<ServiceInfo>();
-		DNSPacket outPacket = new DNSPacket(false);
-
-		// First try to probe our host name if that's been supplied
-		if (_HostInfo.getState().isProbing()) {
-			synchronized (_HostInfo) {
-				DNSQuestion question = new DNSQuestion(_HostInfo.getName(), DNSEntry.EntryType.ANY, DNSEntry.EntryClass.IN, false);
-				if(_HostInfo.getState() == ServiceState.PROBING_1 || _HostInfo.getState() == ServiceState.PROBING_2)
-					question.setWantsUnicastResponce(true);
-				outPacket.addQuestion(question);
-						
-				DNSRecord answer = _HostInfo.getDNSAddressRecord(DNSEntry.EntryType.A);
-				if (answer != null)
-					outPacket.addAnswer(answer);
-				_HostInfo.advanceState();
+		PacketPacker packer = new PacketPacker(false);
+		
+		synchronized (this) {
+			// First try to probe our host name if that's been supplied
+			if (_HostInfo.getState().isProbing()) {
+				synchronized (_HostInfo) {
+					DNSQuestion question = new DNSQuestion(_HostInfo.getName(), DNSEntry.EntryType.ANY, DNSEntry.EntryClass.IN, false);
+					if(_HostInfo.getState() == ServiceState.PROBING_1 || _HostInfo.getState() == ServiceState.PROBING_2)
+						question.setWantsUnicastResponce(true);
+							
+					List<DNSRecord> proposed = new ArrayList<DNSRecord>(1);
+					DNSRecord answer = _HostInfo.getDNSAddressRecord(DNSEntry.EntryType.A);
+					if (answer != null)
+						proposed.add(answer);
+					packer.add(question, proposed);
+					_HostInfo.advanceState();
+				}
 			}
-		}
-
-		if (_ProbeList != null && _ProbeList.size() > 0) {
+	
 			// Next, send probes for any services
 			for (ServiceInfo info : _ProbeList) {
 				if (info.getState().isProbing()) {
@@ -88,11 +112,11 @@ public class Prober extends TimerTask {
 						if(info.getState() == ServiceState.PROBING_1 || info.getState() == ServiceState.PROBING_2)
 							question.setWantsUnicastResponce(true);
 						
-						outPacket.addQuestion(question);
-						outPacket.addAnswer(new DNSRecord.Service(info.getQualifiedName(),
+						DNSRecord proposed = new DNSRecord.Service(info.getQualifiedName(),
 										DNSEntry.EntryClass.IN, false, DNSEntry.TTL, 
 										info.getPriority(), info.getWeight(), info.getPort(),
-										_HostInfo.getName()));
+										_HostInfo.getName());
+						packer.add(question, Collections.singletonList(proposed));
 						info.advanceState();
 						if (info.getState().isAnnouncing())
 							announceList.add(info);
@@ -101,19 +125,67 @@ public class Prober extends TimerTask {
 			}
 
 			// Remove all announcing service infos
-			for (ServiceInfo info : announceList)
-				_ProbeList.remove(info);
+			_ProbeList.removeAll(announceList);
+			
+			// Nothing else to do, so later services need a new prober.
+			if (packer.getPackets().isEmpty())
+				cancel();
 		}
 
-		// Send the probe
-		if (outPacket.getQuestions().size() != 0)
-			_Socket.send(outPacket);
-		else
-			cancel(); // Nothing else to do.
+		for (DNSPacket packet : packer.getPackets())
+			_Socket.send(packet);
 
 		if (announceList.size() > 0)
-			_Timer.schedule(new Announcer(_Socket, _HostInfo, announceList),
-					Announcer.INTERVAL, Announcer.INTERVAL);
+			announce(announceList);
+	}
+	
+	/**
+	 * Hand services that have finished probing to the announcer, starting a
+	 * new one if the last has finished.
+	 */
+	private void announce(List<ServiceInfo> aAnnounceList) {
+		synchronized (_Announcers) {
+			if (!_Announcers.isEmpty() && _Announcers.get(_Announcers.size() - 1).add(aAnnounceList))
+				return;
+			
+			// Drop announcers that are done so the list doesn't grow.
+			for (Iterator<Announcer> iter = _Announcers.iterator(); iter.hasNext(); ) {
+				if (iter.next().isCanceled())
+					iter.remove();
+			}
+			
+			Announcer announcer = new Announcer(_Socket, _HostInfo, aAnnounceList);
+			_Announcers.add(announcer);
+			announcer.schedule(_Executor, Announcer.INTERVAL, Announcer.INTERVAL);
+		}
+	}
+	
+	/**
+	 * Stop probing, and stop the announcers this prober started.
+	 */
+	@Override
+	public boolean cancel() {
+		boolean bresult = super.cancel();
+		synchronized (_Announcers) {
+			for (Announcer announcer : _Announcers)
+				announcer.cancel();
+		}
+		return bresult;
+	}
+	
+	/**
+	 * True once probing and every announcement it led to are done.
+	 */
+	public boolean isFinished() {
+		if (!isCanceled())
+			return false;
+		synchronized (_Announcers) {
+			for (Announcer announcer : _Announcers) {
+				if (!announcer.isCanceled())
+					return false;
+			}
+		}
+		return true;
 	}
 
 	public static int GetStartProbeTime() {
@@ -0,0 +1,283 @@
+/**
+ * Copyright 2007 Jeff Ward
+ * Portions may be pulled from JmDNS and are therefore
+ * the copyright of the JmDNS team
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.orbus.mahalo.tasks;
+
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Timer;
+import java.util.TimerTask;
+
+import org.apache.log4j.Logger;
+
+import com.orbus.mahalo.MahaloSocket;
+import com.orbus.mahalo.dns.DNSCache;
+import com.orbus.mahalo.dns.DNSPacket;
+import com.orbus.mahalo.dns.DNSQuestion;
+import com.orbus.mahalo.dns.DNSRecord;
+
+/**
+ * Sends the questions for every browse, refresh and resolve query through
+ * one place, so questions due at about the same time share packets.
+ * 
+ * Each question is scheduled with a window it may be sent in.  When the
+ * first window closes, every question whose window has opened goes out,
+ * packed into as few packets of MAX_PACKET_SIZE as they fit in.  Each
+ * packet carries the known answers for the questions in it.  Where a window
+ * closes is picked at random, so hosts that started together drift apart.
+ *
+ * @author Jeff Ward
+ */
+public class QueryScheduler {
+	public static final int MAX_PACKET_SIZE = DNSPacket.MAX_MSG_TYPICAL;
+	
+	private static final int HEADER_SIZE = 12;
+	private static final Random s_Random = new Random();
+	private static final Logger s_Logger = Logger.getLogger(QueryScheduler.class);
+	
+	private MahaloSocket _Socket;
+	private DNSCache _Cache;
+	private Timer _Timer;
+	
+	// Keyed by type, class and lower case name.
+	private Map<String, Pending> _Pending = new HashMap<String, Pending>();
+	private TimerTask _Task;
+	private long _lTaskTime;
+	private boolean _bCanceled;
+	
+	private ByteBuffer _Scratch = ByteBuffer.allocate(DNSPacket.MAX_MSG_ABSOLUTE);
+	private long _lPacketsSent;
+	private long _lQuestionsSent;
+	private boolean _bPassive;
+	private long _lQuestionsSuppressed;
+	
+	public QueryScheduler(MahaloSocket aSocket, DNSCache aCache, Timer aTimer) {
+		_Socket = aSocket;
+		_Cache = aCache;
+		_Timer = aTimer;
+	}
+	
+	/**
+	 * Send a question between alDelay and alDelay + alWindow milliseconds from
+	 * now.  If the question is already waiting, it keeps the earlier of the
+	 * two windows.
+	 */
+	public synchronized void schedule(DNSQuestion aQuestion, long alDelay, long alWindow) {
+		if(_bCanceled)
+			return;
+		if(_bPassive) {
+			++_lQuestionsSuppressed;
+			return;
+		}
+		
+		long learliest = System.currentTimeMillis() + alDelay;
+		long llatest = learliest + (alWindow > 0 ? (long)(s_Random.nextDouble() * alWindow) : 0);
+		
+		String skey = getKey(aQuestion);
+		Pending pending = _Pending.get(skey);
+		if(pending == null)
+			_Pending.put(skey, new Pending(aQuestion, learliest, llatest));
+		else {
+			pending._lEarliest = Math.min(pending._lEarliest, learliest);
+			pending._lLatest = Math.min(pending._lLatest, llatest);
+		}
+		
+		scheduleFlush();
+	}
+	
+	/**
+	 * Don't send a question that is waiting.
+	 */
+	public synchronized void cancel(DNSQuestion aQuestion) {
+		_Pending.remove(getKey(aQuestion));
+	}
+	
+	/**
+	 * Stop sending anything.
+	 */
+	public synchronized void cancel() {
+		_bCanceled = true;
+		_Pending.clear();
+		if(_Task != null) {
+			_Task.cancel();
+			_Task = null;
+		}
+	}
+	
+	/**
+	 * In passive mode nothing is sent.  Questions scheduled are dropped and
+	 * counted, and questions already waiting are dropped straight away.
+	 */
+	public synchronized void setPassive(boolean abPassive) {
+		_bPassive = abPassive;
+		if(abPassive) {
+			_lQuestionsSuppressed += _Pending.size();
+			_Pending.clear();
+			if(_Task != null) {
+				_Task.cancel();
+				_Task = null;
+			}
+		}
+	}
+	
+	public synchronized boolean isPassive() {
+		return _bPassive;
+	}
+	
+	public synchronized int getPendingCount() {
+		return _Pending.size();
+	}
+	
+	public synchronized long getPacketsSent() {
+		return _lPacketsSent;
+	}
+	
+	public synchronized long getQuestionsSent() {
+		return _lQuestionsSent;
+	}
+	
+	/**
+	 * The number of questions not sent because of passive mode.
+	 */
+	public synchronized long getQuestionsSuppressed() {
+		return _lQuestionsSuppressed;
+	}
+	
+	private void scheduleFlush() {
+		if(_Pending.isEmpty())
+			return;
+		
+		long lnext = Long.MAX_VALUE;
+		for(Pending pending : _Pending.values())
+			lnext = Math.min(lnext, pending._lLatest);
+		
+		if(_Task != null) {
+			if(_lTaskTime <= lnext)
+				return;
+			_Task.cancel();
+		}
+		
+		_lTaskTime = lnext;
+		_Task = new TimerTask() {
+			@Override
+			public void run() {
+				flush();
+			}
+		};
+		_Timer.schedule(_Task, Math.max(0, lnext - System.currentTimeMillis()));
+	}
+	
+	private void flush() {
+		List<DNSPacket> packets;
+		synchronized(this) {
+			_Task = null;
+			if(_bCanceled)
+				return;
+			
+			long now = System.currentTimeMillis();
+			List<DNSQuestion> due = new LinkedList<DNSQuestion>();
+			for(Iterator<Pending> iter = _Pending.values().iterator(); iter.hasNext(); ) {
+				Pending pending = iter.next();
+				if(pending._lEarliest <= now) {
+					due.add(pending._Question);
+					iter.remove();
+				}
+			}
+			
+			packets = pack(due);
+			_lPacketsSent += packets.size();
+			_lQuestionsSent += due.size();
+			scheduleFlush();
+		}
+		
+		for(DNSPacket packet : packets)
+			send(packet);
+	}
+	
+	protected void send(DNSPacket aPacket) {
+		_Socket.send(aPacket);
+	}
+	
+	/**
+	 * Fill each packet with questions and their known answers until the next
+	 * question would not fit.  A question whose known answers don't fit in a
+	 * packet of their own gets one anyway, and the answers spill over into
+	 * follow up messages.
+	 */
+	private List<DNSPacket> pack(List<DNSQuestion> aQuestions) {
+		List<DNSPacket> retPackets = new LinkedList<DNSPacket>();
+		DNSPacket packet = null;
+		int isize = 0;
+		
+		for(DNSQuestion question : aQuestions) {
+			List<DNSRecord> knownAnswers = _Cache.getKnownAnswers(question.getName(), question.getType(), question.getDNSClass());
+			
+			int iquestionSize = sizeOf(question);
+			for(DNSRecord knownAnswer : knownAnswers)
+				iquestionSize += sizeOf(knownAnswer);
+			
+			if(packet == null || isize + iquestionSize > MAX_PACKET_SIZE) {
+				packet = new DNSPacket(false);
+				packet.setMaxMessageSize(MAX_PACKET_SIZE);
+				retPackets.add(packet);
+				isize = HEADER_SIZE;
+			}
+			
+			packet.addQuestion(question);
+			for(DNSRecord knownAnswer : knownAnswers)
+				packet.addAnswer(knownAnswer);
+			isize += iquestionSize;
+		}
+		
+		if(s_Logger.isTraceEnabled() && aQuestions.size() > 0)
+			s_Logger.trace("Packed " + aQuestions.size() + " questions into " + retPackets.size() + " packets");
+		return retPackets;
+	}
+	
+	private int sizeOf(DNSQuestion aQuestion) {
+		_Scratch.clear();
+		aQuestion.write(_Scratch);
+		return _Scratch.position();
+	}
+	
+	private int sizeOf(DNSRecord aRecord) {
+		_Scratch.clear();
+		aRecord.write(_Scratch);
+		return _Scratch.position();
+	}
+	
+	private static String getKey(DNSQuestion aQuestion) {
+		return aQuestion.getType() + " " + aQuestion.getDNSClass() + " " + aQuestion.getName().toLowerCase();
+	}
+	
+	private static class Pending {
+		private DNSQuestion _Question;
+		private long _lEarliest;
+		private long _lLatest;
+		
+		Pending(DNSQuestion aQuestion, long alEarliest, long alLatest) {
+			_Question = aQuestion;
+			_lEarliest = alEarliest;
+			_lLatest = alLatest;
+		}
+	}
+}
@@ -18,47 +18,91 @@
 package com.orbus.mahalo.tasks;
 
 import java.net.InetAddress;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.LinkedList;
+import java.util.List;
 import java.util.Map;
 import java.util.Random;
-import java.util.TimerTask;
+import java.util.Set;
 
 import org.apache.log4j.Logger;
 
 import com.orbus.mahalo.HostInfo;
 import com.orbus.mahalo.MahaloSocket;
 import com.orbus.mahalo.ServiceInfo;
+import com.orbus.mahalo.ServiceRegistry;
 import com.orbus.mahalo.dns.DNSEntry;
 import com.orbus.mahalo.dns.DNSPacket;
 import com.orbus.mahalo.dns.DNSQuestion;
 import com.orbus.mahalo.dns.DNSRecord;
 
-public class Responder extends TimerTask {
+/**
+ * Answers one query from our local services.  Responders are handed out by
+ * a Pool and go back to it once they have run, so a busy network doesn't
+ * cost a new task for every query heard.  Multicast answers go through the
+ * pool's ResponseAggregator rather than straight out.
+ *
+ * @author Jeff Ward
+ */
+public class Responder implements Runnable {
+	public static final int POOL_SIZE = 16;
 
 	private static final int INTERVAL_MIN = 20;
 	private static final int INTERVAL_MAX = 115;
+	private static final int TRUNCATED_WAIT_MIN = 400;
+	private static final int TRUNCATED_WAIT_MAX = 500;
 	private static final Random s_Random = new Random();
 	
 	private static final Logger s_Logger = Logger.getLogger(Responder.class);	
 	
+	Pool _Pool;
 	MahaloSocket _Socket;
 	HostInfo _LocalInfo;
-	Map<String, ServiceInfo> _LocalServices;
+	ServiceRegistry _LocalServices;
 	DNSPacket _InPacket;
 	InetAddress _Address;
 	int _iPort;
 	
-	public Responder(MahaloSocket aSocket, HostInfo aLocalInfo, Map<String, ServiceInfo> aLocalServices, DNSPacket aInPacket,
-			InetAddress aAddress, int aiPort) {
-		_Socket = aSocket;
-		_LocalServices = aLocalServices;
-		_LocalInfo = aLocalInfo;
-		_InPacket = aInPacket;
-		_Address = aAddress;
-		_iPort = aiPort;
+	Responder(Pool aPool) {
+		_Pool = aPool;
+		_Socket = aPool._Socket;
+		_LocalServices = aPool._LocalServices;
+		_LocalInfo = aPool._LocalInfo;
 	}
 	
-	@Override
 	public void run() {
+		DNSPacket multicastPacket = null;
+		try {
+			multicastPacket = respond();
+		} catch(RuntimeException e) {
+			s_Logger.error("Failed to respond to query from " + _Address, e);
+		} finally {
+			_Pool._Aggregator.responderFinished(multicastPacket, multicastPacket != null && isProbe());
+			_Pool.release(this);
+		}
+	}
+	
+	/**
+	 * True if the query is a probe for one of our names (see Cheshire draft
+	 * chapter 9.1), which we defend whenever we last announced the name.
+	 */
+	private boolean isProbe() {
+		for(DNSQuestion question : _InPacket.getQuestions()) {
+			if(question.getType() == DNSEntry.EntryType.ANY && (_LocalInfo.getName().equalsIgnoreCase(question.getName()) 
+					|| _LocalServices.contains(question.getName())))
+				return true;
+		}
+		return false;
+	}
+	
+	/**
+	 * Send the unicast answers to the query.
+	 * 
+	 * @return the response to multicast, or null if there is none.
+	 */
+	private DNSPacket respond() {
 		// This automatically copies the questions to the output packet.
 		DNSPacket outPacket = _InPacket.createResponce(true);
 		//outPacket.setAuthoritativeAnswer(true);
@@ -76,17 +120,40 @@ public class Responder extends TimerTask {
             String squery = question.getName().toLowerCase();
             DNSEntry.EntryType questionType = question.getType();
 
-            if(questionType == DNSEntry.EntryType.PTR) {
-            	for(ServiceInfo info : _LocalServices.values()) {
-        			if(info.getType().endsWith(squery) && info.getState().isAnnounced()) {
-            			outPacket.addAnswer(new DNSRecord.Pointer(info.getType(), DNSEntry.EntryType.PTR, 
-            				DNSEntry.EntryClass.IN, DNSEntry.TTL, info.getQualifiedName()));
+            if(questionType == DNSEntry.EntryType.PTR && squery.equals(DNSEntry.SERVICE_TYPE_ENUMERATION)) {
+            	// Name each type we advertise once, however many services it has.
+            	for(String stype : _LocalServices.getTypes()) {
+            		for(ServiceInfo info : _LocalServices.getByType(stype)) {
+            			if(info.getState().isAnnounced()) {
+            				outPacket.addAnswer(new DNSRecord.Pointer(DNSEntry.SERVICE_TYPE_ENUMERATION, DNSEntry.EntryType.PTR,
+            					DNSEntry.EntryClass.IN, DNSEntry.TTL, info.getType()));
+            				break;
+            			}
+            		}
+            	}
+            }
+            else if(questionType == DNSEntry.EntryType.PTR) {
+            	// A subtype name points at its services just like a type does.
+            	List<ServiceInfo> subtypeList = _LocalServices.getBySubtype(squery);
+            	for(ServiceInfo info : subtypeList) {
+            		if(info.getState().isAnnounced()) {
+            			outPacket.addAnswer(new DNSRecord.Pointer(question.getName(), DNSEntry.EntryType.PTR, 
+                				DNSEntry.EntryClass.IN, DNSEntry.TTL, info.getQualifiedName()));
             		}
             	}
+            	
+            	if(subtypeList.isEmpty()) {
+	            	for(ServiceInfo info : _LocalServices.match(squery)) {
+	        			if(info.getState().isAnnounced()) {
+	            			outPacket.addAnswer(new DNSRecord.Pointer(info.getType(), DNSEntry.EntryType.PTR, 
+	            				DNSEntry.EntryClass.IN, DNSEntry.TTL, info.getQualifiedName()));
+	            		}
+	            	}
+            	}
             }
-            else if(_LocalServices.containsKey(squery)){
+            else if(_LocalServices.contains(squery)){
             	ServiceInfo info = _LocalServices.get(squery);
-            	if(info.getState().isAnnounced())
+            	if(info != null && info.getState().isAnnounced())
             	{
             		// TODO: Add support for AAAA / IPv6 queries
 		            if(questionType == DNSEntry.EntryType.A || questionType == DNSEntry.EntryType.ANY) {
@@ -94,35 +161,18 @@ public class Responder extends TimerTask {
 		            	if(answer != null)
 		            		outPacket.addAnswer(answer);
 		            }
-		            if(questionType == DNSEntry.EntryType.SRV || questionType == DNSEntry.EntryType.ANY) {
-		            	outPacket.addAnswer(new DNSRecord.Service(info.getQualifiedName(), DNSEntry.EntryClass.IN, 
-		            			true, DNSEntry.TTL, info.getPriority(), info.getWeight(), info.getPort(), _LocalInfo.getName()));
-		            }
-		            if(questionType == DNSEntry.EntryType.TXT || questionType == DNSEntry.EntryType.ANY) {
-		            	outPacket.addAnswer(new DNSRecord.Text(info.getQualifiedName(), DNSEntry.EntryClass.IN, true, 
-		            			DNSEntry.TTL, info.getTextBytes()));
-		            }
-		            if(questionType == DNSEntry.EntryType.SRV) {
-		            	DNSRecord answer = _LocalInfo.getDNSAddressRecord(DNSEntry.EntryType.A);
-		            	if(answer != null)
-		            		outPacket.addAnswer(answer);
-		            }
+		            if(questionType == DNSEntry.EntryType.SRV || questionType == DNSEntry.EntryType.ANY)
+		            	outPacket.addAnswer(createService(info));
+		            if(questionType == DNSEntry.EntryType.TXT || questionType == DNSEntry.EntryType.ANY)
+		            	outPacket.addAnswer(createText(info));
             	}
             }
         }
 
-        // remove known answers, if the ttl is at least half of
-        // the correct value. (See Draft Cheshire chapter 7.1.).
-        for (DNSRecord knownAnswer : _InPacket.getAnswers())
-        {
-            // TODO: This is incorrect.  The TTL isn't updated correctly and we should base it
-        	// off of the ORIGINAL TTL sent, not our constant.
-        	if (knownAnswer.getTTL() > DNSEntry.TTL / 2)
-            {
-            	outPacket.getAnswers().remove(knownAnswer);
-                // TODO: Log known answer removal.
-            }
-        }
+        Map<String, List<DNSRecord>> knownAnswers = getKnownAnswers();
+        removeKnownAnswers(outPacket.getAnswers(), knownAnswers);
+        addAdditionals(outPacket);
+        removeKnownAnswers(outPacket.getAdditionals(), knownAnswers);
 
         // respond if we have answers
         if (outPacket.getAnswers().size() != 0)
@@ -132,10 +182,110 @@ public class Responder extends TimerTask {
         		_Socket.send(outPacket, _Address, _iPort);
         	}
         	else
-        		_Socket.send(outPacket);
+        		return outPacket;
         }
         else
         	s_Logger.trace("Found no responces to questions posed to the responder.");
+        
+        return null;
+	}
+	
+	/**
+	 * Add the records the asker will want next (see RFC 6763 chapter 12): the
+	 * SRV, TXT and address records for each service a PTR answer names, and
+	 * the address records for each SRV answer.  Nothing already answered is
+	 * added twice.
+	 */
+	private void addAdditionals(DNSPacket aPacket) {
+		Set<DNSRecord> additionals = new LinkedHashSet<DNSRecord>();
+		boolean baddresses = false;
+		for(DNSRecord answer : aPacket.getAnswers()) {
+			if(answer instanceof DNSRecord.Pointer) {
+				ServiceInfo info = _LocalServices.get(((DNSRecord.Pointer)answer).getAlias());
+				if(info != null && info.getState().isAnnounced()) {
+					additionals.add(createService(info));
+					additionals.add(createText(info));
+					baddresses = true;
+				}
+			}
+			else if(answer instanceof DNSRecord.Service)
+				baddresses = true;
+		}
+		
+		if(baddresses) {
+			DNSRecord address = _LocalInfo.getDNSAddressRecord(DNSEntry.EntryType.A);
+			if(address != null)
+				additionals.add(address);
+			address = _LocalInfo.getDNSAddressRecord(DNSEntry.EntryType.AAAA);
+			if(address != null)
+				additionals.add(address);
+		}
+		
+		additionals.removeAll(aPacket.getAnswers());
+		aPacket.getAdditionals().addAll(additionals);
+	}
+	
+	private DNSRecord createService(ServiceInfo aInfo) {
+		return new DNSRecord.Service(aInfo.getQualifiedName(), DNSEntry.EntryClass.IN, 
+				true, DNSEntry.TTL, aInfo.getPriority(), aInfo.getWeight(), aInfo.getPort(), _LocalInfo.getName());
+	}
+	
+	private DNSRecord createText(ServiceInfo aInfo) {
+		return new DNSRecord.Text(aInfo.getQualifiedName(), DNSEntry.EntryClass.IN, true, 
+				DNSEntry.TTL, aInfo.getTextBytes());
+	}
+	
+	/**
+	 * Group the asker's known answers by lower case name, since a truncated
+	 * query can carry hundreds of them.
+	 */
+	private Map<String, List<DNSRecord>> getKnownAnswers() {
+		Map<String, List<DNSRecord>> knownByName = new HashMap<String, List<DNSRecord>>();
+		for(DNSRecord knownAnswer : _InPacket.getAnswers()) {
+			String skey = knownAnswer.getName().toLowerCase();
+			List<DNSRecord> list = knownByName.get(skey);
+			if(list == null) {
+				list = new LinkedList<DNSRecord>();
+				knownByName.put(skey, list);
+			}
+			list.add(knownAnswer);
+		}
+		
+		return knownByName;
+	}
+	
+	/**
+	 * Leave out the records the asker listed as known with at least half their
+	 * TTL left.
+	 */
+	private void removeKnownAnswers(List<DNSRecord> aAnswers, Map<String, List<DNSRecord>> aKnownAnswers) {
+		if(aKnownAnswers.isEmpty() || aAnswers.isEmpty())
+			return;
+		
+		for(Iterator<DNSRecord> iter = aAnswers.iterator(); iter.hasNext(); ) {
+			DNSRecord answer = iter.next();
+			List<DNSRecord> list = aKnownAnswers.get(answer.getName().toLowerCase());
+			if(list == null)
+				continue;
+			
+			for(DNSRecord knownAnswer : list) {
+				if(knownAnswer.suppresses(answer)) {
+					if(s_Logger.isTraceEnabled())
+						s_Logger.trace(_Address + " already knows " + answer);
+					iter.remove();
+					break;
+				}
+			}
+		}
+	}
+	
+	/**
+	 * How long to wait for the rest of a truncated query's known answers (see
+	 * Cheshire draft chapter 7.2).
+	 */
+	public static int GetTruncatedDelay()
+	{
+		return TRUNCATED_WAIT_MIN + s_Random.nextInt(TRUNCATED_WAIT_MAX - TRUNCATED_WAIT_MIN + 1);
 	}
 	
 	public static int GetDelay(boolean abDelay, int aiElapsed)
@@ -146,4 +296,87 @@ public class Responder extends TimerTask {
 		int iret = INTERVAL_MIN + s_Random.nextInt(INTERVAL_MAX - INTERVAL_MIN + 1) - aiElapsed;
 		return iret > 0 ? iret : 0;
 	}
+	
+	/**
+	 * Keeps up to POOL_SIZE idle responders for reuse.
+	 */
+	public static class Pool {
+		private MahaloSocket _Socket;
+		private HostInfo _LocalInfo;
+		private ServiceRegistry _LocalServices;
+		private ResponseAggregator _Aggregator;
+		private LinkedList<Responder> _Idle = new LinkedList<Responder>();
+		private int _iCreated;
+		
+		public Pool(MahaloSocket aSocket, HostInfo aLocalInfo, ServiceRegistry aLocalServices) {
+			this(aSocket, aLocalInfo, aLocalServices, new ResponseAggregator(aSocket));
+		}
+		
+		/**
+		 * Create a pool whose responders multicast through the given aggregator.
+		 */
+		public Pool(MahaloSocket aSocket, HostInfo aLocalInfo, ServiceRegistry aLocalServices, ResponseAggregator aAggregator) {
+			_Socket = aSocket;
+			_LocalInfo = aLocalInfo;
+			_LocalServices = aLocalServices;
+			_Aggregator = aAggregator;
+		}
+		
+		/**
+		 * Get the aggregator multicasting the responders' answers, mostly for
+		 * its statistics.
+		 */
+		public ResponseAggregator getAggregator() {
+			return _Aggregator;
+		}
+		
+		/**
+		 * Get a responder for a query, reusing an idle one if there is one.
+		 * The responder must be run, since its aggregator waits for it.
+		 */
+		public Responder obtain(DNSPacket aInPacket, InetAddress aAddress, int aiPort) {
+			Responder responder;
+			synchronized(_Idle) {
+				responder = _Idle.poll();
+				if(responder == null) {
+					responder = new Responder(this);
+					++_iCreated;
+				}
+			}
+			
+			responder._InPacket = aInPacket;
+			responder._Address = aAddress;
+			responder._iPort = aiPort;
+			_Aggregator.responderScheduled();
+			return responder;
+		}
+		
+		/**
+		 * Give back a responder that won't be run after all, so its aggregator
+		 * stops waiting for it.
+		 */
+		public void abandon(Responder aResponder) {
+			_Aggregator.responderFinished(null, false);
+			release(aResponder);
+		}
+		
+		/**
+		 * The number of responders created, which stays small however many
+		 * queries are answered.
+		 */
+		public int getCreatedCount() {
+			synchronized(_Idle) {
+				return _iCreated;
+			}
+		}
+		
+		void release(Responder aResponder) {
+			aResponder._InPacket = null;
+			aResponder._Address = null;
+			synchronized(_Idle) {
+				if(_Idle.size() < POOL_SIZE)
+					_Idle.add(aResponder);
+			}
+		}
+	}
 }
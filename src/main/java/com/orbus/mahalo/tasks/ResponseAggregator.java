@@ -0,0 +1,180 @@
+/**
+ * Copyright 2007 Jeff Ward
+ * Portions may be pulled from JmDNS and are therefore
+ * the copyright of the JmDNS team
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.orbus.mahalo.tasks;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+
+import org.apache.log4j.Logger;
+
+import com.orbus.mahalo.MahaloSocket;
+import com.orbus.mahalo.dns.DNSPacket;
+import com.orbus.mahalo.dns.DNSRecord;
+
+/**
+ * Collects the multicast answers of every responder whose delay overlaps,
+ * so that when several hosts ask the same thing at about the same time the
+ * answers go out once, in one packet (see Cheshire draft chapter 6).
+ * 
+ * The last responder still waiting to run sends what has been collected.
+ * Answers are never held more than AGGREGATE_MAX milliseconds, however
+ * busy the network is.  A record multicast in the last RATE_LIMIT
+ * milliseconds is not sent again, unless it defends a name someone is
+ * probing for.  Additional records are collected the same way, and left
+ * out when they are also being sent as answers.
+ *
+ * @author Jeff Ward
+ */
+public class ResponseAggregator {
+	public static final int RATE_LIMIT = 1000;
+	public static final int AGGREGATE_MAX = 500;
+	
+	private static final Logger s_Logger = Logger.getLogger(ResponseAggregator.class);
+	
+	private MahaloSocket _Socket;
+	private Set<DNSRecord> _Pending = new LinkedHashSet<DNSRecord>();
+	private Set<DNSRecord> _PendingAdditionals = new LinkedHashSet<DNSRecord>();
+	private long _lPendingSince;
+	private Map<DNSRecord, Long> _LastMulticast = new HashMap<DNSRecord, Long>();
+	private int _iOutstanding;
+	
+	private long _lPacketsSent;
+	private long _lRecordsSent;
+	private long _lRecordsMerged;
+	private long _lRecordsLimited;
+	
+	public ResponseAggregator(MahaloSocket aSocket) {
+		_Socket = aSocket;
+	}
+	
+	/**
+	 * A responder has been scheduled, so hold answers until it has run.
+	 */
+	public synchronized void responderScheduled() {
+		++_iOutstanding;
+	}
+	
+	/**
+	 * A responder has run.  Its multicast answers, if it had any, are added to
+	 * those waiting, and everything waiting is sent if no other responder is
+	 * due to add more or the oldest answer has waited long enough.
+	 * 
+	 * @param aResponse the response to multicast, or null if there is none.
+	 * @param abProbeDefense true if the answers defend our names against a probe.
+	 */
+	public void responderFinished(DNSPacket aResponse, boolean abProbeDefense) {
+		DNSPacket outPacket = null;
+		long now = System.currentTimeMillis();
+		
+		synchronized(this) {
+			--_iOutstanding;
+			if(aResponse != null) {
+				for(DNSRecord answer : aResponse.getAnswers())
+					addAnswer(answer, abProbeDefense, now);
+				for(DNSRecord additional : aResponse.getAdditionals()) {
+					Long lastSent = _LastMulticast.get(additional);
+					if(lastSent == null || now - lastSent.longValue() >= RATE_LIMIT)
+						_PendingAdditionals.add(additional);
+				}
+			}
+			
+			if(!_Pending.isEmpty() && (_iOutstanding <= 0 || now - _lPendingSince >= AGGREGATE_MAX)) {
+				outPacket = new DNSPacket(true);
+				outPacket.setAuthoritativeAnswer(true);
+				for(DNSRecord answer : _Pending) {
+					outPacket.addAnswer(answer);
+					_LastMulticast.put(answer, Long.valueOf(now));
+				}
+				for(DNSRecord additional : _PendingAdditionals) {
+					if(!_Pending.contains(additional)) {
+						outPacket.addAdditional(additional);
+						_LastMulticast.put(additional, Long.valueOf(now));
+					}
+				}
+				_Pending.clear();
+				_PendingAdditionals.clear();
+				
+				_lPacketsSent++;
+				_lRecordsSent += outPacket.getAnswers().size() + outPacket.getAdditionals().size();
+				pruneLastMulticast(now);
+			}
+			else if(_Pending.isEmpty())
+				_PendingAdditionals.clear();
+		}
+		
+		if(outPacket != null)
+			send(outPacket);
+	}
+	
+	protected void send(DNSPacket aPacket) {
+		_Socket.send(aPacket);
+	}
+	
+	public synchronized long getPacketsSent() {
+		return _lPacketsSent;
+	}
+	
+	public synchronized long getRecordsSent() {
+		return _lRecordsSent;
+	}
+	
+	/**
+	 * The number of answers that went out with another query's answers
+	 * instead of in a packet of their own.
+	 */
+	public synchronized long getRecordsMerged() {
+		return _lRecordsMerged;
+	}
+	
+	/**
+	 * The number of answers not sent because they were multicast less than
+	 * RATE_LIMIT milliseconds before.
+	 */
+	public synchronized long getRecordsLimited() {
+		return _lRecordsLimited;
+	}
+	
+	private void addAnswer(DNSRecord aAnswer, boolean abProbeDefense, long alNow) {
+		if(_Pending.contains(aAnswer)) {
+			_lRecordsMerged++;
+			return;
+		}
+		
+		Long lastSent = _LastMulticast.get(aAnswer);
+		if(!abProbeDefense && lastSent != null && alNow - lastSent.longValue() < RATE_LIMIT) {
+			if(s_Logger.isTraceEnabled())
+				s_Logger.trace("Not multicasting " + aAnswer + " again so soon");
+			_lRecordsLimited++;
+			return;
+		}
+		
+		if(_Pending.isEmpty())
+			_lPendingSince = alNow;
+		_Pending.add(aAnswer);
+	}
+	
+	private void pruneLastMulticast(long alNow) {
+		for(Iterator<Long> iter = _LastMulticast.values().iterator(); iter.hasNext(); ) {
+			if(alNow - iter.next().longValue() >= RATE_LIMIT)
+				iter.remove();
+		}
+	}
+}
@@ -0,0 +1,86 @@
+/**
+ * Copyright 2007 Jeff Ward
+ * Portions may be pulled from JmDNS and are therefore
+ * the copyright of the JmDNS team
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.orbus.mahalo.tasks;
+
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.log4j.Logger;
+
+/**
+ * A task the broadcaster runs on its ScheduledExecutorService, once or
+ * repeatedly.  It works like a TimerTask: it can cancel itself from run(),
+ * and once canceled it never runs again.  Unlike a TimerTask, an exception
+ * thrown by one run is logged and the task carries on, so one bad packet
+ * can't stop every other task from running.
+ *
+ * @author Jeff Ward
+ */
+public abstract class ScheduledTask implements Runnable {
+	private static final Logger s_Logger = Logger.getLogger(ScheduledTask.class);
+	
+	private ScheduledFuture<?> _Future;
+	private boolean _bCanceled;
+	
+	/**
+	 * Run the task after alDelay milliseconds, then every alPeriod milliseconds
+	 * until it is canceled.  A period of zero runs the task once.
+	 */
+	public synchronized void schedule(ScheduledExecutorService aExecutor, long alDelay, long alPeriod) {
+		if(_bCanceled)
+			return;
+		
+		if(alPeriod > 0)
+			_Future = aExecutor.scheduleAtFixedRate(this, alDelay, alPeriod, TimeUnit.MILLISECONDS);
+		else
+			_Future = aExecutor.schedule(this, alDelay, TimeUnit.MILLISECONDS);
+	}
+	
+	public final void run() {
+		if(isCanceled())
+			return;
+		
+		try {
+			runTask();
+		} catch(RuntimeException e) {
+			s_Logger.error(getClass().getSimpleName() + " threw an exception", e);
+		}
+	}
+	
+	/**
+	 * Stop the task from running again.
+	 * 
+	 * @return false if it was already canceled.
+	 */
+	public synchronized boolean cancel() {
+		if(_bCanceled)
+			return false;
+		
+		_bCanceled = true;
+		if(_Future != null)
+			_Future.cancel(false);
+		return true;
+	}
+	
+	public synchronized boolean isCanceled() {
+		return _bCanceled;
+	}
+	
+	protected abstract void runTask();
+}
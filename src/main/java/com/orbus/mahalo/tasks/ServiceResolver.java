@@ -17,51 +17,337 @@
  */
 package com.orbus.mahalo.tasks;
 
-import java.util.Collection;
+import java.util.HashMap;
+import java.util.Iterator;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.Map;
+import java.util.Timer;
 import java.util.TimerTask;
 
-import com.orbus.mahalo.MahaloSocket;
-import com.orbus.mahalo.ServiceInfo;
+import org.apache.log4j.Logger;
+
+import com.orbus.mahalo.dns.DNSCache;
 import com.orbus.mahalo.dns.DNSEntry;
-import com.orbus.mahalo.dns.DNSPacket;
 import com.orbus.mahalo.dns.DNSQuestion;
 import com.orbus.mahalo.dns.DNSRecord;
 
-public class ServiceResolver extends TimerTask {
-	public static final int INTERVAL = 225;
-	
-	private int _iCount = 0;
-	private MahaloSocket _Socket;
-	private String _sType;
-	private List<ServiceInfo> _LocalServices;
-	
-	public ServiceResolver(MahaloSocket aSocket, String asType, Collection<ServiceInfo> aServiceList)
-	{
-		_Socket = aSocket;
-		_sType = asType;
-		_LocalServices = new LinkedList<ServiceInfo>(aServiceList);
-	}
-	
-	@Override
-	public void run() {
-        _iCount++;
-        DNSPacket outPacket = new DNSPacket(false);
-        outPacket.addQuestion(new DNSQuestion(_sType, DNSEntry.EntryType.PTR, DNSEntry.EntryClass.IN, false));
-        
-        // Populate known answers to this query
-        for (ServiceInfo info : _LocalServices)
-        {
-        	if(info.getType().equals(_sType))
-        		outPacket.addAnswer(new DNSRecord.Pointer(_sType, DNSEntry.EntryType.PTR,
-        			DNSEntry.EntryClass.IN, DNSEntry.TTL, info.getQualifiedName()));
-        }
-        // TODO: Populate known answers from the cache
-        
-        _Socket.send(outPacket);
+/**
+ * Resolves service instances we have heard of but don't have all the records
+ * for.  Each instance needs its SRV record, its TXT record and an A or AAAA
+ * record for the host named in the SRV record.
+ * 
+ * Questions aren't sent the moment an instance turns up.  Instead, every
+ * question due within a short tick is handed to the QueryScheduler at once,
+ * so a burst of new instances costs a few packets rather than one each.  Instances that
+ * don't answer are asked again with a doubling delay, and given up on after
+ * QUERY_ATTEMPTS queries.  An instance we gave up on is not asked about
+ * again for GIVE_UP_HOLD milliseconds.
+ * 
+ * In passive mode no questions are asked.  Instances wait PASSIVE_WAIT
+ * milliseconds for their records to be overheard, and since waiting costs
+ * the network nothing, they aren't held off after giving up.
+ *
+ * @author Jeff Ward
+ */
+public class ServiceResolver {
+	public static final int TICK = 20;
+	public static final int BACKOFF_MIN = 1000;
+	public static final int QUERY_ATTEMPTS = 4;
+	public static final int GIVE_UP_HOLD = 10 * 60 * 1000;
+	public static final int PASSIVE_WAIT = 2 * 60 * 1000;
+	
+	private static final Logger s_Logger = Logger.getLogger(ServiceResolver.class);
+	
+	/**
+	 * Told about the progress of instances.  Calls are made on the thread
+	 * that found the records, without the resolver locked.
+	 */
+	public interface Listener {
+		/**
+		 * The instance has its SRV and address records, so it can be used.
+		 */
+		void serviceFound(String asInstance);
+		
+		/**
+		 * The instance has all its records, or has stopped answering after it
+		 * was found.  Either way, no more questions will be asked about it.
+		 */
+		void serviceResolved(String asInstance);
+		
+		/**
+		 * The instance never answered, and no more questions will be asked
+		 * about it.
+		 */
+		void serviceLost(String asInstance);
+	}
+	
+	private QueryScheduler _Scheduler;
+	private DNSCache _Cache;
+	private Timer _Timer;
+	private Listener _Listener;
+	
+	// Keyed by lower case instance name.
+	private Map<String, Instance> _Instances = new HashMap<String, Instance>();
+	private Map<String, Long> _GivenUp = new HashMap<String, Long>();
+	private TimerTask _Task;
+	private long _lTaskTime;
+	private boolean _bCanceled;
+	private boolean _bPassive;
+	
+	public ServiceResolver(QueryScheduler aScheduler, DNSCache aCache, Timer aTimer, Listener aListener) {
+		_Scheduler = aScheduler;
+		_Cache = aCache;
+		_Timer = aTimer;
+		_Listener = aListener;
+	}
+	
+	/**
+	 * Start resolving an instance.  Nothing is checked until the next call to
+	 * update(), so the records that came with the instance are seen then.
+	 */
+	public void resolve(String asInstance) {
+		resolve(asInstance, false);
+	}
+	
+	/**
+	 * Start resolving an instance, even if it has recently been given up on
+	 * when abRetry is set.
+	 */
+	public void resolve(String asInstance, boolean abRetry) {
+		long now = currentTime();
+		String skey = asInstance.toLowerCase();
+		synchronized(this) {
+			if(_bCanceled || _Instances.containsKey(skey))
+				return;
+			
+			Long givenUp = _GivenUp.get(skey);
+			if(givenUp != null) {
+				if(!abRetry && now - givenUp.longValue() < GIVE_UP_HOLD) {
+					s_Logger.trace("Holding off resolving unresponsive service " + asInstance);
+					return;
+				}
+				_GivenUp.remove(skey);
+			}
+			
+			_Instances.put(skey, new Instance(asInstance, now, now + TICK));
+		}
+	}
+	
+	/**
+	 * Stop resolving an instance, usually because it has gone away.
+	 */
+	public synchronized void forget(String asInstance) {
+		String skey = asInstance.toLowerCase();
+		_Instances.remove(skey);
+		_GivenUp.remove(skey);
+	}
+	
+	/**
+	 * Check every instance against the cache, and call the listener for the
+	 * ones that have made progress.  Call this after new records are cached.
+	 */
+	public void update() {
+		List<String> found = new LinkedList<String>();
+		List<String> resolved = new LinkedList<String>();
+		
+		synchronized(this) {
+			for(Iterator<Instance> iter = _Instances.values().iterator(); iter.hasNext(); ) {
+				Instance instance = iter.next();
+				DNSRecord.Service srvRec = getService(instance._sName);
+				boolean bhasAddress = srvRec != null && _Cache.getAssociatedAddress(srvRec) != null;
+				
+				if(bhasAddress && !instance._bFound) {
+					instance._bFound = true;
+					found.add(instance._sName);
+				}
+				if(bhasAddress && hasText(instance._sName)) {
+					iter.remove();
+					resolved.add(instance._sName);
+				}
+			}
+			
+			scheduleTick();
+		}
+		
+		for(String sname : found)
+			_Listener.serviceFound(sname);
+		for(String sname : resolved)
+			_Listener.serviceResolved(sname);
+	}
+	
+	/**
+	 * Stop or start asking questions.  Instances already waiting change over
+	 * at their next tick.
+	 */
+	public synchronized void setPassive(boolean abPassive) {
+		_bPassive = abPassive;
+	}
+	
+	public synchronized boolean isPassive() {
+		return _bPassive;
+	}
+	
+	public synchronized int getPendingCount() {
+		return _Instances.size();
+	}
+	
+	public synchronized void cancel() {
+		_bCanceled = true;
+		_Instances.clear();
+		if(_Task != null) {
+			_Task.cancel();
+			_Task = null;
+		}
+	}
+	
+	/**
+	 * Make sure a tick is scheduled for the earliest instance due a query.
+	 */
+	private void scheduleTick() {
+		if(_bCanceled || _Instances.isEmpty())
+			return;
+		
+		long lnext = Long.MAX_VALUE;
+		for(Instance instance : _Instances.values())
+			lnext = Math.min(lnext, instance._lNextQuery);
+		
+		if(_Task != null) {
+			if(_lTaskTime <= lnext)
+				return;
+			_Task.cancel();
+		}
+		
+		_lTaskTime = lnext;
+		_Task = new TimerTask() {
+			@Override
+			public void run() {
+				onTick();
+			}
+		};
+		_Timer.schedule(_Task, Math.max(0, lnext - currentTime()));
+	}
+	
+	/**
+	 * The time used for every delay, which tests can move along themselves.
+	 */
+	protected long currentTime() {
+		return System.currentTimeMillis();
+	}
+	
+	private void onTick() {
+		long now = currentTime();
+		List<String> resolved = new LinkedList<String>();
+		List<String> lost = new LinkedList<String>();
+		List<DNSQuestion> questions = new LinkedList<DNSQuestion>();
+		
+		synchronized(this) {
+			_Task = null;
+			if(_bCanceled)
+				return;
+			
+			// Ask every question due within the next tick now, rather than
+			// sending another packet in a few milliseconds.
+			for(Iterator<Instance> iter = _Instances.values().iterator(); iter.hasNext(); ) {
+				Instance instance = iter.next();
+				if(instance._lNextQuery > now + TICK)
+					continue;
+				
+				if(_bPassive) {
+					if(now - instance._lStarted < PASSIVE_WAIT) {
+						instance._lNextQuery = instance._lStarted + PASSIVE_WAIT;
+						continue;
+					}
+					
+					iter.remove();
+					s_Logger.debug("No records overheard for " + instance._sName);
+					if(instance._bFound)
+						resolved.add(instance._sName);
+					else
+						lost.add(instance._sName);
+					continue;
+				}
+				
+				if(instance._iAttempts == QUERY_ATTEMPTS) {
+					iter.remove();
+					s_Logger.debug("Giving up resolving " + instance._sName);
+					if(instance._bFound)
+						resolved.add(instance._sName);
+					else {
+						lost.add(instance._sName);
+						_GivenUp.put(instance._sName.toLowerCase(), Long.valueOf(now));
+					}
+					continue;
+				}
+				
+				DNSRecord.Service srvRec = getService(instance._sName);
+				if(srvRec == null)
+					ask(questions, instance._sName, DNSEntry.EntryType.SRV);
+				else if(_Cache.getAssociatedAddress(srvRec) == null) {
+					// A host may only have an IPv6 address, so ask for both kinds.
+					ask(questions, srvRec.getServer(), DNSEntry.EntryType.A);
+					ask(questions, srvRec.getServer(), DNSEntry.EntryType.AAAA);
+				}
+				if(!hasText(instance._sName))
+					ask(questions, instance._sName, DNSEntry.EntryType.TXT);
+				
+				instance.backoff(now);
+			}
+			
+			pruneGivenUp(now);
+			scheduleTick();
+		}
+		
+		// The scheduler merges questions shared by several instances.
+		for(DNSQuestion question : questions)
+			_Scheduler.schedule(question, 0, 0);
+		for(String sname : resolved)
+			_Listener.serviceResolved(sname);
+		for(String sname : lost)
+			_Listener.serviceLost(sname);
+	}
+	
+	private void ask(List<DNSQuestion> aQuestions, String asName, DNSEntry.EntryType aeType) {
+		aQuestions.add(new DNSQuestion(asName, aeType, DNSEntry.EntryClass.IN, false));
+	}
+	
+	private DNSRecord.Service getService(String asInstance) {
+		List<DNSRecord> list = _Cache.get(asInstance, DNSEntry.EntryType.SRV, DNSEntry.EntryClass.IN);
+		if(list == null || list.isEmpty())
+			return null;
+		return (DNSRecord.Service)list.get(0);
+	}
+	
+	private boolean hasText(String asInstance) {
+		List<DNSRecord> list = _Cache.get(asInstance, DNSEntry.EntryType.TXT, DNSEntry.EntryClass.IN);
+		return list != null && !list.isEmpty();
+	}
+	
+	private void pruneGivenUp(long alNow) {
+		for(Iterator<Long> iter = _GivenUp.values().iterator(); iter.hasNext(); ) {
+			if(alNow - iter.next().longValue() >= GIVE_UP_HOLD)
+				iter.remove();
+		}
+	}
+	
+	private static class Instance {
+		private String _sName;
+		private boolean _bFound;
+		private int _iAttempts;
+		private int _iBackoff = BACKOFF_MIN;
+		private long _lNextQuery;
+		private long _lStarted;
+		
+		Instance(String asName, long alStarted, long alNextQuery) {
+			_sName = asName;
+			_lNextQuery = alNextQuery;
+			_lStarted = alStarted;
+		}
 		
-		if(_iCount == 3)
-			cancel();
+		void backoff(long alNow) {
+			++_iAttempts;
+			_lNextQuery = alNow + _iBackoff;
+			_iBackoff *= 2;
+		}
 	}
 }
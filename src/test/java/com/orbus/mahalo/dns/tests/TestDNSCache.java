@@ -0,0 +1,51 @@
+package com.orbus.mahalo.dns.tests;
+
+import java.util.List;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.orbus.mahalo.dns.DNSCache;
+import com.orbus.mahalo.dns.DNSEntry;
+import com.orbus.mahalo.dns.DNSRecord;
+
+public class TestDNSCache {
+	@Test
+	public void testServiceTypeIndex() {
+		DNSCache cache = new DNSCache(10);
+		cache.handleRecord(new DNSRecord.Pointer(DNSEntry.SERVICE_TYPE_ENUMERATION, DNSEntry.EntryType.PTR,
+				DNSEntry.EntryClass.IN, 3600, "_http._tcp.local."));
+		cache.handleRecord(new DNSRecord.Pointer(DNSEntry.SERVICE_TYPE_ENUMERATION, DNSEntry.EntryType.PTR,
+				DNSEntry.EntryClass.IN, 3600, "_ipp._tcp.local."));
+		cache.handleRecord(new DNSRecord.Pointer("_http._tcp.local.", DNSEntry.EntryType.PTR,
+				DNSEntry.EntryClass.IN, 3600, "test._http._tcp.local."));
+		Assert.assertEquals(2, cache.getServiceTypes().size());
+
+		// A goodbye for the type takes it out of the index.
+		DNSRecord old = cache.handleRecord(new DNSRecord.Pointer(DNSEntry.SERVICE_TYPE_ENUMERATION, DNSEntry.EntryType.PTR,
+				DNSEntry.EntryClass.IN, 0, "_HTTP._tcp.local."));
+		Assert.assertNotNull(old);
+		List<String> types = cache.getServiceTypes();
+		Assert.assertEquals(1, types.size());
+		Assert.assertEquals("_ipp._tcp.local.", types.get(0));
+
+		cache.clear();
+		Assert.assertTrue(cache.getServiceTypes().isEmpty());
+	}
+
+	@Test
+	public void testExpiredServiceTypesAreHidden() throws InterruptedException {
+		DNSCache cache = new DNSCache(10);
+		cache.handleRecord(new DNSRecord.Pointer(DNSEntry.SERVICE_TYPE_ENUMERATION, DNSEntry.EntryType.PTR,
+				DNSEntry.EntryClass.IN, 1, "_http._tcp.local."));
+		cache.handleRecord(new DNSRecord.Pointer(DNSEntry.SERVICE_TYPE_ENUMERATION, DNSEntry.EntryType.PTR,
+				DNSEntry.EntryClass.IN, 3600, "_ipp._tcp.local."));
+		Assert.assertEquals(2, cache.getServiceTypes().size());
+
+		// Gone from the list once it expires, even before the reaper runs.
+		Thread.sleep(1100);
+		List<String> types = cache.getServiceTypes();
+		Assert.assertEquals(1, types.size());
+		Assert.assertEquals("_ipp._tcp.local.", types.get(0));
+	}
+}
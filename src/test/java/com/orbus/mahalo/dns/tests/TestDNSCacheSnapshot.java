@@ -0,0 +1,71 @@
+package com.orbus.mahalo.dns.tests;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.util.List;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.orbus.mahalo.dns.DNSCache;
+import com.orbus.mahalo.dns.DNSCacheSnapshot;
+import com.orbus.mahalo.dns.DNSEntry;
+import com.orbus.mahalo.dns.DNSRecord;
+
+public class TestDNSCacheSnapshot {
+	@Test
+	public void testWriteAndRead() throws IOException {
+		File file = File.createTempFile("mahalo", ".cache");
+		file.deleteOnExit();
+
+		DNSCache cache = new DNSCache(10);
+		cache.add(new DNSRecord.Pointer("_example._tcp.local.", DNSEntry.EntryType.PTR, DNSEntry.EntryClass.IN,
+				3600, "test._example._tcp.local."));
+		cache.add(new DNSRecord.Service("test._example._tcp.local.", DNSEntry.EntryClass.IN, true, 120,
+				0, 0, 8080, "host.local."));
+		cache.add(new DNSRecord.Address("host.local.", DNSEntry.EntryType.A, DNSEntry.EntryClass.IN,
+				true, 120, InetAddress.getByName("10.0.0.1")));
+
+		DNSCacheSnapshot snapshot = new DNSCacheSnapshot(file, 4096);
+		Assert.assertEquals(3, snapshot.write(cache));
+
+		DNSCache restored = new DNSCache(10);
+		Assert.assertEquals(3, snapshot.read(restored));
+
+		List<DNSRecord> ptrList = restored.get("_example._tcp.local.", DNSEntry.EntryType.PTR, DNSEntry.EntryClass.IN);
+		Assert.assertNotNull(ptrList);
+		Assert.assertEquals("test._example._tcp.local.", ((DNSRecord.Pointer)ptrList.get(0)).getAlias());
+		Assert.assertTrue(ptrList.get(0).getTTL() <= 3600);
+
+		DNSRecord.Service srvRecord = restored.getAssociatedService((DNSRecord.Pointer)ptrList.get(0));
+		Assert.assertNotNull(srvRecord);
+		Assert.assertEquals(8080, srvRecord.getPort());
+		Assert.assertNotNull(restored.getAssociatedAddress(srvRecord));
+	}
+
+	@Test
+	public void testSkipsRecordsThatDoNotFit() throws IOException {
+		File file = File.createTempFile("mahalo", ".cache");
+		file.deleteOnExit();
+
+		DNSCache cache = new DNSCache(10);
+		for(int i = 0; i < 20; ++i) {
+			cache.add(new DNSRecord.Pointer("_example._tcp.local.", DNSEntry.EntryType.PTR, DNSEntry.EntryClass.IN,
+					3600, "test" + i + "._example._tcp.local."));
+		}
+
+		DNSCacheSnapshot snapshot = new DNSCacheSnapshot(file, 256);
+		int iwritten = snapshot.write(cache);
+		Assert.assertTrue(iwritten > 0 && iwritten < 20);
+
+		DNSCache restored = new DNSCache(10);
+		Assert.assertEquals(iwritten, snapshot.read(restored));
+	}
+
+	@Test
+	public void testMissingFile() throws IOException {
+		DNSCacheSnapshot snapshot = new DNSCacheSnapshot(new File("does-not-exist.cache"));
+		Assert.assertEquals(0, snapshot.read(new DNSCache(10)));
+	}
+}
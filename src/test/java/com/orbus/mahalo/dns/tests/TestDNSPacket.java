@@ -7,7 +7,10 @@ import junit.framework.Assert;
 
 import org.junit.Test;
 
+import com.orbus.mahalo.dns.DNSEntry;
 import com.orbus.mahalo.dns.DNSPacket;
+import com.orbus.mahalo.dns.DNSQuestion;
+import com.orbus.mahalo.dns.DNSRecord;
 
 public class TestDNSPacket {
 	@Test
@@ -19,4 +22,72 @@ public class TestDNSPacket {
 		Assert.assertEquals("f.isi.arpa.", packet.getAnswers().get(0).getName());
 		Assert.assertEquals("foo.f.isi.arpa.", packet.getAnswers().get(1).getName());
 	}
+	
+	@Test
+	public void TestKnownAnswersSpillIntoTruncatedPackets() throws IOException {
+		DNSPacket packet = new DNSPacket(false);
+		packet.addQuestion(new DNSQuestion("_example._tcp.local.", DNSEntry.EntryType.PTR, DNSEntry.EntryClass.IN, false));
+		for(int i = 0; i < 500; ++i) {
+			packet.addAnswer(new DNSRecord.Pointer("_example._tcp.local.", DNSEntry.EntryType.PTR, DNSEntry.EntryClass.IN,
+				3600, "instance" + i + "._example._tcp.local."));
+		}
+		
+		ByteBuffer[] buffers = packet.write();
+		Assert.assertTrue(buffers.length > 1);
+		
+		int iquestions = 0;
+		int ianswers = 0;
+		for(int i = 0; i < buffers.length; ++i) {
+			buffers[i].flip();
+			DNSPacket parsed = DNSPacket.Parse(buffers[i]);
+			Assert.assertTrue(parsed.isQuery());
+			Assert.assertEquals(i < buffers.length - 1, parsed.isTruncated());
+			iquestions += parsed.getQuestions().size();
+			ianswers += parsed.getAnswers().size();
+		}
+		
+		Assert.assertEquals(1, iquestions);
+		Assert.assertEquals(500, ianswers);
+	}
+	
+	@Test
+	public void TestMessagesStayWithinMaxSize() throws IOException {
+		DNSPacket packet = new DNSPacket(false);
+		packet.setMaxMessageSize(DNSPacket.MAX_MSG_TYPICAL);
+		for(int i = 0; i < 100; ++i)
+			packet.addQuestion(new DNSQuestion("_type" + i + "._tcp.local.", DNSEntry.EntryType.PTR, DNSEntry.EntryClass.IN, false));
+		
+		ByteBuffer[] buffers = packet.write();
+		Assert.assertTrue(buffers.length > 1);
+		
+		int iquestions = 0;
+		for(ByteBuffer buffer : buffers) {
+			buffer.flip();
+			Assert.assertTrue(buffer.remaining() <= DNSPacket.MAX_MSG_TYPICAL);
+			iquestions += DNSPacket.Parse(buffer).getQuestions().size();
+		}
+		Assert.assertEquals(100, iquestions);
+	}
+	
+	@Test
+	public void TestAdditionalsFillSpaceLeft() throws IOException {
+		DNSPacket packet = new DNSPacket(true);
+		packet.setMaxMessageSize(DNSPacket.MAX_MSG_TYPICAL);
+		packet.addAnswer(new DNSRecord.Pointer("_example._tcp.local.", DNSEntry.EntryType.PTR, DNSEntry.EntryClass.IN,
+				3600, "instance._example._tcp.local."));
+		for(int i = 0; i < 100; ++i) {
+			packet.addAdditional(new DNSRecord.Service("instance" + i + "._example._tcp.local.", DNSEntry.EntryClass.IN,
+					true, 3600, 0, 0, 80, "host.local."));
+		}
+		
+		ByteBuffer[] buffers = packet.write();
+		Assert.assertEquals(1, buffers.length);
+		
+		buffers[0].flip();
+		int iadditionals = buffers[0].getShort(10);
+		DNSPacket parsed = DNSPacket.Parse(buffers[0]);
+		Assert.assertFalse(parsed.isTruncated());
+		Assert.assertTrue(iadditionals > 0 && iadditionals < 100);
+		Assert.assertEquals(1 + iadditionals, parsed.getAnswers().size());
+	}
 }
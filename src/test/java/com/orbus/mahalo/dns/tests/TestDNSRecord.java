@@ -58,4 +58,18 @@ public class TestDNSRecord {
 		
 		Assert.assertTrue(Utilities.bufferEqualsFile(buffer, "ptrRecord.dns"));
 	}
+	
+	@Test
+	public void testKnownAnswerSuppression() {
+		DNSRecord ours = new DNSRecord.Pointer("_http._tcp.local.", DNSEntry.EntryType.PTR, DNSEntry.EntryClass.IN,
+				3600, "Web._http._tcp.local.");
+		
+		// Names are compared without case, and half the TTL is enough.
+		Assert.assertTrue(new DNSRecord.Pointer("_HTTP._tcp.local.", DNSEntry.EntryType.PTR, DNSEntry.EntryClass.IN,
+				1800, "web._http._tcp.local.").suppresses(ours));
+		Assert.assertFalse(new DNSRecord.Pointer("_http._tcp.local.", DNSEntry.EntryType.PTR, DNSEntry.EntryClass.IN,
+				1799, "Web._http._tcp.local.").suppresses(ours));
+		Assert.assertFalse(new DNSRecord.Pointer("_http._tcp.local.", DNSEntry.EntryType.PTR, DNSEntry.EntryClass.IN,
+				3600, "Other._http._tcp.local.").suppresses(ours));
+	}
 }
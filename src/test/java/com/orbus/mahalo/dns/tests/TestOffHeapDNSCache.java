@@ -0,0 +1,113 @@
+package com.orbus.mahalo.dns.tests;
+
+import java.net.InetAddress;
+import java.util.List;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.orbus.mahalo.dns.DNSEntry;
+import com.orbus.mahalo.dns.DNSRecord;
+import com.orbus.mahalo.dns.OffHeapDNSCache;
+
+public class TestOffHeapDNSCache {
+	@Test
+	public void testAddAndGet() throws Exception {
+		OffHeapDNSCache cache = new OffHeapDNSCache(10);
+		DNSRecord.Pointer ptr = new DNSRecord.Pointer("_example._tcp.local.", DNSEntry.EntryType.PTR,
+				DNSEntry.EntryClass.IN, 3600, "test._example._tcp.local.");
+		DNSRecord.Service srv = new DNSRecord.Service("test._example._tcp.local.", DNSEntry.EntryClass.IN, true, 120,
+				1, 2, 8080, "host.local.");
+		cache.add(ptr);
+		cache.add(srv);
+		cache.add(new DNSRecord.Address("host.local.", DNSEntry.EntryType.A, DNSEntry.EntryClass.IN,
+				true, 120, InetAddress.getByName("10.0.0.1")));
+
+		Assert.assertEquals(3, cache.size());
+		Assert.assertNotNull(cache.get(ptr));
+
+		DNSRecord.Service found = cache.getAssociatedService(ptr);
+		Assert.assertNotNull(found);
+		Assert.assertEquals(8080, found.getPort());
+		Assert.assertEquals(1, found.getPriority());
+		Assert.assertEquals(120, found.getTTL());
+		Assert.assertEquals(InetAddress.getByName("10.0.0.1"), cache.getAssociatedAddress(found).getAddress());
+	}
+
+	@Test
+	public void testDuplicatesAndCase() {
+		OffHeapDNSCache cache = new OffHeapDNSCache(10);
+		cache.add(new DNSRecord.Pointer("_example._tcp.local.", DNSEntry.EntryType.PTR,
+				DNSEntry.EntryClass.IN, 3600, "test._example._tcp.local."));
+		cache.add(new DNSRecord.Pointer("_Example._TCP.local.", DNSEntry.EntryType.PTR,
+				DNSEntry.EntryClass.IN, 3600, "test._example._tcp.local."));
+		Assert.assertEquals(1, cache.size());
+
+		Assert.assertNotNull(cache.handleRecord(new DNSRecord.Pointer("_example._tcp.local.", DNSEntry.EntryType.PTR,
+				DNSEntry.EntryClass.IN, 3600, "test._example._tcp.local.")));
+		Assert.assertNull(cache.handleRecord(new DNSRecord.Pointer("_example._tcp.local.", DNSEntry.EntryType.PTR,
+				DNSEntry.EntryClass.IN, 3600, "other._example._tcp.local.")));
+		Assert.assertEquals(2, cache.size());
+	}
+
+	@Test
+	public void testRemoveAndCompact() {
+		OffHeapDNSCache cache = new OffHeapDNSCache(4);
+		for(int i = 0; i < 1000; ++i) {
+			cache.add(new DNSRecord.Pointer("_example._tcp.local.", DNSEntry.EntryType.PTR,
+					DNSEntry.EntryClass.IN, 3600, "test" + i + "._example._tcp.local."));
+		}
+		Assert.assertEquals(1000, cache.size());
+
+		for(int i = 0; i < 900; ++i) {
+			Assert.assertTrue(cache.remove(new DNSRecord.Pointer("_example._tcp.local.", DNSEntry.EntryType.PTR,
+					DNSEntry.EntryClass.IN, 3600, "test" + i + "._example._tcp.local.")));
+		}
+		Assert.assertEquals(100, cache.size());
+
+		List<DNSRecord> list = cache.get("_example._tcp.local.", DNSEntry.EntryType.PTR, DNSEntry.EntryClass.IN);
+		Assert.assertEquals(100, list.size());
+		Assert.assertEquals(100, cache.getAllRecords().size());
+
+		cache.handleRecord(new DNSRecord.Pointer("_example._tcp.local.", DNSEntry.EntryType.PTR,
+				DNSEntry.EntryClass.IN, 0, "test999._example._tcp.local."));
+		Assert.assertEquals(99, cache.size());
+	}
+
+	@Test
+	public void testServiceTypeIndex() {
+		OffHeapDNSCache cache = new OffHeapDNSCache(10);
+		DNSRecord.Pointer http = new DNSRecord.Pointer(DNSEntry.SERVICE_TYPE_ENUMERATION, DNSEntry.EntryType.PTR,
+				DNSEntry.EntryClass.IN, 3600, "_http._tcp.local.");
+		cache.handleRecord(http);
+		cache.handleRecord(new DNSRecord.Pointer(DNSEntry.SERVICE_TYPE_ENUMERATION, DNSEntry.EntryType.PTR,
+				DNSEntry.EntryClass.IN, 3600, "_ipp._tcp.local."));
+		cache.handleRecord(new DNSRecord.Pointer("_http._tcp.local.", DNSEntry.EntryType.PTR,
+				DNSEntry.EntryClass.IN, 3600, "test._http._tcp.local."));
+		Assert.assertEquals(2, cache.getServiceTypes().size());
+
+		cache.remove(http);
+		List<String> types = cache.getServiceTypes();
+		Assert.assertEquals(1, types.size());
+		Assert.assertEquals("_ipp._tcp.local.", types.get(0));
+
+		cache.clear();
+		Assert.assertTrue(cache.getServiceTypes().isEmpty());
+	}
+
+	@Test
+	public void testExpiredServiceTypesAreHidden() throws InterruptedException {
+		OffHeapDNSCache cache = new OffHeapDNSCache(10);
+		cache.handleRecord(new DNSRecord.Pointer(DNSEntry.SERVICE_TYPE_ENUMERATION, DNSEntry.EntryType.PTR,
+				DNSEntry.EntryClass.IN, 1, "_http._tcp.local."));
+		cache.handleRecord(new DNSRecord.Pointer(DNSEntry.SERVICE_TYPE_ENUMERATION, DNSEntry.EntryType.PTR,
+				DNSEntry.EntryClass.IN, 3600, "_ipp._tcp.local."));
+		Assert.assertEquals(2, cache.getServiceTypes().size());
+
+		// Gone from the list once it expires, even before the reaper runs.
+		Thread.sleep(1100);
+		List<String> types = cache.getServiceTypes();
+		Assert.assertEquals(1, types.size());
+		Assert.assertEquals("_ipp._tcp.local.", types.get(0));
+	}
+}
@@ -0,0 +1,142 @@
+package com.orbus.mahalo.tests;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.orbus.mahalo.DebouncingServiceListener;
+import com.orbus.mahalo.RemoteHostInfo;
+import com.orbus.mahalo.ServiceEvent;
+import com.orbus.mahalo.ServiceEventDispatcher;
+import com.orbus.mahalo.ServiceInfo;
+import com.orbus.mahalo.ServiceListener;
+import com.orbus.mahalo.dns.DNSEntry;
+import com.orbus.mahalo.dns.DNSRecord;
+
+public class TestDebouncingServiceListener {
+	private List<String> _Events = Collections.synchronizedList(new ArrayList<String>());
+	
+	private ServiceListener _Recorder = new ServiceListener() {
+		public void serviceAdded(ServiceEvent event) {
+			_Events.add("added " + event.getSrvInfo().getName());
+		}
+		public void serviceRemoved(ServiceEvent event) {
+			_Events.add("removed " + event.getSrvInfo().getName());
+		}
+		public void serviceResolved(ServiceEvent event) {
+			_Events.add("resolved " + event.getSrvInfo().getName() + "@" + event.getHostInfo().getAddress().getHostAddress());
+		}
+	};
+	
+	@Test
+	public void testFlappingServiceIsHidden() {
+		DebouncingServiceListener listener = new DebouncingServiceListener(_Recorder, 60000);
+		ServiceEvent event = createEvent("flappy");
+		
+		listener.serviceAdded(event);
+		for(int i = 0; i < 5; ++i) {
+			listener.serviceRemoved(event);
+			listener.serviceAdded(event);
+		}
+		
+		Assert.assertEquals(1, _Events.size());
+		Assert.assertEquals("added flappy", _Events.get(0));
+		Assert.assertEquals(5L, listener.getSuppressedCount());
+	}
+	
+	@Test
+	public void testSameEndpointIsHidden() throws UnknownHostException {
+		DebouncingServiceListener listener = new DebouncingServiceListener(_Recorder, 60000);
+		
+		listener.serviceAdded(createEvent("steady", "10.0.0.1", 80));
+		listener.serviceRemoved(createEvent("steady", "10.0.0.1", 80));
+		listener.serviceAdded(createEvent("steady", "10.0.0.1", 80));
+		
+		Assert.assertEquals(1, _Events.size());
+		Assert.assertEquals(1L, listener.getSuppressedCount());
+	}
+	
+	@Test
+	public void testMovedServiceIsPassedOn() throws UnknownHostException {
+		DebouncingServiceListener listener = new DebouncingServiceListener(_Recorder, 60000);
+		
+		listener.serviceAdded(createEvent("mover", "10.0.0.1", 80));
+		listener.serviceRemoved(createEvent("mover", "10.0.0.1", 80));
+		listener.serviceAdded(createEvent("mover", "10.0.0.2", 80));
+		listener.serviceRemoved(createEvent("mover", "10.0.0.2", 80));
+		listener.serviceAdded(createEvent("mover", "10.0.0.2", 8080));
+		
+		Assert.assertEquals(3, _Events.size());
+		Assert.assertEquals("added mover", _Events.get(0));
+		Assert.assertEquals("resolved mover@10.0.0.2", _Events.get(1));
+		Assert.assertEquals("resolved mover@10.0.0.2", _Events.get(2));
+		Assert.assertEquals(0L, listener.getSuppressedCount());
+	}
+	
+	@Test
+	public void testRemovalPassedOnAfterGracePeriod() throws InterruptedException {
+		DebouncingServiceListener listener = new DebouncingServiceListener(_Recorder, 50);
+		ServiceEvent event = createEvent("gone");
+		
+		listener.serviceAdded(event);
+		listener.serviceRemoved(event);
+		Assert.assertEquals(1, _Events.size());
+		
+		for(int i = 0; i < 100 && _Events.size() < 2; ++i)
+			Thread.sleep(10);
+		Assert.assertEquals("removed gone", _Events.get(1));
+		
+		// Coming back after the removal was passed on is a new service.
+		listener.serviceAdded(event);
+		Assert.assertEquals("added gone", _Events.get(2));
+	}
+	
+	@Test
+	public void testThrowingListenerKeepsTimerAlive() throws InterruptedException {
+		ServiceListener thrower = new ServiceListener() {
+			public void serviceAdded(ServiceEvent event) { }
+			public void serviceRemoved(ServiceEvent event) {
+				throw new RuntimeException("Listener failure");
+			}
+			public void serviceResolved(ServiceEvent event) { }
+		};
+		DebouncingServiceListener bad = new DebouncingServiceListener(thrower, 10);
+		bad.serviceRemoved(createEvent("bad"));
+		Thread.sleep(100);
+		
+		DebouncingServiceListener listener = new DebouncingServiceListener(_Recorder, 10);
+		listener.serviceRemoved(createEvent("good"));
+		for(int i = 0; i < 100 && _Events.isEmpty(); ++i)
+			Thread.sleep(10);
+		Assert.assertEquals("removed good", _Events.get(0));
+	}
+	
+	@Test
+	public void testRemovalPostedThroughDispatcher() throws InterruptedException {
+		ServiceEventDispatcher dispatcher = new ServiceEventDispatcher();
+		DebouncingServiceListener listener = new DebouncingServiceListener(_Recorder, 10, dispatcher);
+		listener.serviceRemoved(createEvent("posted"));
+		
+		for(int i = 0; i < 100 && dispatcher.getDeliveredCount() < 1; ++i)
+			Thread.sleep(10);
+		Assert.assertEquals(1L, dispatcher.getDeliveredCount());
+		Assert.assertEquals("removed posted", _Events.get(0));
+		dispatcher.shutdown();
+	}
+	
+	private ServiceEvent createEvent(String asName) {
+		return new ServiceEvent(this, new ServiceInfo("_example._tcp.local.", asName, 80, ""), null);
+	}
+	
+	private ServiceEvent createEvent(String asName, String asAddress, int aiPort) throws UnknownHostException {
+		DNSRecord.Address address = new DNSRecord.Address(asName + ".local.", DNSEntry.EntryType.A, 
+				DNSEntry.EntryClass.IN, true, 120, InetAddress.getByName(asAddress));
+		return new ServiceEvent(this, new ServiceInfo("_example._tcp.local.", asName, aiPort, ""), 
+				new RemoteHostInfo(address));
+	}
+}
@@ -0,0 +1,96 @@
+package com.orbus.mahalo.tests;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.orbus.mahalo.EndpointSelector;
+import com.orbus.mahalo.ServiceDirectory;
+import com.orbus.mahalo.ServiceEvent;
+import com.orbus.mahalo.ServiceInfo;
+
+public class TestEndpointSelector {
+	private static final String TYPE = "_example._tcp.local.";
+	
+	private ServiceDirectory _Directory = new ServiceDirectory(TYPE);
+	
+	private EndpointSelector _Selector = new EndpointSelector(TYPE) {
+		@Override
+		protected ServiceDirectory getDirectory() {
+			return _Directory;
+		}
+	};
+	
+	@Test
+	public void testOnlyLowestPriorityIsChosen() {
+		add("backup", 0, 100);
+		add("primary", 10, 1);
+		add("other", 10, 1);
+		
+		Assert.assertEquals(2, _Selector.getCandidates().size());
+		for(int i = 0; i < 200; ++i)
+			Assert.assertEquals(1, _Selector.select().getSrvInfo().getPriority());
+	}
+	
+	@Test
+	public void testZeroWeightsArePickedEvenly() {
+		add("a", 0, 0);
+		add("b", 0, 0);
+		add("c", 0, 0);
+		
+		Map<String, Integer> counts = count(3000);
+		Assert.assertEquals(3, counts.size());
+		for(int icount : counts.values())
+			Assert.assertTrue("Uneven pick: " + counts, icount > 700 && icount < 1300);
+	}
+	
+	@Test
+	public void testZeroWeightIsOrderedFirstAndRarelyPicked() {
+		add("heavy", 100, 0);
+		add("zero", 0, 0);
+		
+		List<ServiceEvent> candidates = _Selector.getCandidates();
+		Assert.assertEquals("zero", candidates.get(0).getSrvInfo().getName());
+		Assert.assertEquals("heavy", candidates.get(1).getSrvInfo().getName());
+		
+		// The zero weight service is only picked when the pick lands on zero, 1 in 101.
+		Map<String, Integer> counts = count(2000);
+		Integer izero = counts.get("zero");
+		Assert.assertTrue(izero == null || izero.intValue() < 100);
+	}
+	
+	@Test
+	public void testTableRebuiltOnlyOnNewVersion() {
+		add("first", 1, 0);
+		Assert.assertEquals("first", _Selector.select().getSrvInfo().getName());
+		
+		// A different directory with the same version is taken to be unchanged.
+		_Directory = new ServiceDirectory(TYPE).withService(createEvent("second", 1, 0));
+		Assert.assertEquals("first", _Selector.select().getSrvInfo().getName());
+		
+		_Directory = _Directory.withService(createEvent("third", 1, 0)).withoutService("second." + TYPE);
+		Assert.assertEquals(1, _Selector.getCandidates().size());
+		Assert.assertEquals("third", _Selector.select().getSrvInfo().getName());
+	}
+	
+	private void add(String asName, int aiWeight, int aiPriority) {
+		_Directory = _Directory.withService(createEvent(asName, aiWeight, aiPriority));
+	}
+	
+	private ServiceEvent createEvent(String asName, int aiWeight, int aiPriority) {
+		return new ServiceEvent(this, new ServiceInfo(TYPE, asName, 80, aiWeight, aiPriority, ""), null);
+	}
+	
+	private Map<String, Integer> count(int aiPicks) {
+		Map<String, Integer> counts = new HashMap<String, Integer>();
+		for(int i = 0; i < aiPicks; ++i) {
+			String sname = _Selector.select().getSrvInfo().getName();
+			Integer icount = counts.get(sname);
+			counts.put(sname, icount == null ? 1 : icount.intValue() + 1);
+		}
+		return counts;
+	}
+}
@@ -0,0 +1,52 @@
+package com.orbus.mahalo.tests;
+
+import java.util.List;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.orbus.mahalo.NameTrie;
+
+public class TestNameTrie {
+	@Test
+	public void testMatchFindsEveryLevel() {
+		NameTrie<String> trie = new NameTrie<String>();
+		trie.add("local.", "all");
+		trie.add("_http._tcp.local.", "http");
+		trie.add("_ftp._tcp.local.", "ftp");
+
+		List<String> matches = trie.match("Printer._HTTP._tcp.local.");
+		Assert.assertEquals(2, matches.size());
+		Assert.assertEquals("all", matches.get(0));
+		Assert.assertEquals("http", matches.get(1));
+
+		Assert.assertEquals(1, trie.match("foo._ipp._tcp.local.").size());
+		Assert.assertEquals(0, trie.match("foo.example.com.").size());
+	}
+
+	@Test
+	public void testMatchesWholeLabelsOnly() {
+		NameTrie<String> trie = new NameTrie<String>();
+		trie.add("p._tcp.local.", "p");
+
+		Assert.assertEquals(0, trie.match("foo._http._tcp.local.").size());
+		Assert.assertEquals(1, trie.match("foo.p._tcp.local.").size());
+	}
+
+	@Test
+	public void testAddAndRemove() {
+		NameTrie<String> trie = new NameTrie<String>();
+		Assert.assertTrue(trie.add("_http._tcp.local.", "a"));
+		Assert.assertFalse(trie.add("_HTTP._tcp.local.", "a"));
+		Assert.assertTrue(trie.add("_http._tcp.local.", "b"));
+		Assert.assertEquals(2, trie.get("_http._tcp.local.").size());
+
+		Assert.assertTrue(trie.remove("_http._tcp.local.", "a"));
+		Assert.assertFalse(trie.remove("_http._tcp.local.", "a"));
+		Assert.assertEquals(1, trie.get("_http._tcp.local.").size());
+
+		Assert.assertTrue(trie.remove("_http._tcp.local.", "b"));
+		Assert.assertTrue(trie.get("_http._tcp.local.").isEmpty());
+		Assert.assertTrue(trie.match("foo._http._tcp.local.").isEmpty());
+	}
+}
@@ -0,0 +1,149 @@
+package com.orbus.mahalo.tests;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.orbus.mahalo.HostInfo;
+import com.orbus.mahalo.ServiceInfo;
+import com.orbus.mahalo.dns.DNSEntry;
+import com.orbus.mahalo.dns.DNSPacket;
+import com.orbus.mahalo.dns.DNSQuestion;
+import com.orbus.mahalo.dns.DNSRecord;
+import com.orbus.mahalo.tasks.Announcer;
+import com.orbus.mahalo.tasks.PacketPacker;
+import com.orbus.mahalo.tasks.Prober;
+
+public class TestPacketPacker {
+	@Test
+	public void testProbesSharePackets() {
+		final int icount = 100;
+		PacketPacker packer = new PacketPacker(false);
+		for(int i = 0; i < icount; ++i) {
+			String sname = "service " + i + "._example._tcp.local.";
+			DNSQuestion question = new DNSQuestion(sname, DNSEntry.EntryType.ANY, DNSEntry.EntryClass.IN, false);
+			DNSRecord proposed = new DNSRecord.Service(sname, DNSEntry.EntryClass.IN, false, DNSEntry.TTL, 
+					0, 0, 80, "host.local.");
+			packer.add(question, Collections.singletonList(proposed));
+		}
+		
+		List<DNSPacket> packets = packer.getPackets();
+		int itotalSize = 0;
+		int iquestions = 0;
+		for(DNSPacket packet : packets) {
+			// Every question goes with the record it proposes.
+			Assert.assertEquals(packet.getQuestions().size(), packet.getAnswers().size());
+			for(int i = 0; i < packet.getQuestions().size(); ++i)
+				Assert.assertEquals(packet.getQuestions().get(i).getName(), packet.getAnswers().get(i).getName());
+			iquestions += packet.getQuestions().size();
+			
+			ByteBuffer[] buffers = packet.write();
+			Assert.assertEquals(1, buffers.length);
+			Assert.assertTrue(buffers[0].position() <= PacketPacker.MAX_PACKET_SIZE);
+			itotalSize += buffers[0].position();
+		}
+		Assert.assertEquals(icount, iquestions);
+		
+		// The packets needed depend on the bytes to send, not on the service count.
+		Assert.assertTrue(packets.size() > 1);
+		Assert.assertTrue(packets.size() <= itotalSize / PacketPacker.MAX_PACKET_SIZE + 2);
+	}
+	
+	@Test
+	public void testOversizedGroupIsSplit() throws IOException {
+		PacketPacker packer = new PacketPacker(true);
+		List<DNSRecord> records = new ArrayList<DNSRecord>();
+		for(int i = 0; i < 10; ++i) {
+			records.add(new DNSRecord.Text("service " + i + "._example._tcp.local.", DNSEntry.EntryClass.IN, 
+					true, DNSEntry.TTL, new byte[400]));
+		}
+		packer.add((DNSQuestion)null, records);
+		
+		int ianswers = 0;
+		for(DNSPacket packet : packer.getPackets()) {
+			ianswers += packet.getAnswers().size();
+			ByteBuffer[] buffers = packet.write();
+			Assert.assertEquals(1, buffers.length);
+			buffers[0].flip();
+			Assert.assertFalse(DNSPacket.Parse(buffers[0]).isTruncated());
+		}
+		Assert.assertEquals(10, ianswers);
+		Assert.assertTrue(packer.getPackets().size() > 1);
+	}
+	
+	@Test
+	public void testLargeRecordGetsItsOwnPacket() throws IOException {
+		PacketPacker packer = new PacketPacker(true);
+		DNSRecord small = new DNSRecord.Text("small._example._tcp.local.", DNSEntry.EntryClass.IN, 
+				true, DNSEntry.TTL, new byte[10]);
+		DNSRecord large = new DNSRecord.Text("large._example._tcp.local.", DNSEntry.EntryClass.IN, 
+				true, DNSEntry.TTL, new byte[3000]);
+		packer.add((DNSQuestion)null, Collections.singletonList(small));
+		packer.add((DNSQuestion)null, Collections.singletonList(large));
+		packer.add((DNSQuestion)null, Collections.singletonList(small));
+		
+		List<DNSPacket> packets = packer.getPackets();
+		Assert.assertEquals(3, packets.size());
+		Assert.assertEquals(1, packets.get(1).getAnswers().size());
+		ByteBuffer[] buffers = packets.get(1).write();
+		Assert.assertEquals(1, buffers.length);
+		buffers[0].flip();
+		Assert.assertEquals(1, DNSPacket.Parse(buffers[0]).getAnswers().size());
+	}
+	
+	@Test
+	public void testFinishedTasksRefuseServices() throws Exception {
+		HostInfo host = new HostInfo(InetAddress.getByName("127.0.0.1"), "host");
+		List<ServiceInfo> services = Collections.singletonList(new ServiceInfo("_example._tcp.local.", "test", 80, ""));
+		
+		Prober prober = new Prober(null, null, host, null);
+		Assert.assertTrue(prober.add(services));
+		prober.cancel();
+		Assert.assertFalse(prober.add(services));
+		
+		Announcer announcer = new Announcer(null, host, null);
+		Assert.assertTrue(announcer.add(services));
+		announcer.cancel();
+		Assert.assertFalse(announcer.add(services));
+	}
+	
+	@Test
+	public void testServicesJoiningAfterHostIsAnnounced() throws Exception {
+		HostInfo host = new HostInfo(InetAddress.getByName("127.0.0.1"), "host");
+		while(!host.getState().isAnnounced())
+			host.advanceState();
+		
+		final List<DNSPacket> sent = new ArrayList<DNSPacket>();
+		Announcer announcer = new Announcer(null, host, null) {
+			@Override
+			protected void send(DNSPacket aPacket) {
+				sent.add(aPacket);
+			}
+		};
+		
+		ServiceInfo info = new ServiceInfo("_example._tcp.local.", "late", 80, "");
+		while(!info.getState().isAnnouncing())
+			info.advanceState();
+		Assert.assertTrue(announcer.add(Collections.singletonList(info)));
+		
+		for(int i = 0; i < 3 && !announcer.isCanceled(); ++i)
+			announcer.run();
+		
+		Assert.assertTrue(info.getState().isAnnounced());
+		Assert.assertTrue(host.getState().isAnnounced());
+		Assert.assertTrue(announcer.isCanceled());
+		Assert.assertEquals(2, sent.size());
+		
+		// The host's address goes out with the service even though the host is done.
+		boolean baddress = false;
+		for(DNSRecord record : sent.get(0).getAnswers())
+			baddress |= record.getType() == DNSEntry.EntryType.A;
+		Assert.assertTrue(baddress);
+	}
+}
@@ -0,0 +1,80 @@
+package com.orbus.mahalo.tests;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Timer;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.orbus.mahalo.dns.DNSCache;
+import com.orbus.mahalo.dns.DNSEntry;
+import com.orbus.mahalo.dns.DNSQuestion;
+import com.orbus.mahalo.tasks.QueryScheduler;
+import com.orbus.mahalo.tasks.ServiceResolver;
+
+public class TestPassiveMode {
+	@Test
+	public void testSchedulerDropsQuestions() {
+		Timer timer = new Timer(true);
+		QueryScheduler scheduler = new QueryScheduler(null, new DNSCache(10), timer);
+		
+		// Questions already waiting are dropped when passive mode starts.
+		scheduler.schedule(createQuestion("_one._tcp.local."), 60000, 0);
+		Assert.assertEquals(1, scheduler.getPendingCount());
+		scheduler.setPassive(true);
+		Assert.assertEquals(0, scheduler.getPendingCount());
+		
+		scheduler.schedule(createQuestion("_two._tcp.local."), 0, 0);
+		scheduler.schedule(createQuestion("_three._tcp.local."), 0, 0);
+		Assert.assertEquals(0, scheduler.getPendingCount());
+		Assert.assertEquals(3L, scheduler.getQuestionsSuppressed());
+		Assert.assertEquals(0L, scheduler.getPacketsSent());
+		timer.cancel();
+	}
+	
+	@Test
+	public void testResolverWaitsQuietly() throws InterruptedException {
+		Timer timer = new Timer(true);
+		final List<DNSQuestion> asked = Collections.synchronizedList(new ArrayList<DNSQuestion>());
+		QueryScheduler scheduler = new QueryScheduler(null, new DNSCache(10), timer) {
+			@Override
+			public synchronized void schedule(DNSQuestion aQuestion, long alDelay, long alWindow) {
+				asked.add(aQuestion);
+			}
+		};
+		final List<String> lost = Collections.synchronizedList(new ArrayList<String>());
+		ServiceResolver resolver = new ServiceResolver(scheduler, new DNSCache(10), timer, new ServiceResolver.Listener() {
+			public void serviceFound(String asInstance) { }
+			public void serviceResolved(String asInstance) { }
+			public void serviceLost(String asInstance) {
+				lost.add(asInstance);
+			}
+		});
+		
+		resolver.setPassive(true);
+		resolver.resolve("test._example._tcp.local.");
+		resolver.update();
+		Thread.sleep(ServiceResolver.TICK * 10);
+		
+		Assert.assertTrue(asked.isEmpty());
+		Assert.assertTrue(lost.isEmpty());
+		Assert.assertEquals(1, resolver.getPendingCount());
+		
+		// Once active again, the instance is asked about at its next tick.
+		resolver.setPassive(false);
+		resolver.resolve("other._example._tcp.local.");
+		resolver.update();
+		for(int i = 0; i < 100 && asked.isEmpty(); ++i)
+			Thread.sleep(10);
+		Assert.assertFalse(asked.isEmpty());
+		
+		resolver.cancel();
+		timer.cancel();
+	}
+	
+	private DNSQuestion createQuestion(String asName) {
+		return new DNSQuestion(asName, DNSEntry.EntryType.PTR, DNSEntry.EntryClass.IN, false);
+	}
+}
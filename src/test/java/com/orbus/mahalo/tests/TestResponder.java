@@ -0,0 +1,89 @@
+package com.orbus.mahalo.tests;
+
+import java.net.InetAddress;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.orbus.mahalo.HostInfo;
+import com.orbus.mahalo.ServiceInfo;
+import com.orbus.mahalo.ServiceRegistry;
+import com.orbus.mahalo.dns.DNSEntry;
+import com.orbus.mahalo.dns.DNSPacket;
+import com.orbus.mahalo.dns.DNSQuestion;
+import com.orbus.mahalo.dns.DNSRecord;
+import com.orbus.mahalo.tasks.ResponseAggregator;
+import com.orbus.mahalo.tasks.Responder;
+
+public class TestResponder {
+	private List<DNSPacket> _Sent = new ArrayList<DNSPacket>();
+	
+	@Test
+	public void testServiceTypeEnumerationNamesEachTypeOnce() throws Exception {
+		ServiceRegistry registry = new ServiceRegistry();
+		registry.add(createAnnounced("_http._tcp.local.", "one"));
+		registry.add(createAnnounced("_http._tcp.local.", "two"));
+		registry.add(createAnnounced("_ipp._tcp.local.", "printer"));
+		// Not announced yet, so its type isn't named.
+		registry.add(new ServiceInfo("_ftp._tcp.local.", "files", 21, ""));
+		
+		HostInfo host = new HostInfo(InetAddress.getByName("127.0.0.1"), "host");
+		Responder.Pool pool = new Responder.Pool(null, host, registry, new ResponseAggregator(null) {
+			@Override
+			protected void send(DNSPacket aPacket) {
+				_Sent.add(aPacket);
+			}
+		});
+		
+		DNSPacket query = new DNSPacket(false);
+		query.addQuestion(new DNSQuestion(DNSEntry.SERVICE_TYPE_ENUMERATION, DNSEntry.EntryType.PTR, 
+				DNSEntry.EntryClass.IN, false));
+		pool.obtain(query, null, DNSPacket.MDNS_PORT).run();
+		
+		Assert.assertEquals(1, _Sent.size());
+		List<String> types = new ArrayList<String>();
+		for(DNSRecord answer : _Sent.get(0).getAnswers()) {
+			Assert.assertEquals(DNSEntry.SERVICE_TYPE_ENUMERATION, answer.getName());
+			types.add(((DNSRecord.Pointer)answer).getAlias());
+		}
+		Assert.assertEquals(2, types.size());
+		Assert.assertTrue(types.contains("_http._tcp.local."));
+		Assert.assertTrue(types.contains("_ipp._tcp.local."));
+	}
+	
+	@Test
+	public void testAbandonedResponderDoesNotHoldBackAnswers() throws Exception {
+		ServiceRegistry registry = new ServiceRegistry();
+		registry.add(createAnnounced("_http._tcp.local.", "one"));
+		
+		HostInfo host = new HostInfo(InetAddress.getByName("127.0.0.1"), "host");
+		Responder.Pool pool = new Responder.Pool(null, host, registry, new ResponseAggregator(null) {
+			@Override
+			protected void send(DNSPacket aPacket) {
+				_Sent.add(aPacket);
+			}
+		});
+		
+		DNSPacket query = new DNSPacket(false);
+		query.addQuestion(new DNSQuestion("_http._tcp.local.", DNSEntry.EntryType.PTR, DNSEntry.EntryClass.IN, false));
+		Responder rejected = pool.obtain(query, null, DNSPacket.MDNS_PORT);
+		pool.obtain(query, null, DNSPacket.MDNS_PORT).run();
+		Assert.assertEquals(0, _Sent.size());
+		
+		// As when the executor turns the responder down.
+		pool.abandon(rejected);
+		Assert.assertEquals(1, _Sent.size());
+		
+		pool.obtain(query, null, DNSPacket.MDNS_PORT);
+		Assert.assertEquals(2, pool.getCreatedCount());
+	}
+	
+	private ServiceInfo createAnnounced(String asType, String asName) {
+		ServiceInfo info = new ServiceInfo(asType, asName, 80, "");
+		while(!info.getState().isAnnounced())
+			info.advanceState();
+		return info;
+	}
+}
@@ -0,0 +1,112 @@
+package com.orbus.mahalo.tests;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.orbus.mahalo.dns.DNSEntry;
+import com.orbus.mahalo.dns.DNSPacket;
+import com.orbus.mahalo.dns.DNSRecord;
+import com.orbus.mahalo.tasks.ResponseAggregator;
+
+public class TestResponseAggregator {
+	private List<DNSPacket> _Sent = new ArrayList<DNSPacket>();
+	
+	private ResponseAggregator _Aggregator = new ResponseAggregator(null) {
+		@Override
+		protected void send(DNSPacket aPacket) {
+			_Sent.add(aPacket);
+		}
+	};
+	
+	@Test
+	public void testOverlappingRespondersShareAPacket() {
+		_Aggregator.responderScheduled();
+		_Aggregator.responderScheduled();
+		
+		_Aggregator.responderFinished(createResponse("a"), false);
+		Assert.assertTrue(_Sent.isEmpty());
+		
+		_Aggregator.responderFinished(createResponse("a", "b"), false);
+		Assert.assertEquals(1, _Sent.size());
+		Assert.assertEquals(2, _Sent.get(0).getAnswers().size());
+		Assert.assertEquals(1L, _Aggregator.getRecordsMerged());
+		Assert.assertEquals(1L, _Aggregator.getPacketsSent());
+	}
+	
+	@Test
+	public void testRecordsAreRateLimited() {
+		_Aggregator.responderScheduled();
+		_Aggregator.responderFinished(createResponse("a"), false);
+		Assert.assertEquals(1, _Sent.size());
+		
+		// Sent less than RATE_LIMIT ago, so only the new record goes out.
+		_Aggregator.responderScheduled();
+		_Aggregator.responderFinished(createResponse("a", "b"), false);
+		Assert.assertEquals(2, _Sent.size());
+		Assert.assertEquals(1, _Sent.get(1).getAnswers().size());
+		Assert.assertEquals(createPointer("b"), _Sent.get(1).getAnswers().get(0));
+		Assert.assertEquals(1L, _Aggregator.getRecordsLimited());
+		
+		_Aggregator.responderScheduled();
+		_Aggregator.responderFinished(createResponse("a"), false);
+		Assert.assertEquals(2, _Sent.size());
+	}
+	
+	@Test
+	public void testProbeDefenseIgnoresRateLimit() {
+		_Aggregator.responderScheduled();
+		_Aggregator.responderFinished(createResponse("a"), false);
+		
+		_Aggregator.responderScheduled();
+		_Aggregator.responderFinished(createResponse("a"), true);
+		Assert.assertEquals(2, _Sent.size());
+		Assert.assertEquals(0L, _Aggregator.getRecordsLimited());
+	}
+	
+	@Test
+	public void testAnswersAreNotHeldPastAggregateMax() throws InterruptedException {
+		_Aggregator.responderScheduled();
+		_Aggregator.responderScheduled();
+		_Aggregator.responderScheduled();
+		
+		_Aggregator.responderFinished(createResponse("a"), false);
+		Thread.sleep(ResponseAggregator.AGGREGATE_MAX + 50);
+		
+		// One responder is still outstanding, but "a" has waited long enough.
+		_Aggregator.responderFinished(createResponse("b"), false);
+		Assert.assertEquals(1, _Sent.size());
+		Assert.assertEquals(2, _Sent.get(0).getAnswers().size());
+	}
+	
+	@Test
+	public void testAdditionalsAlreadyAnsweredAreLeftOut() {
+		_Aggregator.responderScheduled();
+		_Aggregator.responderScheduled();
+		
+		DNSPacket response = createResponse("a");
+		response.addAdditional(createPointer("b"));
+		response.addAdditional(createPointer("c"));
+		_Aggregator.responderFinished(response, false);
+		_Aggregator.responderFinished(createResponse("b"), false);
+		
+		Assert.assertEquals(1, _Sent.size());
+		Assert.assertEquals(2, _Sent.get(0).getAnswers().size());
+		Assert.assertEquals(1, _Sent.get(0).getAdditionals().size());
+		Assert.assertEquals(createPointer("c"), _Sent.get(0).getAdditionals().get(0));
+	}
+	
+	private DNSPacket createResponse(String... asNames) {
+		DNSPacket response = new DNSPacket(true);
+		for(String sname : asNames)
+			response.addAnswer(createPointer(sname));
+		return response;
+	}
+	
+	private DNSRecord createPointer(String asName) {
+		return new DNSRecord.Pointer("_example._tcp.local.", DNSEntry.EntryType.PTR, DNSEntry.EntryClass.IN, 
+				DNSEntry.TTL, asName + "._example._tcp.local.");
+	}
+}
@@ -0,0 +1,62 @@
+package com.orbus.mahalo.tests;
+
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.orbus.mahalo.tasks.ScheduledTask;
+
+public class TestScheduledTask {
+	
+	@Test
+	public void testTaskSurvivesException() throws InterruptedException {
+		ScheduledExecutorService executor = new ScheduledThreadPoolExecutor(1);
+		final AtomicInteger runs = new AtomicInteger();
+		ScheduledTask task = new ScheduledTask() {
+			@Override
+			protected void runTask() {
+				if(runs.incrementAndGet() == 1)
+					throw new IllegalStateException("First run fails");
+				if(runs.get() == 3)
+					cancel();
+			}
+		};
+		
+		try {
+			task.schedule(executor, 0, 10);
+			for(int i = 0; i < 100 && !task.isCanceled(); ++i)
+				Thread.sleep(10);
+			
+			Assert.assertTrue(task.isCanceled());
+			Thread.sleep(50);
+			Assert.assertEquals(3, runs.get());
+		} finally {
+			executor.shutdown();
+		}
+	}
+	
+	@Test
+	public void testCanceledTaskNeverRuns() throws InterruptedException {
+		ScheduledExecutorService executor = new ScheduledThreadPoolExecutor(1);
+		final AtomicInteger runs = new AtomicInteger();
+		ScheduledTask task = new ScheduledTask() {
+			@Override
+			protected void runTask() {
+				runs.incrementAndGet();
+			}
+		};
+		
+		try {
+			Assert.assertTrue(task.cancel());
+			Assert.assertFalse(task.cancel());
+			task.schedule(executor, 0, 0);
+			Thread.sleep(50);
+			Assert.assertEquals(0, runs.get());
+		} finally {
+			executor.shutdown();
+		}
+	}
+}
@@ -0,0 +1,111 @@
+package com.orbus.mahalo.tests;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.orbus.mahalo.ServiceEvent;
+import com.orbus.mahalo.ServiceEventDispatcher;
+import com.orbus.mahalo.ServiceInfo;
+import com.orbus.mahalo.ServiceListener;
+
+public class TestServiceEventDispatcher {
+	@Test
+	public void testEventsForOneServiceStayInOrder() throws InterruptedException {
+		final int icount = 200;
+		final List<Integer> ports = Collections.synchronizedList(new ArrayList<Integer>());
+		final CountDownLatch latch = new CountDownLatch(icount);
+		ServiceListener listener = new ServiceListener() {
+			public void serviceAdded(ServiceEvent event) {
+				ports.add(event.getSrvInfo().getPort());
+				latch.countDown();
+			}
+			public void serviceRemoved(ServiceEvent event) {
+				ports.add(-event.getSrvInfo().getPort());
+				latch.countDown();
+			}
+			public void serviceResolved(ServiceEvent event) { }
+		};
+
+		ServiceEventDispatcher dispatcher = new ServiceEventDispatcher();
+		List<ServiceListener> listeners = Collections.singletonList(listener);
+		for(int i = 1; i <= icount; ++i) {
+			ServiceEvent event = new ServiceEvent(this, new ServiceInfo("_example._tcp.local.", "test", i, ""), null);
+			if(i % 2 == 0)
+				dispatcher.serviceRemoved(listeners, event);
+			else
+				dispatcher.serviceAdded(listeners, event);
+		}
+
+		Assert.assertTrue(latch.await(10, TimeUnit.SECONDS));
+		for(int i = 1; i <= icount; ++i)
+			Assert.assertEquals(i % 2 == 0 ? -i : i, ports.get(i - 1).intValue());
+
+		// The listener counts down before the dispatcher finishes its bookkeeping.
+		for(int i = 0; i < 100 && dispatcher.getDeliveredCount() < icount; ++i)
+			Thread.sleep(10);
+		Assert.assertEquals((long)icount, dispatcher.getDeliveredCount());
+		Assert.assertEquals(0, dispatcher.getQueueDepth());
+		dispatcher.shutdown();
+	}
+
+	@Test
+	public void testListenerExceptionsDoNotStopDelivery() throws InterruptedException {
+		final CountDownLatch latch = new CountDownLatch(2);
+		ServiceListener listener = new ServiceListener() {
+			public void serviceAdded(ServiceEvent event) {
+				latch.countDown();
+				throw new RuntimeException("Listener failure");
+			}
+			public void serviceRemoved(ServiceEvent event) { }
+			public void serviceResolved(ServiceEvent event) { }
+		};
+
+		ServiceEventDispatcher dispatcher = new ServiceEventDispatcher();
+		ServiceEvent event = new ServiceEvent(this, new ServiceInfo("_example._tcp.local.", "test", 80, ""), null);
+		dispatcher.serviceAdded(Collections.singletonList(listener), event);
+		dispatcher.serviceAdded(Collections.singletonList(listener), event);
+
+		Assert.assertTrue(latch.await(10, TimeUnit.SECONDS));
+		dispatcher.shutdown();
+	}
+
+	@Test
+	public void testRejectedDrainDoesNotStallService() {
+		final boolean[] reject = { true };
+		Executor executor = new Executor() {
+			public void execute(Runnable command) {
+				if(reject[0])
+					throw new RejectedExecutionException("Rejected");
+				command.run();
+			}
+		};
+		final List<Integer> ports = new ArrayList<Integer>();
+		ServiceListener listener = new ServiceListener() {
+			public void serviceAdded(ServiceEvent event) {
+				ports.add(event.getSrvInfo().getPort());
+			}
+			public void serviceRemoved(ServiceEvent event) { }
+			public void serviceResolved(ServiceEvent event) { }
+		};
+
+		ServiceEventDispatcher dispatcher = new ServiceEventDispatcher(executor);
+		List<ServiceListener> listeners = Collections.singletonList(listener);
+		dispatcher.serviceAdded(listeners, new ServiceEvent(this, new ServiceInfo("_example._tcp.local.", "test", 1, ""), null));
+		Assert.assertEquals(0, dispatcher.getQueueDepth());
+		Assert.assertTrue(ports.isEmpty());
+
+		reject[0] = false;
+		dispatcher.serviceAdded(listeners, new ServiceEvent(this, new ServiceInfo("_example._tcp.local.", "test", 2, ""), null));
+		Assert.assertEquals(1, ports.size());
+		Assert.assertEquals(2, ports.get(0).intValue());
+		Assert.assertEquals(0, dispatcher.getQueueDepth());
+	}
+}
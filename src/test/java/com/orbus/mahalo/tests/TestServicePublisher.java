@@ -0,0 +1,141 @@
+package com.orbus.mahalo.tests;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.orbus.mahalo.ServiceChange;
+import com.orbus.mahalo.ServiceEvent;
+import com.orbus.mahalo.ServiceInfo;
+import com.orbus.mahalo.ServiceListener;
+import com.orbus.mahalo.ServicePublisher;
+import com.orbus.mahalo.ServiceSubscriber;
+import com.orbus.mahalo.ServiceSubscription;
+
+public class TestServicePublisher {
+	private static final String TYPE = "_example._tcp.local.";
+
+	private List<ServiceListener> _Listeners = new ArrayList<ServiceListener>();
+
+	private ServicePublisher _Publisher = new ServicePublisher(TYPE) {
+		@Override
+		protected void listen(ServiceListener aListener) {
+			_Listeners.add(aListener);
+		}
+
+		@Override
+		protected void stopListening(ServiceListener aListener) {
+			_Listeners.remove(aListener);
+		}
+	};
+
+	@Test
+	public void testOnlyRequestedChangesAreSent() {
+		Recorder recorder = new Recorder();
+		_Publisher.subscribe(recorder);
+		ServiceListener listener = _Listeners.get(0);
+
+		listener.serviceAdded(createEvent("a"));
+		Assert.assertEquals(0, recorder._Changes.size());
+
+		recorder._Subscription.request(2);
+		listener.serviceAdded(createEvent("b"));
+		listener.serviceAdded(createEvent("c"));
+		Assert.assertEquals(2, recorder._Changes.size());
+		Assert.assertEquals("ADDED a", recorder._Changes.get(0));
+		Assert.assertEquals("ADDED b", recorder._Changes.get(1));
+
+		recorder._Subscription.request(1);
+		Assert.assertEquals(3, recorder._Changes.size());
+		Assert.assertEquals("ADDED c", recorder._Changes.get(2));
+	}
+
+	@Test
+	public void testChangesAreConflated() {
+		Recorder recorder = new Recorder();
+		_Publisher.subscribe(recorder);
+		ServiceListener listener = _Listeners.get(0);
+
+		// An add the subscriber hasn't taken stays an add, and goes with a removal.
+		listener.serviceAdded(createEvent("kept"));
+		listener.serviceResolved(createEvent("kept"));
+		listener.serviceAdded(createEvent("brief"));
+		listener.serviceResolved(createEvent("brief"));
+		listener.serviceRemoved(createEvent("brief"));
+		Assert.assertEquals(4L, _Publisher.getConflatedCount());
+
+		recorder._Subscription.request(10);
+		Assert.assertEquals(1, recorder._Changes.size());
+		Assert.assertEquals("ADDED kept", recorder._Changes.get(0));
+
+		// Once the add is taken, the removal has to be sent.
+		listener.serviceResolved(createEvent("kept"));
+		listener.serviceRemoved(createEvent("kept"));
+		Assert.assertEquals(3, recorder._Changes.size());
+		Assert.assertEquals("REMOVED kept", recorder._Changes.get(2));
+	}
+
+	@Test
+	public void testRemovalAfterTakenAddIsSent() {
+		Recorder recorder = new Recorder();
+		_Publisher.subscribe(recorder);
+		ServiceListener listener = _Listeners.get(0);
+
+		recorder._Subscription.request(1);
+		listener.serviceAdded(createEvent("lazy"));
+		listener.serviceResolved(createEvent("lazy"));
+		listener.serviceRemoved(createEvent("lazy"));
+
+		recorder._Subscription.request(1);
+		Assert.assertEquals(2, recorder._Changes.size());
+		Assert.assertEquals("ADDED lazy", recorder._Changes.get(0));
+		Assert.assertEquals("REMOVED lazy", recorder._Changes.get(1));
+	}
+
+	@Test
+	public void testCloseCompletesSubscribers() {
+		Recorder recorder = new Recorder();
+		_Publisher.subscribe(recorder);
+		_Listeners.get(0).serviceAdded(createEvent("dropped"));
+		Assert.assertEquals(1, _Publisher.getSubscriberCount());
+
+		_Publisher.close();
+		Assert.assertTrue(recorder._bComplete);
+		Assert.assertEquals(0, recorder._Changes.size());
+		Assert.assertEquals(0, _Publisher.getSubscriberCount());
+		Assert.assertTrue(_Listeners.isEmpty());
+
+		// Subscribing after the close completes straight away.
+		Recorder late = new Recorder();
+		_Publisher.subscribe(late);
+		Assert.assertTrue(late._bComplete);
+	}
+
+	private ServiceEvent createEvent(String asName) {
+		return new ServiceEvent(this, new ServiceInfo(TYPE, asName, 80, ""), null);
+	}
+
+	private static class Recorder implements ServiceSubscriber {
+		private ServiceSubscription _Subscription;
+		private List<String> _Changes = new ArrayList<String>();
+		private boolean _bComplete;
+
+		public void onSubscribe(ServiceSubscription aSubscription) {
+			_Subscription = aSubscription;
+		}
+
+		public void onNext(ServiceChange aChange) {
+			_Changes.add(aChange.getType() + " " + aChange.getEvent().getSrvInfo().getName());
+		}
+
+		public void onError(Throwable aError) {
+			Assert.fail(aError.toString());
+		}
+
+		public void onComplete() {
+			_bComplete = true;
+		}
+	}
+}
@@ -0,0 +1,51 @@
+package com.orbus.mahalo.tests;
+
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.orbus.mahalo.ServiceInfo;
+import com.orbus.mahalo.ServiceRegistry;
+
+public class TestServiceRegistry {
+	
+	@Test
+	public void testIndexes() {
+		ServiceRegistry registry = new ServiceRegistry();
+		ServiceInfo web = new ServiceInfo("_http._tcp.local.", "Web", 80, "");
+		ServiceInfo printer = new ServiceInfo("_http._tcp.local.", "Printer", 631, "");
+		printer.setSubtypes(Arrays.asList(new String[] { "_printer" }));
+		ServiceInfo ssh = new ServiceInfo("_ssh._tcp.local.", "Shell", 22, "");
+		registry.add(web);
+		registry.add(printer);
+		registry.add(ssh);
+		
+		Assert.assertSame(web, registry.get("web._HTTP._tcp.local."));
+		Assert.assertEquals(2, registry.getByType("_http._tcp.local.").size());
+		Assert.assertEquals(1, registry.getBySubtype("_printer._sub._http._tcp.local.").size());
+		Assert.assertEquals(3, registry.match("_tcp.local.").size());
+		Assert.assertEquals(0, registry.match("p._tcp.local.").size());
+		Assert.assertEquals(2, registry.getTypes().size());
+	}
+	
+	@Test
+	public void testSnapshotsSurviveChanges() {
+		ServiceRegistry registry = new ServiceRegistry();
+		ServiceInfo printer = new ServiceInfo("_http._tcp.local.", "Printer", 631, "");
+		printer.setSubtypes(Arrays.asList(new String[] { "_printer" }));
+		registry.add(printer);
+		registry.add(new ServiceInfo("_http._tcp.local.", "Web", 80, ""));
+		
+		List<ServiceInfo> snapshot = registry.getByType("_http._tcp.local.");
+		Assert.assertSame(printer, registry.remove("printer._http._tcp.local."));
+		Assert.assertEquals(2, snapshot.size());
+		Assert.assertEquals(1, registry.getByType("_http._tcp.local.").size());
+		Assert.assertTrue(registry.getBySubtype("_printer._sub._http._tcp.local.").isEmpty());
+		
+		Assert.assertEquals(1, registry.clear().size());
+		Assert.assertTrue(registry.isEmpty());
+		Assert.assertTrue(registry.getTypes().isEmpty());
+	}
+}
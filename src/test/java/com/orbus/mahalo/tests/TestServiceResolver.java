@@ -0,0 +1,210 @@
+package com.orbus.mahalo.tests;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Timer;
+import java.util.TimerTask;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.orbus.mahalo.dns.DNSCache;
+import com.orbus.mahalo.dns.DNSEntry;
+import com.orbus.mahalo.dns.DNSPacket;
+import com.orbus.mahalo.dns.DNSQuestion;
+import com.orbus.mahalo.dns.DNSRecord;
+import com.orbus.mahalo.tasks.QueryScheduler;
+import com.orbus.mahalo.tasks.ServiceResolver;
+
+public class TestServiceResolver {
+	private static final String TYPE = "_example._tcp.local.";
+
+	private long _lNow = System.currentTimeMillis();
+	private ManualTimer _Timer = new ManualTimer();
+	private DNSCache _Cache = new DNSCache(100);
+	private List<DNSPacket> _Packets = new ArrayList<DNSPacket>();
+	private List<String> _Events = new ArrayList<String>();
+
+	private QueryScheduler _Scheduler = new QueryScheduler(null, _Cache, _Timer) {
+		@Override
+		protected void send(DNSPacket aPacket) {
+			_Packets.add(aPacket);
+		}
+	};
+
+	private ServiceResolver _Resolver = new ServiceResolver(_Scheduler, _Cache, _Timer, new ServiceResolver.Listener() {
+		public void serviceFound(String asInstance) {
+			_Events.add("found " + asInstance);
+		}
+		public void serviceResolved(String asInstance) {
+			_Events.add("resolved " + asInstance);
+		}
+		public void serviceLost(String asInstance) {
+			_Events.add("lost " + asInstance);
+		}
+	}) {
+		@Override
+		protected long currentTime() {
+			return _lNow;
+		}
+	};
+
+	@After
+	public void tearDown() {
+		_Resolver.cancel();
+		_Scheduler.cancel();
+		_Timer.cancel();
+	}
+
+	@Test
+	public void testBurstIsOnePacket() {
+		for(int i = 0; i < 10; ++i)
+			_Resolver.resolve("instance" + i + "." + TYPE);
+		_Resolver.update();
+		tickAt(_lNow + ServiceResolver.TICK);
+
+		Assert.assertEquals(1, _Packets.size());
+		Assert.assertEquals(20, countQuestions());
+		Assert.assertEquals(20L, _Scheduler.getQuestionsSent());
+	}
+
+	@Test
+	public void testRetriesBackOff() {
+		String sname = "quiet." + TYPE;
+		long lstart = _lNow;
+		_Resolver.resolve(sname);
+		_Resolver.update();
+
+		tickAt(lstart + ServiceResolver.TICK);
+		Assert.assertEquals(1, _Packets.size());
+
+		// Each retry is due twice as long after the last one, give or take a tick.
+		long lnext = lstart + ServiceResolver.TICK;
+		for(int i = 1; i < ServiceResolver.QUERY_ATTEMPTS; ++i) {
+			lnext += ServiceResolver.BACKOFF_MIN << (i - 1);
+			tickAt(lnext - 2 * ServiceResolver.TICK);
+			Assert.assertEquals(i, _Packets.size());
+			tickAt(lnext);
+			Assert.assertEquals(i + 1, _Packets.size());
+		}
+		Assert.assertTrue(_Events.isEmpty());
+
+		lnext += ServiceResolver.BACKOFF_MIN << (ServiceResolver.QUERY_ATTEMPTS - 1);
+		tickAt(lnext);
+		Assert.assertEquals(ServiceResolver.QUERY_ATTEMPTS, _Packets.size());
+		Assert.assertEquals(1, _Events.size());
+		Assert.assertEquals("lost " + sname, _Events.get(0));
+		Assert.assertEquals(0, _Resolver.getPendingCount());
+	}
+
+	@Test
+	public void testGivenUpInstanceIsHeldOff() {
+		String sname = "quiet." + TYPE;
+		giveUp(sname);
+
+		_Resolver.resolve(sname);
+		Assert.assertEquals(0, _Resolver.getPendingCount());
+
+		// Until the hold is over, or the caller insists.
+		_lNow += ServiceResolver.GIVE_UP_HOLD - 1;
+		_Resolver.resolve(sname);
+		Assert.assertEquals(0, _Resolver.getPendingCount());
+		_Resolver.resolve(sname, true);
+		Assert.assertEquals(1, _Resolver.getPendingCount());
+
+		_Resolver.forget(sname);
+		giveUp(sname);
+		_lNow += ServiceResolver.GIVE_UP_HOLD;
+		_Resolver.resolve(sname);
+		Assert.assertEquals(1, _Resolver.getPendingCount());
+	}
+
+	@Test
+	public void testResolvedWithIPv6Address() throws UnknownHostException {
+		String sname = "six." + TYPE;
+		_Cache.add(new DNSRecord.Service(sname, DNSEntry.EntryClass.IN, true, 120, 0, 0, 80, "six.local."));
+		_Resolver.resolve(sname);
+		_Resolver.update();
+		tickAt(_lNow + ServiceResolver.TICK);
+
+		Assert.assertTrue(hasQuestion("six.local.", DNSEntry.EntryType.A));
+		Assert.assertTrue(hasQuestion("six.local.", DNSEntry.EntryType.AAAA));
+		Assert.assertTrue(hasQuestion(sname, DNSEntry.EntryType.TXT));
+		Assert.assertTrue(_Events.isEmpty());
+
+		_Cache.add(new DNSRecord.Address("six.local.", DNSEntry.EntryType.AAAA, DNSEntry.EntryClass.IN, true, 120,
+				InetAddress.getByName("fe80::1")));
+		_Resolver.update();
+		Assert.assertEquals(1, _Events.size());
+		Assert.assertEquals("found " + sname, _Events.get(0));
+
+		_Cache.add(new DNSRecord.Text(sname, DNSEntry.EntryClass.IN, true, 120, new byte[] { 0 }));
+		_Resolver.update();
+		Assert.assertEquals(2, _Events.size());
+		Assert.assertEquals("resolved " + sname, _Events.get(1));
+		Assert.assertEquals(0, _Resolver.getPendingCount());
+	}
+
+	private void giveUp(String asInstance) {
+		_Resolver.resolve(asInstance);
+		_Resolver.update();
+		for(int i = 0; i <= ServiceResolver.QUERY_ATTEMPTS; ++i)
+			tickAt(_lNow + (ServiceResolver.BACKOFF_MIN << ServiceResolver.QUERY_ATTEMPTS));
+		Assert.assertEquals("lost " + asInstance, _Events.get(_Events.size() - 1));
+	}
+
+	private void tickAt(long alTime) {
+		_lNow = alTime;
+		_Timer.runTasks();
+	}
+
+	private int countQuestions() {
+		int icount = 0;
+		for(DNSPacket packet : _Packets)
+			icount += packet.getQuestions().size();
+		return icount;
+	}
+
+	private boolean hasQuestion(String asName, DNSEntry.EntryType aeType) {
+		for(DNSPacket packet : _Packets) {
+			for(DNSQuestion question : packet.getQuestions()) {
+				if(question.getName().equals(asName) && question.getType() == aeType)
+					return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Runs its tasks only when asked, so the test decides when time passes.
+	 */
+	private static class ManualTimer extends Timer {
+		private List<TimerTask> _Tasks = new ArrayList<TimerTask>();
+
+		ManualTimer() {
+			super(true);
+		}
+
+		@Override
+		public void schedule(TimerTask aTask, long alDelay) {
+			_Tasks.add(aTask);
+		}
+
+		/**
+		 * Run every task scheduled so far, and the ones they schedule in turn,
+		 * regardless of their delay.  Running the resolver's tick early is
+		 * harmless; it just waits for the next one.
+		 */
+		void runTasks() {
+			for(int i = 0; i < 10 && !_Tasks.isEmpty(); ++i) {
+				List<TimerTask> tasks = new ArrayList<TimerTask>(_Tasks);
+				_Tasks.clear();
+				for(TimerTask task : tasks)
+					task.run();
+			}
+		}
+	}
+}
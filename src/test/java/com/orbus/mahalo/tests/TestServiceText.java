@@ -0,0 +1,63 @@
+package com.orbus.mahalo.tests;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.orbus.mahalo.ServiceInfo;
+import com.orbus.mahalo.ServiceText;
+
+public class TestServiceText {
+	@Test
+	public void testAttributes() {
+		byte[] wire = { 6, 'p', 'a', 't', 'h', '=', '/', 
+				4, 'a', 'u', 't', 'h',
+				5, 'P', 'A', 'T', 'H', '=',
+				1, '=' };
+		ServiceText text = new ServiceText(wire);
+		
+		Assert.assertEquals("/", text.getValue("PATH"));
+		Assert.assertTrue(text.containsKey("auth"));
+		Assert.assertNull(text.getValue("auth"));
+		Assert.assertNull(text.getValue("missing"));
+		Assert.assertEquals(2, text.getKeys().size());
+	}
+	
+	@Test
+	public void testCreateRoundTrip() {
+		Map<String, String> attributes = new LinkedHashMap<String, String>();
+		attributes.put("txtvers", "1");
+		attributes.put("secure", null);
+		ServiceText text = new ServiceText(ServiceText.create(attributes).getBytes());
+		
+		Assert.assertEquals("1", text.getValue("txtvers"));
+		Assert.assertTrue(text.containsKey("secure"));
+		// Two strings, each with its length in front.
+		Assert.assertEquals(1 + "txtvers=1".length() + 1 + "secure".length(), text.getBytes().length);
+	}
+	
+	@Test
+	public void testServiceInfoTextIsLengthPrefixed() {
+		ServiceInfo info = new ServiceInfo("_example._tcp.local.", "test", 80, "hello");
+		byte[] bytes = info.getTextBytes();
+		
+		Assert.assertEquals(6, bytes.length);
+		Assert.assertEquals(5, (int)bytes[0]);
+		Assert.assertEquals("hello", info.getTextString());
+	}
+	
+	@Test
+	public void testLongTextSplitsBetweenCharacters() {
+		// U+00E9 is two bytes in UTF-8, so the 255 byte boundary falls inside one of them.
+		StringBuffer buf = new StringBuffer("x");
+		for(int i = 0; i < 300; ++i)
+			buf.append('\u00e9');
+		String stext = buf.toString();
+		
+		ServiceInfo info = new ServiceInfo("_example._tcp.local.", "test", 80, stext);
+		Assert.assertEquals(stext, info.getTextString());
+		Assert.assertEquals(3, info.getText().getStrings().size());
+	}
+}